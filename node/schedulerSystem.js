@@ -13,18 +13,84 @@ exports.almaWriter = function (event, context) {
     });    
 }
 
-exports.streamReader =  function(event, context) {
+// SendMessageBatch takes at most 10 messages and 256 KiB in one call
+const MAX_BATCH_ENTRIES = 10;
+const MAX_BATCH_BYTES = 256 * 1024;
+
+exports.streamReader = async function(event, context) {
     console.log('Received records:'+ event.Records.length);
-    event.Records.forEach(function(record) {
-        
-        // CHECK EACH RECORD AND TRANSFORM/SPLIT
-        var params = {MessageBody: JSON.stringify(record), QueueUrl: process.env.SqsUrlAlma };
+    const entries = event.Records.map((record, index) => ({
+        id: String(index),
+        sequenceNumber: record.dynamodb.SequenceNumber,
+        body: JSON.stringify(record)
+    }));
+    const batches = toBatches(entries);
+    // The stream is retried from the first record reported as failed, so the batches are sent one after the other
+    // and the ones after a failed batch are not sent: they would be sent again by the retry.
+    // Records after the failed one in the same batch can still reach the queue twice, delivery is at-least-once.
+    let failed = [];
+    let sentBatches = 0;
+    let offset = 0;
+    for (const batch of batches) {
+        const batchFailed = await sendBatch(process.env.SqsUrlAlma, batch, true);
+        sentBatches++;
+        offset += batch.length;
+        if (batchFailed.length > 0) {
+            failed = batchFailed.concat(entries.slice(offset));
+            break;
+        }
+    }
+    console.log("Added " + (entries.length - failed.length) + " of " + entries.length + " records to queue in "
+        + sentBatches + " of " + batches.length + " batches");
+    return {batchItemFailures: failed.map(entry => ({itemIdentifier: entry.sequenceNumber}))};
+}
 
-        sqs.sendMessage(params).promise()
-        .then(data => console.log("Successfully added message to queue", data.MessageId))
-        .catch(err => console.log("There was an Error: ", err));
+// Groups the entries for SendMessageBatch, in the order of the stream
+const toBatches = (entries) => {
+    const batches = [];
+    let batch = [];
+    let bytes = 0;
+    entries.forEach(entry => {
+        const size = Buffer.byteLength(entry.body, 'utf8');
+        if (batch.length === MAX_BATCH_ENTRIES || (batch.length > 0 && bytes + size > MAX_BATCH_BYTES)) {
+            batches.push(batch);
+            batch = [];
+            bytes = 0;
+        }
+        batch.push(entry);
+        bytes += size;
     });
+    if (batch.length > 0) {
+        batches.push(batch);
+    }
+    return batches;
+}
 
+// Sends one batch, and the entries SQS could not take for reasons on its own side once more.
+// Resolves to the entries that were not sent.
+const sendBatch = async (queueUrl, batch, retry) => {
+    let failed;
+    let retryable;
+    try {
+        const data = await sqs.sendMessageBatch({
+            QueueUrl: queueUrl,
+            Entries: batch.map(entry => ({Id: entry.id, MessageBody: entry.body}))
+        }).promise();
+        failed = data.Failed.map(error => {
+            console.log("Failed to add record to queue: " + error.Code + " " + error.Message);
+            return Object.assign(batch.find(entry => entry.id === error.Id), {senderFault: error.SenderFault});
+        });
+        retryable = failed.filter(entry => !entry.senderFault);
+    } catch (err) {
+        console.log("There was an Error: ", err);
+        failed = batch;
+        retryable = batch;
+    }
+    if (retry && retryable.length > 0) {
+        const stillFailed = await sendBatch(queueUrl, retryable, false);
+        return failed.filter(entry => entry.senderFault || stillFailed.includes(entry));
+    }
+    return failed;
 }
 
 exports.almaErrorHandler =  function(event, context) {
@@ -44,7 +110,12 @@ exports.almaErrorHandler =  function(event, context) {
             queueUrl = process.env.SqsUrlAlmaQ;
             console.log("Sending message to updateQueue")
         }
-        let params = {MessageBody: record.body, QueueUrl: queueUrl};
+        // Lets the AlmaUpdater tell the messages coming back from the DLQ from those on their first attempt
+        let params = {
+            MessageBody: record.body,
+            QueueUrl: queueUrl,
+            MessageAttributes: {Redriven: {DataType: 'String', StringValue: 'true'}}
+        };
         sqs.sendMessage(params).promise()
             .then(data => console.log("Successfully added message to queue", data.MessageId))
             .catch(err => console.log("There was an Error: ", err));
@@ -0,0 +1,84 @@
+package no.unit.alma;
+
+import no.unit.exceptions.ParsingException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses and serializes the mock records once per operation, with the factories and builders
+ * DocumentXmlParser keeps per thread, and with new factories on every call as the parser did before.
+ * Run with ./gradlew jmh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentXmlParserBenchmark {
+
+    @Param({"/Mock_xml.xml", "/Mock_Electronic_xml.xml"})
+    public String recordFile;
+
+    private final DocumentXmlParser parser = new DocumentXmlParser();
+    private String xml;
+
+    /**
+     * Reads the mock record the same way the tests do, one trimmed line after the other.
+     * @throws Exception when the record can't be read.
+     */
+    @Setup
+    public void readRecord() throws Exception {
+        InputStream stream = DocumentXmlParserBenchmark.class.getResourceAsStream(recordFile);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line.trim());
+            }
+            xml = sb.toString();
+        }
+    }
+
+    @Benchmark
+    public String sharedFactories() throws ParsingException {
+        return parser.convertDocToString(parser.asDocument(xml));
+    }
+
+    @Benchmark
+    public String newFactoriesPerCall() throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        String removedMarc = xml.replace(DocumentXmlParser.MARC_PREFIX, DocumentXmlParser.EMPTY_STRING);
+        Document doc = factory.newDocumentBuilder().parse(new InputSource(new StringReader(removedMarc)));
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(doc), new StreamResult(writer));
+        return writer.toString().replaceAll("\n|\r", "");
+    }
+}
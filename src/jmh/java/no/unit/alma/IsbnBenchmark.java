@@ -0,0 +1,37 @@
+package no.unit.alma;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts isbn10 to isbn13 and back, as every isbn is looked up in alma-sru in both forms.
+ * Run with ./gradlew jmh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IsbnBenchmark {
+
+    @Param({"8210053418", "9788210053412"})
+    public String isbn;
+
+    private final AlmaHelper almaHelper = new AlmaHelper();
+
+    @Benchmark
+    public String convertIsbn() {
+        return almaHelper.convertIsbn(isbn);
+    }
+}
@@ -0,0 +1,122 @@
+package no.unit.alma;
+
+import no.unit.scheduler.UpdateItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates bib records of a given size for the benchmarks, shaped like the ones the Alma bibs api answers with:
+ * on one line, the bib metadata first and the marc record last, with the datafields in tag order.
+ * The 035 fields tell an electronic record, with an (EXLCZ) number, from a print record. Every record already
+ * has the 856 of the short description, so the rewrite finds one update that exists and inserts the others.
+ * The same arguments always give the same record.
+ */
+public final class MarcXmlGenerator {
+
+    /**
+     * The two kinds of records the updater tells apart by the 035 fields.
+     */
+    public enum Variant { PRINT, ELECTRONIC }
+
+    public static final String MMS_ID = "991325803064702201";
+    public static final String ISBN = "9788210053412";
+    public static final String SHORT_DESCRIPTION = "Beskrivelse fra forlaget (kort)";
+    public static final String SHORT_DESCRIPTION_URL = "content-url-com/" + ISBN + "/description_short";
+
+    private static final int[] TAGS = {20, 35, 40, 41, 82, 100, 245, 246, 260, 300, 500, 650, 700, 856, 901};
+    private static final String[] CODES = {"a", "b", "c", "q"};
+    private static final String WORDS = "Hobbiten Smaugs \u00f8demark i bilder Tiden Oslo katalog beskrivelse forlag";
+    private static final long SEED = 47L;
+
+    private MarcXmlGenerator() {
+    }
+
+    /**
+     * Generates a bib record.
+     * @param mmsId The mms_id of the record.
+     * @param datafields The number of datafields in the marc record, at least 3 for the 020, 035 and 856.
+     * @param variant Whether the 035 fields mark the record as electronic.
+     * @return The bib record.
+     */
+    public static String generate(String mmsId, int datafields, Variant variant) {
+        Random random = new Random(SEED + datafields);
+        StringBuilder xml = new StringBuilder(datafields * 120);
+        xml.append("<bib><mms_id>").append(mmsId).append("</mms_id><record_format>marc21</record_format>")
+                .append("<title>Generated record</title><isbn>").append(ISBN).append("</isbn>")
+                .append("<created_by>import</created_by><suppress_from_publishing>false</suppress_from_publishing>")
+                .append("<record><leader>01044cam a2200301 c 4500</leader>")
+                .append("<controlfield tag=\"001\">").append(mmsId).append("</controlfield>")
+                .append("<controlfield tag=\"005\">20160622160726.0</controlfield>")
+                .append("<controlfield tag=\"008\">141124s2013    no#||||j||||||000|0|nob| </controlfield>");
+        /* Spread the datafields over the tags, keeping them in tag order like Alma does. */
+        int others = Math.max(0, datafields - 3);
+        for (int t = 0; t < TAGS.length; t++) {
+            int tag = TAGS[t];
+            int count = others / TAGS.length + (t < others % TAGS.length ? 1 : 0);
+            if (tag == 20) {
+                datafield(xml, tag, "a", ISBN);
+            } else if (tag == 35) {
+                datafield(xml, tag, "a", variant == Variant.ELECTRONIC
+                        ? "(EXLCZ)99371000000100062" + random.nextInt(10) : "(NO-TrBIB)13258030" + random.nextInt(10));
+            } else if (tag == 856) {
+                xml.append("<datafield ind1=\"4\" ind2=\"2\" tag=\"856\">")
+                        .append("<subfield code=\"3\">").append(SHORT_DESCRIPTION).append("</subfield>")
+                        .append("<subfield code=\"u\">").append(SHORT_DESCRIPTION_URL).append("</subfield>")
+                        .append("</datafield>");
+            }
+            for (int i = 0; i < count; i++) {
+                datafield(xml, tag, CODES[random.nextInt(CODES.length)], text(random));
+            }
+        }
+        return xml.append("</record></bib>").toString();
+    }
+
+    /**
+     * Generates a bibs collection, as the bibs api answers a request for many mms_id's.
+     * @param records The number of records in the collection.
+     * @param datafields The number of datafields in every record.
+     * @param variant Whether the records are electronic.
+     * @return The bibs collection.
+     */
+    public static String generateBibs(int records, int datafields, Variant variant) {
+        StringBuilder xml = new StringBuilder("<bibs total_record_count=\"").append(records).append("\">");
+        for (int i = 0; i < records; i++) {
+            xml.append(generate(String.valueOf(Long.parseLong(MMS_ID) + i), datafields, variant));
+        }
+        return xml.append("</bibs>").toString();
+    }
+
+    /**
+     * The updates a new record typically gets: the short description, which the generated records already
+     * have, an image and an audio file.
+     * @return The UpdateItems.
+     */
+    public static List<UpdateItem> updateItems() {
+        List<UpdateItem> items = new ArrayList<>();
+        items.add(updateItem(SHORT_DESCRIPTION, SHORT_DESCRIPTION_URL));
+        items.add(updateItem("Miniatyrbilde", "content-url-com/images/small/2/1/" + ISBN + ".jpg"));
+        items.add(updateItem("Lydfil", "content-url-com/files/audio/mp3/2/1/" + ISBN + ".mp3"));
+        return items;
+    }
+
+    private static UpdateItem updateItem(String specifiedMaterial, String link) {
+        UpdateItem item = new UpdateItem();
+        item.setIsbn(ISBN);
+        item.setSpecifiedMaterial(specifiedMaterial);
+        item.setLink(link);
+        return item;
+    }
+
+    private static void datafield(StringBuilder xml, int tag, String code, String value) {
+        xml.append("<datafield ind1=\" \" ind2=\" \" tag=\"").append(String.format("%03d", tag)).append("\">")
+                .append("<subfield code=\"").append(code).append("\">").append(value).append("</subfield>")
+                .append("</datafield>");
+    }
+
+    private static String text(Random random) {
+        int start = random.nextInt(WORDS.length() / 2);
+        return WORDS.substring(start, start + 10 + random.nextInt(WORDS.length() / 2 - 10));
+    }
+}
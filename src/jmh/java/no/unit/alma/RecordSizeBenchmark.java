@@ -0,0 +1,193 @@
+package no.unit.alma;
+
+import no.unit.exceptions.ParsingException;
+import no.unit.scheduler.UpdateItem;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the record steps of an update on generated records from 10 to 2000 datafields, print and electronic:
+ * parsing, telling electronic from print, the DOM and StAX rewrites and splitting a bibs collection.
+ * Reports throughput and sampled percentiles, run with ./gradlew jmh.
+ * peakHeapDom and peakHeapStax report the peak heap of one rewrite as the peakHeapBytes counter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordSizeBenchmark {
+
+    private static final int RECORDS_PER_COLLECTION = 10;
+
+    @Param({"10", "100", "500", "2000"})
+    public int datafields;
+
+    @Param({"PRINT", "ELECTRONIC"})
+    public MarcXmlGenerator.Variant variant;
+
+    private final DocumentXmlParser parser = new DocumentXmlParser();
+    private final BibRecordRewriter domRewriter = new DomRecordRewriter();
+    private final BibRecordRewriter staxRewriter = new StaxRecordRewriter();
+    private final List<UpdateItem> updateItems = MarcXmlGenerator.updateItems();
+    private String xml;
+    private String bibs;
+
+    @Setup
+    public void generateRecords() {
+        xml = MarcXmlGenerator.generate(MarcXmlGenerator.MMS_ID, datafields, variant);
+        bibs = MarcXmlGenerator.generateBibs(RECORDS_PER_COLLECTION, datafields, variant);
+    }
+
+    @Benchmark
+    public Document parse() throws ParsingException {
+        return parser.asDocument(xml);
+    }
+
+    @Benchmark
+    public int determineElectronicOrPrint() throws ParsingException {
+        return parser.determineElectronicOrPrint(xml);
+    }
+
+    @Benchmark
+    public RewriteResult rewriteDom() throws ParsingException {
+        return domRewriter.rewriteRecord(updateItems, xml);
+    }
+
+    @Benchmark
+    public RewriteResult rewriteStax() throws ParsingException {
+        return staxRewriter.rewriteRecord(updateItems, xml);
+    }
+
+    @Benchmark
+    public Map<String, String> splitBibs() throws ParsingException {
+        return parser.splitBibs(bibs);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    @Fork(value = 1, jvmArgsAppend = {"-XX:+UseSerialGC", "-Xmn1m"})
+    public RewriteResult peakHeapDom(PeakHeap peakHeap) throws ParsingException {
+        return domRewriter.rewriteRecord(updateItems, xml);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    @Fork(value = 1, jvmArgsAppend = {"-XX:+UseSerialGC", "-Xmn1m"})
+    public RewriteResult peakHeapStax(PeakHeap peakHeap) throws ParsingException {
+        return staxRewriter.rewriteRecord(updateItems, xml);
+    }
+
+    /**
+     * The most heap in use after a garbage collection during one rewrite, above what was in use after the
+     * collection before it: what the engine holds on to at its peak, not what it allocates.
+     * The young generation is kept at 1 MB so records from about 500 datafields up are collected during the
+     * rewrite; smaller records finish between two collections and report 0.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PeakHeap implements NotificationListener {
+
+        public long peakHeapBytes;
+
+        private final AtomicLong collections = new AtomicLong();
+        private final AtomicLong usedAfterCollection = new AtomicLong();
+        private final AtomicLong peakUsed = new AtomicLong();
+        private long seenAtStart;
+        private long baseline;
+
+        @Setup(Level.Trial)
+        public void listen() {
+            seenAtStart = collectionCount();
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stopListening() throws ListenerNotFoundException {
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) collector).removeNotificationListener(this);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void collect() throws InterruptedException {
+            System.gc();
+            awaitNotifications();
+            baseline = usedAfterCollection.get();
+            peakUsed.set(baseline);
+        }
+
+        @TearDown(Level.Invocation)
+        public void readPeak() throws InterruptedException {
+            awaitNotifications();
+            peakHeapBytes = peakUsed.get() - baseline;
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            long used = 0;
+            for (MemoryUsage usage : GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                    .getGcInfo().getMemoryUsageAfterGc().values()) {
+                used += usage.getUsed();
+            }
+            usedAfterCollection.set(used);
+            peakUsed.accumulateAndGet(used, Math::max);
+            collections.incrementAndGet();
+        }
+
+        /**
+         * The notifications come on a thread of their own, so wait until every collection so far is seen.
+         */
+        private void awaitNotifications() throws InterruptedException {
+            long expected = collectionCount() - seenAtStart;
+            while (collections.get() < expected) {
+                Thread.sleep(1);
+            }
+        }
+
+        private static long collectionCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += collector.getCollectionCount();
+            }
+            return count;
+        }
+    }
+}
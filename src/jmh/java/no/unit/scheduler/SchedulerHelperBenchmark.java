@@ -0,0 +1,86 @@
+package no.unit.scheduler;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import no.unit.alma.FakeEnvironment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the stream events of the test resources into UpdateItems: the whole message, and the diff and link
+ * steps on their own. Reports throughput and sampled percentiles, run with ./gradlew jmh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchedulerHelperBenchmark {
+
+    private static final String MOCK_EVENT = "/MockEvent.JSON";
+    private static final String NEW_VERSION = "/newVersion.JSON";
+    private static final String OLD_VERSION = "/oldVersion.JSON";
+    private static final String MODIFY = "\"MODIFY\"";
+
+    /* A MODIFY event is diffed against the old image, an INSERT event only has the new one. */
+    @Param({"MODIFY", "INSERT"})
+    public String eventName;
+
+    private final SchedulerHelper schedulerHelper = new SchedulerHelper(new FakeEnvironment(Map.of(
+            "STANDARD_CONTENT_URL", "content-url-com/")));
+    private String event;
+    private BibItem newVersion;
+    private BibItem oldVersion;
+
+    /**
+     * Reads the event and the bib items from the test resources.
+     * @throws IOException when a resource can't be read.
+     */
+    @Setup
+    public void readResources() throws IOException {
+        event = read(MOCK_EVENT).replace(MODIFY, "\"" + eventName + "\"");
+        /* BibItem's fields are transient, so Gson has to be told to read them. */
+        Gson gson = new GsonBuilder().excludeFieldsWithModifiers(Modifier.STATIC).create();
+        newVersion = gson.fromJson(read(NEW_VERSION), BibItem.class);
+        oldVersion = gson.fromJson(read(OLD_VERSION), BibItem.class);
+    }
+
+    @Benchmark
+    public List<UpdateItem> splitEventIntoUpdateItems() {
+        return schedulerHelper.splitEventIntoUpdateItems(event);
+    }
+
+    @Benchmark
+    public BibItem extractDiffs() {
+        return schedulerHelper.extractDiffs(newVersion, oldVersion);
+    }
+
+    @Benchmark
+    public List<UpdateItem> createLinks() {
+        return schedulerHelper.createLinks(newVersion);
+    }
+
+    private static String read(String resource) throws IOException {
+        try (InputStream stream = SchedulerHelperBenchmark.class.getResourceAsStream(resource)) {
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
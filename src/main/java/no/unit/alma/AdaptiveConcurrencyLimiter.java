@@ -0,0 +1,217 @@
+package no.unit.alma;
+
+import no.unit.metrics.Metrics;
+import software.amazon.awssdk.http.HttpStatusCode;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Limits the number of calls to Alma in flight, and adapts the limit to how Alma is doing (AIMD).
+ * While the calls answer close to the fastest latency seen, the limit grows by about one per round of calls.
+ * The latency is measured from when the call is sent (Permit.startCall), not from when it got its permit.
+ * A timeout (HttpTimeoutException), a dropped connection, a 429 or a 5xx halves the limit. A call that failed
+ * before it reached Alma, like one without an api key, does not. Calls over the limit wait in line without
+ * holding a thread.
+ * Every cut is counted as AlmaLimitDrops, and the time every call waited for its permit is recorded as
+ * AlmaQueueingDelay.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    public static final double DECREASE_FACTOR = 0.5;
+    public static final double LATENCY_TOLERANCE = 2.0;
+    public static final double BASELINE_DRIFT = 0.05;
+
+    private static final int REQUEST_TIMEOUT = 408;
+    private static final int MIN_LIMIT = 1;
+
+    private final transient int maxLimit;
+    private final transient Clock clock;
+    private final transient Object lock = new Object();
+    private final transient Deque<Waiter> waiting = new ArrayDeque<>();
+    private final transient Metrics metrics = Metrics.getInstance();
+    private transient double limit;
+    private transient int inFlight;
+    private transient double baselineLatencyMillis = -1;
+    private transient long drops;
+    private transient long queued;
+    private transient long queueingMillis;
+
+    /**
+     * Creates a limiter.
+     * @param initialLimit The limit to start at.
+     * @param maxLimit The highest the limit can grow to.
+     * @param clock The clock to measure the latency and the queueing delay with.
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int maxLimit, Clock clock) {
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(MIN_LIMIT, initialLimit));
+        this.clock = clock;
+    }
+
+    /**
+     * Leave to send one call. It must be released when the call is done.
+     */
+    public final class Permit {
+
+        private transient long startedAt;
+        private transient boolean released;
+
+        private Permit(long startedAt) {
+            this.startedAt = startedAt;
+        }
+
+        /**
+         * Starts measuring the latency of the call over. Called when the call is sent, so a wait after getting the
+         * permit, like for a rate limit, is not taken for Alma being slow.
+         */
+        public void startCall() {
+            synchronized (lock) {
+                startedAt = clock.millis();
+            }
+        }
+
+        /**
+         * Gives the leave back, and lets the outcome of the call adjust the limit. Only the first release counts.
+         * @param response The response, null if the call failed without one.
+         * @param error The exception the call failed with, null if it gave a response.
+         */
+        public void release(HttpResponse<?> response, Throwable error) {
+            long latencyMillis;
+            synchronized (lock) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                latencyMillis = clock.millis() - startedAt;
+            }
+            onComplete(latencyMillis, isOverloaded(response, error));
+        }
+    }
+
+    private static final class Waiter {
+
+        private final transient CompletableFuture<Permit> permit = new CompletableFuture<>();
+        private final transient long enqueuedAt;
+
+        private Waiter(long enqueuedAt) {
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /**
+     * Gets leave to send a call, right away if the limit allows it, otherwise when an earlier call is done.
+     * @return A future with the permit.
+     */
+    public CompletableFuture<Permit> acquireAsync() {
+        synchronized (lock) {
+            if (!waiting.isEmpty() || inFlight >= (int) limit) {
+                Waiter waiter = new Waiter(clock.millis());
+                waiting.add(waiter);
+                return waiter.permit;
+            }
+            inFlight++;
+        }
+        metrics.record(Metrics.ALMA_QUEUEING_DELAY, 0, Metrics.Unit.MILLISECONDS);
+        return CompletableFuture.completedFuture(new Permit(clock.millis()));
+    }
+
+    private void onComplete(long latencyMillis, boolean overloaded) {
+        List<Waiter> ready = new ArrayList<>();
+        long now = clock.millis();
+        synchronized (lock) {
+            boolean limitReached = inFlight >= (int) limit;
+            inFlight--;
+            if (overloaded) {
+                limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+                drops++;
+            } else {
+                if (baselineLatencyMillis < 0 || latencyMillis < baselineLatencyMillis) {
+                    baselineLatencyMillis = latencyMillis;
+                } else {
+                    baselineLatencyMillis += (latencyMillis - baselineLatencyMillis) * BASELINE_DRIFT;
+                }
+                if (limitReached && latencyMillis <= baselineLatencyMillis * LATENCY_TOLERANCE) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+            while (!waiting.isEmpty() && inFlight < (int) limit) {
+                Waiter waiter = waiting.poll();
+                inFlight++;
+                queued++;
+                queueingMillis += now - waiter.enqueuedAt;
+                ready.add(waiter);
+            }
+        }
+        if (overloaded) {
+            metrics.count(Metrics.ALMA_LIMIT_DROPS);
+        }
+        for (Waiter waiter : ready) {
+            metrics.record(Metrics.ALMA_QUEUEING_DELAY, now - waiter.enqueuedAt, Metrics.Unit.MILLISECONDS);
+            waiter.permit.complete(new Permit(now));
+        }
+    }
+
+    private static boolean isOverloaded(HttpResponse<?> response, Throwable error) {
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+            return cause instanceof IOException;
+        }
+        if (response == null) {
+            return true;
+        }
+        int status = response.statusCode();
+        return status == HttpStatusCode.THROTTLING || status == REQUEST_TIMEOUT
+                || status >= HttpStatusCode.INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * The number of calls that can be in flight now.
+     * @return The current limit.
+     */
+    public int getLimit() {
+        synchronized (lock) {
+            return (int) limit;
+        }
+    }
+
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * The number of times the limit was cut because of a timeout, a dropped connection, a 429 or a 5xx.
+     * @return The number of cuts.
+     */
+    public long getDrops() {
+        synchronized (lock) {
+            return drops;
+        }
+    }
+
+    /**
+     * How long the calls that had to wait for the limit waited, on average.
+     * @return The average queueing delay in milliseconds, 0 if no call had to wait.
+     */
+    public long getAverageQueueingDelayMillis() {
+        synchronized (lock) {
+            return queued == 0 ? 0 : queueingMillis / queued;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "limit=" + getLimit() + ", inFlight=" + getInFlight() + ", drops=" + getDrops()
+                + ", averageQueueingDelayMillis=" + getAverageQueueingDelayMillis();
+    }
+}
@@ -0,0 +1,42 @@
+package no.unit.alma;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Builds the requests that retrieve many bib records from the Alma bibs api at once.
+ * The api takes a comma separated list of at most 100 mms_id's and answers with a bibs collection.
+ */
+public class AlmaBibsClient {
+
+    public static final int MAX_MMS_IDS_PER_REQUEST = 100;
+    public static final String MMS_ID_PARAMETER = "?mms_id=";
+
+    private static final String SLASH = "/";
+    private static final String COMMA = ",";
+
+    private final transient String bibsUri;
+
+    /**
+     * Creates a client.
+     * @param almaApiHost The bibs api, like the one the single records are retrieved from.
+     */
+    public AlmaBibsClient(String almaApiHost) {
+        this.bibsUri = almaApiHost.endsWith(SLASH)
+                ? almaApiHost.substring(0, almaApiHost.length() - SLASH.length())
+                : almaApiHost;
+    }
+
+    /**
+     * Creates the uri that retrieves the records.
+     * @param mmsIds The mms_id's of the records, at most MAX_MMS_IDS_PER_REQUEST.
+     * @return The uri.
+     */
+    public URI createGetUri(List<String> mmsIds) {
+        if (mmsIds.size() > MAX_MMS_IDS_PER_REQUEST) {
+            throw new IllegalArgumentException("At most " + MAX_MMS_IDS_PER_REQUEST
+                    + " mms_id's can be retrieved at once, got " + mmsIds.size());
+        }
+        return URI.create(bibsUri + MMS_ID_PARAMETER + String.join(COMMA, mmsIds));
+    }
+}
@@ -1,78 +1,179 @@
 package no.unit.alma;
 
 import nva.commons.core.JacocoGenerated;
+import software.amazon.awssdk.http.HttpStatusCode;
 
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
-import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
 public final class AlmaConnection {
 
-    private static AlmaConnection instance = new AlmaConnection();
-
     private static final  String AUTHORIZATION_KEY = "Authorization";
     private static final  String APIKEY_KEY = "apikey";
     private static final  String SPACE_KEY = " ";
-    private static final Config config = new Config();
 
-    private static final HttpClient httpClient = HttpClient.newBuilder()
-            .version(HttpClient.Version.HTTP_2)
-            .build();
+    /* Fetching the key blocks, so it is not done on the threads of the shared HttpClient. */
+    @SuppressWarnings("PMD.DoNotUseThreads")
+    private static final Executor KEY_REFRESH_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "alma-key-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final transient Config config;
+    private final transient HttpClient httpClient;
+    private final transient AlmaBibsClient bibsClient;
+    private final transient RateLimiter getLimiter;
+    private final transient RateLimiter putLimiter;
+
+    /* The connection shared by every invocation in the container, made the first time it is used. */
+    private static final Object INSTANCE_LOCK = new Object();
+    private static AlmaConnection instance;
 
-    private AlmaConnection(){
+    /**
+     * Creates a connection with its own rate limits, for when the calls should not go to the Alma of the shared
+     * config, like in a load test.
+     * @param config The config with the Alma api host, key and rates.
+     * @param httpClient The client to send the requests with.
+     */
+    public AlmaConnection(Config config, HttpClient httpClient) {
+        this.config = config;
+        this.httpClient = httpClient;
+        this.bibsClient = new AlmaBibsClient(config.almaApiHost);
+        this.getLimiter = new RateLimiter(config.almaGetRate, Clock.systemUTC());
+        this.putLimiter = new RateLimiter(config.almaPutRate, Clock.systemUTC());
     }
 
+    /**
+     * The connection for this container, made from the shared config.
+     * @return The shared connection.
+     */
     @JacocoGenerated
     public static AlmaConnection getInstance() {
-        return instance;
+        synchronized (INSTANCE_LOCK) {
+            if (instance == null) {
+                instance = new AlmaConnection(Config.getInstance(), SharedHttpClient.get());
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Forgets the shared connection, so a test that made it leaves nothing behind for the next one.
+     */
+    static void resetInstance() {
+        synchronized (INSTANCE_LOCK) {
+            instance = null;
+        }
     }
 
     /**
-     * Sends a get request to the Alma api.
+     * Sends a get request to the Alma api without blocking the calling thread.
      * @param mmsId the mms_id of the bib-post you want to retrieve
-     * @return the http-response in the shape of a String
-     * @throws IOException When something goes wrong.
-     * @throws InterruptedException When something goes wrong.
+     * @param timeout how long to wait for the response before the request fails with an HttpTimeoutException
+     * @param onSend run right before every exchange with Alma starts, after the waits for the rate limit
+     * @return a future completed with the http-response, or exceptionally if the request fails
      */
     @JacocoGenerated
-    public HttpResponse<String> sendGet(String mmsId)
-            throws IOException,  InterruptedException {
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .GET()
-                .uri(URI.create(config.almaApiHost + mmsId))
-                .setHeader(AUTHORIZATION_KEY, APIKEY_KEY + SPACE_KEY + config.secretKey)
-                .build();
-
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    public CompletableFuture<HttpResponse<String>> sendGetAsync(String mmsId, Duration timeout, Runnable onSend) {
+        return sendAsync(getLimiter, () -> createGetRequest(mmsId, timeout), onSend);
+    }
 
-        return response;
+    /**
+     * Sends one get request for many records to the Alma api without blocking the calling thread.
+     * @param mmsIds the mms_id's of the bib-posts you want to retrieve, at most 100
+     * @param timeout how long to wait for the response before the request fails with an HttpTimeoutException
+     * @param onSend run right before every exchange with Alma starts, after the waits for the rate limit
+     * @return a future completed with the bibs collection, or exceptionally if the request fails
+     */
+    @JacocoGenerated
+    public CompletableFuture<HttpResponse<String>> sendGetAsync(List<String> mmsIds, Duration timeout,
+            Runnable onSend) {
+        return sendAsync(getLimiter, () -> createGetRequest(bibsClient.createGetUri(mmsIds), timeout), onSend);
     }
 
     /**
-     * Sends a put request to the Alma api.
+     * Sends a put request to the Alma api without blocking the calling thread.
      * @param mmsId the mms_id of the bib-post you want to update
      * @param xml the new xml that should replace the old bib-post
-     * @return the Http-response in the form of a String
-     * @throws IOException When something goes wrong.
-     * @throws InterruptedException When something goes wrong.
+     * @param timeout how long to wait for the response before the request fails with an HttpTimeoutException
+     * @param onSend run right before every exchange with Alma starts, after the waits for the rate limit
+     * @return a future completed with the http-response, or exceptionally if the request fails
+     */
+    @JacocoGenerated
+    public CompletableFuture<HttpResponse<String>> sendPutAsync(String mmsId, String xml, Duration timeout,
+            Runnable onSend) {
+        return sendAsync(putLimiter, () -> createPutRequest(mmsId, xml, timeout), onSend);
+    }
+
+    /**
+     * Sends the request when the limiter allows it, and lets the limiter read the remaining quota from the answer.
+     * Waits for the limiter without holding a thread. If Alma rejects the api key, the key is fetched again on
+     * KEY_REFRESH_EXECUTOR and the request is sent once more with the new key.
+     * onSend runs before every exchange, so the time spent waiting here can be told apart from the time Alma takes.
      */
     @JacocoGenerated
-    public HttpResponse<String> sendPut(String mmsId, String xml)
-            throws IOException, InterruptedException {
-        HttpRequest request = HttpRequest.newBuilder()
+    private CompletableFuture<HttpResponse<String>> sendAsync(RateLimiter limiter, Supplier<HttpRequest> request,
+            Runnable onSend) {
+        return limiter.acquireAsync()
+                .thenCompose(ready -> send(request.get(), onSend))
+                .thenCompose(response -> {
+                    if (response.statusCode() != HttpStatusCode.UNAUTHORIZED) {
+                        return CompletableFuture.completedFuture(response);
+                    }
+                    return CompletableFuture.runAsync(this::refreshSecretKey, KEY_REFRESH_EXECUTOR)
+                            .thenCompose(refreshed -> limiter.acquireAsync())
+                            .thenCompose(ready -> send(request.get(), onSend));
+                })
+                .thenApply(limiter::observe);
+    }
+
+    @JacocoGenerated
+    private CompletableFuture<HttpResponse<String>> send(HttpRequest request, Runnable onSend) {
+        onSend.run();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    @JacocoGenerated
+    private void refreshSecretKey() {
+        System.out.println("Alma rejected the api key, fetching it again");
+        config.refreshSecretKey();
+    }
+
+    @JacocoGenerated
+    private HttpRequest createGetRequest(String mmsId, Duration timeout) {
+        return createGetRequest(URI.create(config.almaApiHost + mmsId), timeout);
+    }
+
+    private HttpRequest createGetRequest(URI uri, Duration timeout) {
+        return HttpRequest.newBuilder()
+                .GET()
+                .uri(uri)
+                .timeout(timeout)
+                .setHeader(AUTHORIZATION_KEY, APIKEY_KEY + SPACE_KEY + config.getSecretKey())
+                .build();
+    }
+
+    @JacocoGenerated
+    private HttpRequest createPutRequest(String mmsId, String xml, Duration timeout) {
+        return HttpRequest.newBuilder()
                 .PUT(HttpRequest.BodyPublishers.ofString(xml))
                 .uri(URI.create(config.almaApiHost + mmsId))
-                .setHeader(AUTHORIZATION_KEY, APIKEY_KEY + SPACE_KEY + config.secretKey) // add request header
+                .timeout(timeout)
+                .setHeader(AUTHORIZATION_KEY, APIKEY_KEY + SPACE_KEY + config.getSecretKey()) // add request header
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_XML)
                 .build();
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
-        return response;
     }
 
 }
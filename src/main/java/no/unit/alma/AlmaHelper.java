@@ -1,123 +1,297 @@
 package no.unit.alma;
 
+import no.unit.exceptions.CircuitOpenException;
+import no.unit.exceptions.ParsingException;
+import no.unit.metrics.Metrics;
+import no.unit.profiling.PipelineEvents;
 import software.amazon.awssdk.http.HttpStatusCode;
 
-import java.io.IOException;
 import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class AlmaHelper {
 
     private static final String TAG_978 = "978";
     private static final int TAG_11 = 11;
     private static final int TAG_10 = 10;
+    private static final String CIRCUIT_OPEN_MESSAGE = "The circuit to ALMA is open, the call was not sent";
+
+    private final transient DocumentXmlParser xmlParser = new DocumentXmlParser();
+    private final transient Metrics metrics = Metrics.getInstance();
+    private final transient AdaptiveConcurrencyLimiter limiter;
+    private final transient CircuitBreaker circuitBreaker;
+    private final transient Supplier<AlmaConnection> connection;
 
     /**
-     * A method that sends a get request to ALMA.
-     * @param mmsId The mms id needed to specify which post to retrieve.
-     * @return A http response mirroring the response from the get request sent to ALMA.
-     * @throws InterruptedException When something goes wrong.
-     * @throws IOException When something goes wrong.
+     * Creates a helper that sends the asynchronous calls to ALMA one at a time.
      */
-    private HttpResponse<String> getBibRecordFromAlma(String mmsId)
-            throws InterruptedException, IOException {
-        HttpResponse<String> almaResponse = AlmaConnection.getInstance().sendGet(mmsId);
-        return almaResponse;
+    public AlmaHelper() {
+        this(new AdaptiveConcurrencyLimiter(1, 1, Clock.systemUTC()), new CircuitBreaker());
     }
 
     /**
-     * A method that sends a put request to ALMA.
-     * @param mmsId The mms id needed to specify which post to update.
-     * @param updatedXml The string which we want to update the post with.
-     * @return A http response mirroring the response from the put request sent to ALMA.
-     * @throws InterruptedException When something goes wrong.
-     * @throws IOException When something goes wrong.
+     * Creates a helper.
+     * @param limiter Limits the number of asynchronous calls to ALMA in flight, shared by all mms_id's and isbns.
+     * @param circuitBreaker Stops the calls to ALMA while ALMA is down.
      */
-    private HttpResponse<String> putBibRecordInAlma(String mmsId, String updatedXml)
-            throws InterruptedException, IOException {
-        HttpResponse<String> almaResponse = AlmaConnection.getInstance().sendPut(mmsId,
-            updatedXml);
-        return almaResponse;
+    public AlmaHelper(AdaptiveConcurrencyLimiter limiter, CircuitBreaker circuitBreaker) {
+        this(limiter, circuitBreaker, AlmaConnection::getInstance);
     }
 
     /**
-     * Method to retry GET-calls to ALMA, sleeps for 3 seconds before retrying.
+     * Creates a helper that sends the calls with the given connection instead of the shared one.
+     * @param limiter Limits the number of asynchronous calls to ALMA in flight, shared by all mms_id's and isbns.
+     * @param circuitBreaker Stops the calls to ALMA while ALMA is down.
+     * @param connection Gives the connection to ALMA, first asked for when a call is sent.
+     */
+    public AlmaHelper(AdaptiveConcurrencyLimiter limiter, CircuitBreaker circuitBreaker,
+            Supplier<AlmaConnection> connection) {
+        this.limiter = limiter;
+        this.circuitBreaker = circuitBreaker;
+        this.connection = connection;
+    }
+
+    public AdaptiveConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Retrieves a record from ALMA, and retries as the retryPolicy says, waiting between the attempts without
+     * holding a thread.
      * @param mmsId For identifying the record in ALMA.
-     * @return HttpResponse with the ALMA response or null if failing.
-     * @throws InterruptedException when the sleep is interrupted.
+     * @param retryPolicy Decides whether and when to retry.
+     * @return A future with the ALMA response of the last attempt, or null if that attempt failed.
      */
-    public HttpResponse<String> getBibRecordFromAlmaWithRetries(String mmsId)
-            throws InterruptedException, IOException {
-        HttpResponse<String> almaResponse;
-        try {
+    public CompletableFuture<HttpResponse<String>> getBibRecordFromAlmaWithRetriesAsync(String mmsId,
+            RetryPolicy retryPolicy) {
+        return withRetriesAsync(new AlmaRequest(Metrics.ALMA_GET, mmsId, 0,
+                onSend -> connection.get().sendGetAsync(mmsId, retryPolicy.requestTimeout(), onSend)),
+                retryPolicy, 0);
+    }
+
+    /**
+     * Updates a record in ALMA, and retries as the retryPolicy says, waiting between the attempts without holding
+     * a thread.
+     * @param mmsId For identifying the record in ALMA.
+     * @param updatedRecord The string which we want to update the post with.
+     * @param retryPolicy Decides whether and when to retry.
+     * @return A future with the ALMA response of the last attempt, or null if that attempt failed.
+     */
+    public CompletableFuture<HttpResponse<String>> putBibRecordInAlmaWithRetriesAsync(String mmsId,
+            String updatedRecord, RetryPolicy retryPolicy) {
+        return withRetriesAsync(new AlmaRequest(Metrics.ALMA_PUT, mmsId, updatedRecord.length(),
+                onSend -> connection.get().sendPutAsync(mmsId, updatedRecord, retryPolicy.requestTimeout(), onSend)),
+                retryPolicy, 0);
+    }
+
+    /**
+     * Retrieves many records from ALMA with one get request per MAX_MMS_IDS_PER_REQUEST mms_id's.
+     * Every request is retried on its own, the same way as the get requests for a single record.
+     * @param mmsIds For identifying the records in ALMA.
+     * @param retryPolicy Decides whether and when to retry.
+     * @return A future with a response per record, keyed by mms_id. Records that ALMA did not return, or that
+     *     were in a request that failed, are left out so the caller can get them one by one.
+     */
+    public CompletableFuture<Map<String, HttpResponse<String>>> getBibRecordsFromAlmaAsync(List<String> mmsIds,
+            RetryPolicy retryPolicy) {
+        List<CompletableFuture<Map<String, HttpResponse<String>>>> requests = new ArrayList<>();
+        for (int from = 0; from < mmsIds.size(); from += AlmaBibsClient.MAX_MMS_IDS_PER_REQUEST) {
+            List<String> chunk = List.copyOf(
+                    mmsIds.subList(from, Math.min(mmsIds.size(), from + AlmaBibsClient.MAX_MMS_IDS_PER_REQUEST)));
+            String label = chunk.get(0) + " and " + (chunk.size() - 1) + " more";
+            requests.add(withRetriesAsync(new AlmaRequest(Metrics.ALMA_GET_BATCH, label, 0,
+                    onSend -> sendGetBatchAsync(chunk, retryPolicy.requestTimeout(), onSend)), retryPolicy, 0)
+                    .thenApply(this::splitBibs));
+        }
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    Map<String, HttpResponse<String>> records = new ConcurrentHashMap<>();
+                    requests.forEach(request -> records.putAll(request.join()));
+                    return records;
+                });
+    }
 
-            almaResponse = getBibRecordFromAlma(mmsId);
-        } catch (InterruptedException | IOException e) {
-            almaResponse = null; //NOPMD
+    /**
+     * Sends one get request for at most MAX_MMS_IDS_PER_REQUEST records to ALMA.
+     * @param mmsIds For identifying the records in ALMA.
+     * @param timeout How long to wait for the response.
+     * @param onSend To run right before the request is sent to ALMA.
+     * @return A future with the bibs collection from ALMA.
+     */
+    protected CompletableFuture<HttpResponse<String>> sendGetBatchAsync(List<String> mmsIds, Duration timeout,
+            Runnable onSend) {
+        return connection.get().sendGetAsync(mmsIds, timeout, onSend);
+    }
+
+    private Map<String, HttpResponse<String>> splitBibs(HttpResponse<String> bibsResponse) {
+        Map<String, HttpResponse<String>> records = new ConcurrentHashMap<>();
+        if (bibsResponse == null || bibsResponse.statusCode() != HttpStatusCode.OK) {
+            return records;
+        }
+        long start = System.nanoTime();
+        try {
+            xmlParser.splitBibs(bibsResponse.body())
+                    .forEach((mmsId, bib) -> records.put(mmsId, new BibResponse(bibsResponse, bib)));
+        } catch (ParsingException e) {
             System.err.println(e.getMessage());
         }
+        metrics.recordSince(Metrics.SPLIT_BIBS, start);
+        return records;
+    }
 
-        if (almaResponse != null && almaResponse.statusCode() == HttpStatusCode.OK) {
-            return almaResponse;
-        } else {
+    /**
+     * An asynchronous call to ALMA that can be sent again, with the name and mms_id its attempts are recorded with.
+     * send is given what to run right before the call goes out to ALMA.
+     */
+    private static final class AlmaRequest {
 
-            TimeUnit.SECONDS.sleep(3);
-            try {
-                almaResponse = getBibRecordFromAlma(mmsId);
-            } catch (InterruptedException | IOException e) {
-                almaResponse = null; //NOPMD
-            }
-            if (almaResponse != null && almaResponse.statusCode() == HttpStatusCode.OK) {
-                return almaResponse;
-            } else {
-                TimeUnit.SECONDS.sleep(3);
-                almaResponse = getBibRecordFromAlma(mmsId);
-                return almaResponse;
-            }
+        private final transient String metric;
+        private final transient String mmsId;
+        private final transient int requestLength;
+        private final transient Function<Runnable, CompletableFuture<HttpResponse<String>>> send;
+
+        private AlmaRequest(String metric, String mmsId, int requestLength,
+                Function<Runnable, CompletableFuture<HttpResponse<String>>> send) {
+            this.metric = metric;
+            this.mmsId = mmsId;
+            this.requestLength = requestLength;
+            this.send = send;
         }
     }
 
     /**
-     * Method to retry Put-calls to ALMA, sleeps for 3 seconds before retrying.
-     * @param mmsId For identifying the record in ALMA.
-     * @return HttpResponse with the ALMA response or null if failing.
-     * @throws InterruptedException when the sleep is interrupted.
+     * Sends the request until it succeeds or the retryPolicy says to stop, and records every attempt.
+     * @return A future with the response of the last attempt, or null if that attempt failed.
      */
-    public HttpResponse<String> putBibRecordInAlmaWithRetries(String mmsId, String updatedRecord)
-            throws InterruptedException {
-        HttpResponse<String> response;
-        try {
-            response = putBibRecordInAlma(mmsId, updatedRecord);
-        } catch (InterruptedException | IOException e) {
-            response = null; //NOPMD
+    private CompletableFuture<HttpResponse<String>> withRetriesAsync(AlmaRequest request, RetryPolicy retryPolicy,
+            int attempt) {
+        return limited(request, attempt)
+                .handle((response, error) -> {
+                    if (isCircuitOpen(error)) {
+                        return CompletableFuture.<HttpResponse<String>>completedFuture(null);
+                    }
+                    if (error != null) {
+                        System.err.println(error.getMessage());
+                    }
+                    long delay = retryPolicy.retryDelayMillis(attempt, response, error);
+                    if (delay == RetryPolicy.NO_RETRY) {
+                        return CompletableFuture.completedFuture(error == null ? response : null);
+                    }
+                    metrics.count(Metrics.ALMA_RETRIES);
+                    PipelineEvents.RetrySleepEvent sleep = new PipelineEvents.RetrySleepEvent();
+                    sleep.begin();
+                    return CompletableFuture.supplyAsync(() -> {
+                        commitSleep(sleep, request, attempt, response, delay);
+                        return withRetriesAsync(request, retryPolicy, attempt + 1);
+                    }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                        .thenCompose(retry -> retry);
+                })
+                .thenCompose(next -> next);
+    }
+
+    /**
+     * Sends the request when the circuit is closed and the limiter has room for it, and gives the room back with
+     * the outcome. The time from sending the request to the outcome is recorded under the metric of the request,
+     * and as an AlmaGet or AlmaPut flight recorder event. The wait for the rate limit after the permit is not
+     * part of it, so neither the limiter nor the metric takes the pacing for Alma being slow.
+     * While the circuit is open the request fails at once with a CircuitOpenException.
+     */
+    private CompletableFuture<HttpResponse<String>> limited(AlmaRequest request, int attempt) {
+        if (!circuitBreaker.allowRequest()) {
+            return CompletableFuture.failedFuture(new CircuitOpenException(CIRCUIT_OPEN_MESSAGE));
         }
-        if (response != null && response.statusCode() == HttpStatusCode.OK) {
-            return response;
-        } else {
-            TimeUnit.SECONDS.sleep(3);
+        return limiter.acquireAsync().thenCompose(permit -> {
+            CallTimer timer = new CallTimer(permit, Metrics.ALMA_PUT.equals(request.metric)
+                    ? new PipelineEvents.AlmaPutEvent() : new PipelineEvents.AlmaGetEvent());
             try {
-                response = putBibRecordInAlma(mmsId, updatedRecord);
-            } catch (InterruptedException | IOException e) {
-                response = null; //NOPMD
-            }
-            if (response != null && response.statusCode() == HttpStatusCode.OK) {
-                return response;
-            } else {
-                TimeUnit.SECONDS.sleep(3);
-                try {
-                    response = putBibRecordInAlma(mmsId, updatedRecord);
-                } catch (InterruptedException | IOException e) {
-                    response = null; //NOPMD
-                }
-                if (response != null && response.statusCode() == HttpStatusCode.OK) {
-                    return response;
-                } else {
-                    return null;
-                }
+                return request.send.apply(timer::start).whenComplete((response, error) -> {
+                    permit.release(response, error);
+                    circuitBreaker.record(response, error);
+                    metrics.recordCall(request.metric, timer.startNanos, response, error);
+                    commitCall(timer.event, request, attempt, response);
+                });
+            } catch (RuntimeException e) {
+                permit.release(null, e);
+                circuitBreaker.record(null, e);
+                metrics.recordCall(request.metric, timer.startNanos, null, e);
+                commitCall(timer.event, request, attempt, null);
+                throw e;
             }
+        });
+    }
+
+    /**
+     * Times one attempt from when it is sent to ALMA. Until then it counts from the permit, so an attempt that
+     * fails before it is sent still gets a time.
+     */
+    private static final class CallTimer {
+
+        private final transient AdaptiveConcurrencyLimiter.Permit permit;
+        private final transient PipelineEvents.AlmaCallEvent event;
+        private transient long startNanos;
+
+        private CallTimer(AdaptiveConcurrencyLimiter.Permit permit, PipelineEvents.AlmaCallEvent event) {
+            this.permit = permit;
+            this.event = event;
+            this.startNanos = System.nanoTime();
+            event.begin();
+        }
+
+        /**
+         * Called right before the request goes out, again if it is sent again with a new api key.
+         */
+        private void start() {
+            permit.startCall();
+            startNanos = System.nanoTime();
+            event.begin();
+        }
+    }
+
+    private static void commitCall(PipelineEvents.AlmaCallEvent event, AlmaRequest request, int attempt,
+            HttpResponse<String> response) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.mmsId = request.mmsId;
+            event.attempt = attempt;
+            event.statusCode = response == null ? 0 : response.statusCode();
+            event.requestLength = request.requestLength;
+            event.responseLength = response == null || response.body() == null ? 0 : response.body().length();
+            event.commit();
         }
     }
 
+    private static void commitSleep(PipelineEvents.RetrySleepEvent event, AlmaRequest request, int attempt,
+            HttpResponse<String> response, long delay) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.call = request.metric;
+            event.mmsId = request.mmsId;
+            event.attempt = attempt;
+            event.statusCode = response == null ? 0 : response.statusCode();
+            event.delay = delay;
+            event.commit();
+        }
+    }
+
+    private static boolean isCircuitOpen(Throwable error) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        return cause instanceof CircuitOpenException;
+    }
+
     /**
      * Method for converting ISBN to 10 or 13.
      * @param isbn The isbn to be converted.
@@ -0,0 +1,34 @@
+package no.unit.alma;
+
+import no.unit.exceptions.ParsingException;
+import no.unit.scheduler.UpdateItem;
+
+import java.util.List;
+
+/**
+ * Inserts the 856/956 fields described by a list of UpdateItems into a bib record from ALMA.
+ */
+public interface BibRecordRewriter {
+
+    /**
+     * Create an XML(String) by updating the existing ALMA xml with all the UpdateItems.
+     * UpdateItems that already exist on the record are skipped.
+     * @param updateItems A list of UpdateItems.
+     * @param xmlFromAlma A String in the shape of an XML the data is retrieved from ALMA.
+     * @return The same XML data that was entered now with added fields (either 856 or 956).
+     * @throws ParsingException When something goes wrong.
+     */
+    default String rewrite(List<UpdateItem> updateItems, String xmlFromAlma) throws ParsingException {
+        return rewriteRecord(updateItems, xmlFromAlma).getXml();
+    }
+
+    /**
+     * Like rewrite, but also tells whether any UpdateItem was inserted, so an unchanged record does not have
+     * to be sent back to ALMA.
+     * @param updateItems A list of UpdateItems.
+     * @param xmlFromAlma A String in the shape of an XML the data is retrieved from ALMA.
+     * @return The updated XML, or the XML from ALMA exactly as it was received if nothing was inserted.
+     * @throws ParsingException When something goes wrong.
+     */
+    RewriteResult rewriteRecord(List<UpdateItem> updateItems, String xmlFromAlma) throws ParsingException;
+}
@@ -0,0 +1,195 @@
+package no.unit.alma;
+
+import no.unit.exceptions.ParsingException;
+import no.unit.marc.Reference;
+import no.unit.metrics.Metrics;
+import no.unit.profiling.PipelineEvents;
+import no.unit.scheduler.UpdateItem;
+import software.amazon.awssdk.http.HttpStatusCode;
+
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Does the GET, rewrite and PUT for every mms_id of an isbn, with at most a given number of mms_id's in flight.
+ * The PUT is left out for records that already have every update.
+ * The requests are sent with sendAsync on the shared client in AlmaConnection, so waiting for Alma does not
+ * hold a thread. With a concurrency of 1 the mms_id's are updated one after the other, like before.
+ * When there is more than one mms_id the records are first retrieved with one GET per 100 mms_id's, and only
+ * the records missing from those are retrieved one by one.
+ */
+public class BibRecordUpdater {
+
+    private final transient AlmaHelper almaHelper;
+    private final transient BibRecordRewriter recordRewriter;
+    private final transient int concurrency;
+    private final transient Metrics metrics = Metrics.getInstance();
+
+    /**
+     * Creates an updater.
+     * @param almaHelper Sends the requests to ALMA.
+     * @param recordRewriter Inserts the updates into the records.
+     * @param concurrency The number of mms_id's that can be updated at the same time, at least 1.
+     */
+    public BibRecordUpdater(AlmaHelper almaHelper, BibRecordRewriter recordRewriter, int concurrency) {
+        this.almaHelper = almaHelper;
+        this.recordRewriter = recordRewriter;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * The outcome of the update of one mms_id.
+     */
+    public static final class Result {
+
+        private final transient String mmsId;
+        private final transient HttpResponse<String> getResponse;
+        private final transient HttpResponse<String> putResponse;
+        private final transient boolean putSkipped;
+
+        Result(String mmsId, HttpResponse<String> getResponse, HttpResponse<String> putResponse,
+                boolean putSkipped) {
+            this.mmsId = mmsId;
+            this.getResponse = getResponse;
+            this.putResponse = putResponse;
+            this.putSkipped = putSkipped;
+        }
+
+        public String getMmsId() {
+            return mmsId;
+        }
+
+        /**
+         * The response of the last GET, null if it failed without a response.
+         */
+        public HttpResponse<String> getGetResponse() {
+            return getResponse;
+        }
+
+        /**
+         * The response of the last PUT, null if it failed without a response or was never sent.
+         */
+        public HttpResponse<String> getPutResponse() {
+            return putResponse;
+        }
+
+        /**
+         * Whether the PUT was left out because every update already existed on the record.
+         */
+        public boolean isPutSkipped() {
+            return putSkipped;
+        }
+
+        public boolean isSuccess() {
+            return putSkipped || putResponse != null && putResponse.statusCode() == HttpStatusCode.OK;
+        }
+    }
+
+    /**
+     * Updates the records of all the references with the updateItems.
+     * Waits for every mms_id to finish before returning, also when one of them fails.
+     * @param references The references from SRU.
+     * @param updateItems The updates to insert into every record.
+     * @param retryPolicy Decides whether and when the calls to ALMA are retried.
+     * @return One result per reference, in the same order as the references.
+     * @throws ParsingException When a record from ALMA could not be rewritten.
+     * @throws InterruptedException When interrupted while waiting for a free slot.
+     */
+    public List<Result> updateAll(List<Reference> references, List<UpdateItem> updateItems,
+            RetryPolicy retryPolicy) throws ParsingException, InterruptedException {
+        metrics.record(Metrics.MMS_IDS_PER_ISBN, references.size(), Metrics.Unit.COUNT);
+        Map<String, HttpResponse<String>> records = getRecords(references, retryPolicy);
+        Semaphore slots = new Semaphore(concurrency);
+        List<CompletableFuture<Result>> updates = new ArrayList<>();
+        for (Reference reference : references) {
+            slots.acquire();
+            CompletableFuture<Result> update = update(reference.getId(), records.get(reference.getId()),
+                    updateItems, retryPolicy);
+            update.whenComplete((result, e) -> slots.release());
+            updates.add(update);
+        }
+        CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0]))
+                .exceptionally(e -> null)
+                .join();
+        List<Result> results = new ArrayList<>();
+        for (CompletableFuture<Result> update : updates) {
+            try {
+                results.add(update.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof ParsingException) {
+                    throw (ParsingException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+
+    private Map<String, HttpResponse<String>> getRecords(List<Reference> references, RetryPolicy retryPolicy) {
+        if (references.size() <= 1) {
+            return Collections.emptyMap();
+        }
+        List<String> mmsIds = new ArrayList<>();
+        references.forEach(reference -> mmsIds.add(reference.getId()));
+        return almaHelper.getBibRecordsFromAlmaAsync(mmsIds, retryPolicy).join();
+    }
+
+    private CompletableFuture<Result> update(String mmsId, HttpResponse<String> record, List<UpdateItem> updateItems,
+            RetryPolicy retryPolicy) {
+        CompletableFuture<HttpResponse<String>> get = record == null
+                ? almaHelper.getBibRecordFromAlmaWithRetriesAsync(mmsId, retryPolicy)
+                : CompletableFuture.completedFuture(record);
+        return get
+                .thenCompose(getResponse -> {
+                    if (getResponse == null || getResponse.statusCode() != HttpStatusCode.OK) {
+                        return CompletableFuture.completedFuture(new Result(mmsId, getResponse, null, false));
+                    }
+                    RewriteResult updatedRecord = rewrite(mmsId, updateItems, getResponse.body());
+                    if (!updatedRecord.isChanged()) {
+                        System.out.println("Every update already exists on the post with mms_id: " + mmsId
+                                + ", skipping the PUT");
+                        metrics.count(Metrics.SKIPPED_PUTS);
+                        return CompletableFuture.completedFuture(new Result(mmsId, getResponse, null, true));
+                    }
+                    return almaHelper.putBibRecordInAlmaWithRetriesAsync(mmsId, updatedRecord.getXml(), retryPolicy)
+                            .thenApply(putResponse -> new Result(mmsId, getResponse, putResponse, false));
+                })
+                .thenApply(result -> {
+                    if (result.isSuccess() && !result.isPutSkipped()) {
+                        System.out.println("Completed the update in Alma for post with mms_id: " + mmsId);
+                    }
+                    return result;
+                });
+    }
+
+    private RewriteResult rewrite(String mmsId, List<UpdateItem> updateItems, String xmlFromAlma) {
+        long start = System.nanoTime();
+        PipelineEvents.RewriteEvent event = new PipelineEvents.RewriteEvent();
+        event.begin();
+        RewriteResult result = null;
+        try {
+            result = recordRewriter.rewriteRecord(updateItems, xmlFromAlma);
+            return result;
+        } catch (ParsingException e) {
+            throw new CompletionException(e);
+        } finally {
+            metrics.recordSince(Metrics.REWRITE, start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.isbn = updateItems.get(0).getIsbn();
+                event.mmsId = mmsId;
+                event.engine = recordRewriter.getClass().getSimpleName();
+                event.inputLength = xmlFromAlma.length();
+                event.outputLength = result == null ? 0 : result.getXml().length();
+                event.changed = result != null && result.isChanged();
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package no.unit.alma;
+
+import javax.net.ssl.SSLSession;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Optional;
+
+/**
+ * One record of a bibs collection, looking like the response of a get request for only that record.
+ * Everything but the body is taken from the response with the whole collection.
+ */
+final class BibResponse implements HttpResponse<String> {
+
+    private final transient HttpResponse<String> bibsResponse;
+    private final transient String bib;
+
+    BibResponse(HttpResponse<String> bibsResponse, String bib) {
+        this.bibsResponse = bibsResponse;
+        this.bib = bib;
+    }
+
+    @Override
+    public int statusCode() {
+        return bibsResponse.statusCode();
+    }
+
+    @Override
+    public HttpRequest request() {
+        return bibsResponse.request();
+    }
+
+    @Override
+    public Optional<HttpResponse<String>> previousResponse() {
+        return bibsResponse.previousResponse();
+    }
+
+    @Override
+    public HttpHeaders headers() {
+        return bibsResponse.headers();
+    }
+
+    @Override
+    public String body() {
+        return bib;
+    }
+
+    @Override
+    public Optional<SSLSession> sslSession() {
+        return bibsResponse.sslSession();
+    }
+
+    @Override
+    public URI uri() {
+        return bibsResponse.uri();
+    }
+
+    @Override
+    public HttpClient.Version version() {
+        return bibsResponse.version();
+    }
+}
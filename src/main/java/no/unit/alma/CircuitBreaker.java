@@ -0,0 +1,188 @@
+package no.unit.alma;
+
+import software.amazon.awssdk.http.HttpStatusCode;
+
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+
+/**
+ * Stops the calls to Alma while Alma is down, so the messages can go to the DLQ at once instead of waiting
+ * out the retries of every mms_id.
+ * The circuit opens after a number of failures in a row, or when too many of the last calls failed.
+ * A failure is a call without an answer, a 408 or a 5xx. When it has been open for a while one call is let
+ * through as a probe (half-open). The circuit closes if the probe succeeds, and opens again if not.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    public static final int DEFAULT_CONSECUTIVE_FAILURES = 5;
+    public static final int DEFAULT_WINDOW = 20;
+    public static final double DEFAULT_FAILURE_RATE = 0.5;
+    public static final Duration DEFAULT_OPEN_DURATION = Duration.ofSeconds(30);
+
+    private static final int REQUEST_TIMEOUT = 408;
+
+    private final transient int consecutiveFailureThreshold;
+    private final transient boolean[] window;
+    private final transient double failureRateThreshold;
+    private final transient long openMillis;
+    private final transient Clock clock;
+    private final transient Object lock = new Object();
+    private transient State state = State.CLOSED;
+    private transient int consecutiveFailures;
+    private transient int calls;
+    private transient int failuresInWindow;
+    private transient int next;
+    private transient long openedAt;
+    private transient long probeStartedAt;
+    private transient long opened;
+
+    public CircuitBreaker() {
+        this(DEFAULT_CONSECUTIVE_FAILURES, DEFAULT_WINDOW, DEFAULT_FAILURE_RATE, DEFAULT_OPEN_DURATION,
+            Clock.systemUTC());
+    }
+
+    /**
+     * Creates a closed circuit breaker.
+     * @param consecutiveFailures The number of failures in a row that opens the circuit.
+     * @param window The number of last calls the failure rate is counted over.
+     * @param failureRate The part of the last calls, between 0 and 1, that opens the circuit when it failed.
+     * @param openDuration How long the circuit stays open before a probe is let through.
+     * @param clock The clock to time the open circuit by.
+     */
+    public CircuitBreaker(int consecutiveFailures, int window, double failureRate, Duration openDuration,
+            Clock clock) {
+        this.consecutiveFailureThreshold = consecutiveFailures;
+        this.window = new boolean[Math.max(1, window)];
+        this.failureRateThreshold = failureRate;
+        this.openMillis = openDuration.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * Asks to send a call. When the circuit is open and has been for long enough, this call is the probe.
+     * @return true if the call may be sent, false if it should fail without being sent.
+     */
+    public boolean allowRequest() {
+        synchronized (lock) {
+            long now = clock.millis();
+            switch (state) {
+                case OPEN:
+                    if (now < openedAt + openMillis) {
+                        return false;
+                    }
+                    state = State.HALF_OPEN;
+                    probeStartedAt = now;
+                    return true;
+                case HALF_OPEN:
+                    // A probe that never reported back is replaced after a while, so the circuit can't get stuck.
+                    if (now < probeStartedAt + openMillis) {
+                        return false;
+                    }
+                    probeStartedAt = now;
+                    return true;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Counts the outcome of a call. Every answer but a 408 or a 5xx, also a 429 or a 404, means Alma is up.
+     * @param response The response, null if the call failed without one.
+     * @param error The exception the call failed with, null if it gave a response.
+     */
+    public void record(HttpResponse<?> response, Throwable error) {
+        if (error != null || response == null) {
+            recordFailure();
+            return;
+        }
+        int status = response.statusCode();
+        if (status == REQUEST_TIMEOUT || status >= HttpStatusCode.INTERNAL_SERVER_ERROR) {
+            recordFailure();
+        } else {
+            recordSuccess();
+        }
+    }
+
+    private void recordSuccess() {
+        synchronized (lock) {
+            if (state == State.HALF_OPEN) {
+                System.out.println("Alma answered the probe, closing the circuit");
+                reset(State.CLOSED);
+                return;
+            }
+            consecutiveFailures = 0;
+            add(false);
+        }
+    }
+
+    private void recordFailure() {
+        synchronized (lock) {
+            if (state == State.OPEN) {
+                return;
+            }
+            consecutiveFailures++;
+            add(true);
+            boolean windowFull = calls >= window.length;
+            if (state == State.HALF_OPEN || consecutiveFailures >= consecutiveFailureThreshold
+                    || windowFull && failuresInWindow >= failureRateThreshold * window.length) {
+                System.out.println("Too many failed calls to Alma, opening the circuit for " + openMillis + " ms");
+                reset(State.OPEN);
+                openedAt = clock.millis();
+                opened++;
+            }
+        }
+    }
+
+    /**
+     * Puts an outcome in the window, over the oldest one. Called holding the lock.
+     */
+    private void add(boolean failed) {
+        if (calls >= window.length && window[next]) {
+            failuresInWindow--;
+        }
+        window[next] = failed;
+        if (failed) {
+            failuresInWindow++;
+        }
+        next = (next + 1) % window.length;
+        calls = Math.min(calls + 1, window.length);
+    }
+
+    /**
+     * Forgets the counted calls. Called holding the lock.
+     */
+    private void reset(State newState) {
+        state = newState;
+        consecutiveFailures = 0;
+        calls = 0;
+        failuresInWindow = 0;
+        next = 0;
+    }
+
+    /**
+     * Whether calls are stopped now, without taking the place of the probe.
+     * @return true while the circuit is open and not yet ready for a probe.
+     */
+    public boolean isOpen() {
+        synchronized (lock) {
+            return state == State.OPEN && clock.millis() < openedAt + openMillis;
+        }
+    }
+
+    public State getState() {
+        synchronized (lock) {
+            return state;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "state=" + state + ", opened=" + opened;
+        }
+    }
+}
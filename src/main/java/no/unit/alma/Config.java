@@ -2,6 +2,7 @@ package no.unit.alma;
 
 import no.unit.exceptions.SchedulerException;
 import no.unit.exceptions.SecretRetrieverException;
+import no.unit.secret.SecretCache;
 import no.unit.secret.SecretRetriever;
 import nva.commons.core.Environment;
 
@@ -9,17 +10,76 @@ public class Config {
 
     public static final String ALMA_SRU_HOST_KEY = "ALMA_SRU_HOST";
     public static final String ALMA_API_HOST_KEY = "ALMA_API_HOST";
+    public static final String RECORD_REWRITER_KEY = "RECORD_REWRITER";
+    public static final String ALMA_CONCURRENCY_KEY = "ALMA_CONCURRENCY";
+    public static final String BATCH_CONCURRENCY_KEY = "BATCH_CONCURRENCY";
+    public static final String DEFAULT_CONCURRENCY = "1";
+    public static final String ALMA_GET_RATE_KEY = "ALMA_GET_RATE";
+    public static final String ALMA_PUT_RATE_KEY = "ALMA_PUT_RATE";
+    public static final String DEFAULT_GET_RATE = "10";
+    public static final String DEFAULT_PUT_RATE = "5";
+    public static final String PROFILE_THRESHOLD_MS_KEY = "PROFILE_THRESHOLD_MS";
+    public static final String DEFAULT_PROFILE_THRESHOLD_MS = "0";
 
-    protected transient String secretKey;
     private final transient Environment environment;
+    private final transient SecretCache secretCache;
     protected transient String almaApiHost;
     protected transient String almaSruHost;
+    protected transient String recordRewriter;
+    protected transient int almaConcurrency;
+    protected transient int batchConcurrency;
+    protected transient double almaGetRate;
+    protected transient double almaPutRate;
+    protected transient long profileThresholdMillis;
+
+    /* The config shared by the handler and AlmaConnection, made the first time it is asked for. */
+    private static final Object INSTANCE_LOCK = new Object();
+    private static Config instance;
+
+    /**
+     * The config for this container, so the environment is read and the secret is fetched only once.
+     * @return The shared config.
+     */
+    public static Config getInstance() {
+        synchronized (INSTANCE_LOCK) {
+            if (instance == null) {
+                instance = new Config();
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Makes the shared config from the given environment and secret, unless it has been made already, so the
+     * no-arg handler can be made in a test without the Lambda environment and Secrets Manager.
+     * @param environment Environment for injection
+     * @param secretCache Holds the Alma api key
+     * @return The shared config.
+     */
+    static Config initInstance(Environment environment, SecretCache secretCache) {
+        synchronized (INSTANCE_LOCK) {
+            if (instance == null) {
+                instance = new Config(environment, secretCache);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Forgets the shared config, so a test that made it leaves nothing behind for the next one.
+     */
+    static void resetInstance() {
+        synchronized (INSTANCE_LOCK) {
+            instance = null;
+        }
+    }
 
     /**
      * Config class to hold common variables for caching.
      */
     public Config() {
         environment = new Environment();
+        secretCache = new SecretCache(SecretRetriever::getAlmaApiKeySecret);
         try {
             initVariables();
         } catch (SchedulerException e) {
@@ -32,7 +92,17 @@ public class Config {
      * @param environment Environment for injection
      */
     public Config(Environment environment) {
+        this(environment, new SecretCache(SecretRetriever::getAlmaApiKeySecret));
+    }
+
+    /**
+     * Config class to hold common variables for caching.
+     * @param environment Environment for injection
+     * @param secretCache Holds the Alma api key
+     */
+    public Config(Environment environment, SecretCache secretCache) {
         this.environment = environment;
+        this.secretCache = secretCache;
         try {
             initVariables();
         } catch (SchedulerException e) {
@@ -50,11 +120,54 @@ public class Config {
         try {
             almaApiHost = environment.readEnv(ALMA_API_HOST_KEY);
             almaSruHost = environment.readEnv(ALMA_SRU_HOST_KEY);
-            secretKey = SecretRetriever.getAlmaApiKeySecret();
-        } catch (IllegalStateException | SecretRetrieverException e) {
+            recordRewriter = environment.readEnvOpt(RECORD_REWRITER_KEY).orElse(DomRecordRewriter.NAME);
+            almaConcurrency = Integer.parseInt(environment.readEnvOpt(ALMA_CONCURRENCY_KEY)
+                    .orElse(DEFAULT_CONCURRENCY));
+            batchConcurrency = Integer.parseInt(environment.readEnvOpt(BATCH_CONCURRENCY_KEY)
+                    .orElse(DEFAULT_CONCURRENCY));
+            almaGetRate = Double.parseDouble(environment.readEnvOpt(ALMA_GET_RATE_KEY).orElse(DEFAULT_GET_RATE));
+            almaPutRate = Double.parseDouble(environment.readEnvOpt(ALMA_PUT_RATE_KEY).orElse(DEFAULT_PUT_RATE));
+            profileThresholdMillis = Long.parseLong(environment.readEnvOpt(PROFILE_THRESHOLD_MS_KEY)
+                    .orElse(DEFAULT_PROFILE_THRESHOLD_MS));
+            /* Fetch the api key now, so a missing secret still fails the cold start. */
+            secretCache.get();
+        } catch (IllegalStateException | NumberFormatException | SecretRetrieverException e) {
             throw new SchedulerException("Failed to initialize variables. ", e);
         }
 
     }
 
+    /**
+     * The Alma api key, fetched again in the background when it gets old.
+     * @return The api key.
+     */
+    public String getSecretKey() {
+        try {
+            return secretCache.get();
+        } catch (SecretRetrieverException e) {
+            throw new IllegalStateException("No Alma api key. " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Fetches the Alma api key again, because Alma rejected it.
+     * @return The new api key.
+     */
+    public String refreshSecretKey() {
+        try {
+            return secretCache.refresh();
+        } catch (SecretRetrieverException e) {
+            throw new IllegalStateException("No Alma api key. " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Fetches the Alma api key again, whatever its age, because the container was restored from a snapshot.
+     * @return The new api key, or the old one if it could not be fetched.
+     */
+    public String reloadSecretKey() {
+        secretCache.invalidate();
+        return getSecretKey();
+    }
+
 }
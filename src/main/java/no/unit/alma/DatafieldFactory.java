@@ -0,0 +1,101 @@
+package no.unit.alma;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the 856/956 datafields for the updates without parsing any xml.
+ * The datafield is created directly in the document it is going into, so it does not have to be imported.
+ */
+public final class DatafieldFactory {
+
+    public static final String SUBFIELD = "subfield";
+    public static final String TAG = "tag";
+    public static final String CODE = "code";
+    public static final String IND1 = "ind1";
+    public static final String IND2 = "ind2";
+    public static final String IND1_VALUE = "4";
+    public static final String IND2_VALUE = "2";
+    public static final String CODE_3 = "3";
+    public static final String CODE_U = "u";
+    public static final String CODE_Q = "q";
+    public static final String CODE_9 = "9";
+    public static final String IMAGE_JPEG = "image/jpeg";
+    public static final String AUDIO_MPEG = "audio/mpeg";
+    public static final String LOCAL = "LOCAL";
+
+    private DatafieldFactory() {
+    }
+
+    /**
+     * A subfield code and its value.
+     */
+    public static final class Subfield {
+
+        private final transient String code;
+        private final transient String value;
+
+        public Subfield(String code, String value) {
+            this.code = code;
+            this.value = value;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * The subfields of an 856/956 datafield, in the order they are written.
+     * Images get a q-subfield with image/jpeg, audio files one with audio/mpeg, and 956 fields are marked LOCAL.
+     * @param specifiedMaterial The specifiedMaterial we want to popluate the node with.
+     * @param url The url we want to popluate the node with.
+     * @param marcTag 856 or 956.
+     * @return The subfields.
+     */
+    public static List<Subfield> subfields(String specifiedMaterial, String url, int marcTag) {
+        List<Subfield> subfields = new ArrayList<>();
+        subfields.add(new Subfield(CODE_3, specifiedMaterial));
+        subfields.add(new Subfield(CODE_U, url));
+        if (url.endsWith(DocumentXmlParser.JPG_ENDING)) {
+            subfields.add(new Subfield(CODE_Q, IMAGE_JPEG));
+        }
+        if (url.endsWith(DocumentXmlParser.MP3_ENDING)) {
+            subfields.add(new Subfield(CODE_Q, AUDIO_MPEG));
+        }
+        if (marcTag == DocumentXmlParser.MARC_TAG_956) {
+            subfields.add(new Subfield(CODE_9, LOCAL));
+        }
+        return subfields;
+    }
+
+    /**
+     * Creates an 856/956 datafield owned by the given document. The datafield is not inserted anywhere.
+     * @param owner The document the datafield will be inserted into.
+     * @param specifiedMaterial The specifiedMaterial we want to popluate the node with.
+     * @param url The url we want to popluate the node with.
+     * @param marcTag 856 or 956.
+     * @return The datafield element.
+     */
+    public static Element createDatafield(Document owner, String specifiedMaterial, String url, int marcTag) {
+        Element datafield = owner.createElement(DocumentXmlParser.DATAFIELD);
+        datafield.setAttribute(IND1, IND1_VALUE);
+        datafield.setAttribute(IND2, IND2_VALUE);
+        datafield.setAttribute(TAG, String.valueOf(marcTag));
+        for (Subfield subfield : subfields(specifiedMaterial, url, marcTag)) {
+            Element element = owner.createElement(SUBFIELD);
+            element.setAttribute(CODE, subfield.getCode());
+            // Same as in the old template: an empty value gives an empty element.
+            element.setTextContent(subfield.getValue());
+            datafield.appendChild(element);
+        }
+        return datafield;
+    }
+}
@@ -2,6 +2,7 @@ package no.unit.alma;
 
 import no.unit.exceptions.ParsingException;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
@@ -20,6 +21,9 @@ import javax.xml.transform.stream.StreamResult;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class DocumentXmlParser {
@@ -41,19 +45,33 @@ public class DocumentXmlParser {
     public static final String MP3_ENDING = ".mp3";
     public static final String MARC_PREFIX = "marc:";
     public static final String DATAFIELD = "datafield";
-    public static final String NODE_TEMPLATE_856 = "<datafield ind1='4' ind2='2' tag='856'>"
-            + "<subfield code='3'>1</subfield>"
-            + "<subfield code='u'>2</subfield>"
-            + "<subfield code='q'>image/jpeg</subfield>"
-            + "<subfield code='q'>audio/mpeg</subfield>"
-            + "</datafield>";
-    public static final String NODE_TEMPLATE_956 = "<datafield ind1='4' ind2='2' tag='956'>"
-            + "<subfield code='3'>1</subfield>"
-            + "<subfield code='u'>2</subfield>"
-            + "<subfield code='q'>image/jpeg</subfield>"
-            + "<subfield code='q'>audio/mpeg</subfield>"
-            + "<subfield code='9'>LOCAL</subfield>"
-            + "</datafield>";
+    public static final String BIB = "bib";
+    public static final String MMS_ID = "mms_id";
+
+    /*
+     * Looking up and configuring the factories is expensive, and builders and transformers are not thread-safe.
+     * The factories are made once and every thread gets its own builders and transformer, reset between uses.
+     */
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+    private static final DocumentBuilderFactory NODE_BUILDER_FACTORY = DocumentBuilderFactory.newDefaultInstance();
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<>();
+    private static final ThreadLocal<DocumentBuilder> NODE_BUILDER = new ThreadLocal<>();
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<>();
+
+    private final transient AtomicInteger parseCount = new AtomicInteger();
+    private final transient AtomicInteger serializeCount = new AtomicInteger();
+
+    /**
+     * Parses the xml once and returns a session that lets the caller check and insert
+     * several updates on the same document before serializing it once.
+     * @param xml The xml retrieved from ALMA.
+     * @return A RecordSession wrapping the parsed document.
+     * @throws ParsingException when something goes wrong.
+     */
+    public RecordSession openSession(String xml) throws ParsingException {
+        return new RecordSession(this, xml, asDocument(xml));
+    }
 
     /**
      * This method creates a Document in the shape of a marc-856/956 node.
@@ -65,34 +83,10 @@ public class DocumentXmlParser {
      */
     public Document createNode(String specifiedMaterial, String url, int marcTag) throws ParsingException {
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newDefaultInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-
-            InputSource is = new InputSource();
-            if (marcTag == MARC_TAG_856) {
-                is.setCharacterStream(new StringReader(NODE_TEMPLATE_856));
-            } else {
-                is.setCharacterStream(new StringReader(NODE_TEMPLATE_956));
-            }
-
-            Document doc = db.parse(is);
-
-            NodeList datafields = doc.getElementsByTagName(DATAFIELD);
-            NodeList subfields = datafields.item(0).getChildNodes();
-
-            subfields.item(0).setTextContent(specifiedMaterial);
-            subfields.item(1).setTextContent(url);
-
-            if (!url.endsWith(JPG_ENDING)) {
-                datafields.item(0).removeChild(subfields.item(2));
-            }
-            if (!url.endsWith(MP3_ENDING)) {
-                int theIndex = url.endsWith(JPG_ENDING) ? 3 : 2;
-                datafields.item(0).removeChild(subfields.item(theIndex));
-            }
+            Document doc = documentBuilder(NODE_BUILDER, NODE_BUILDER_FACTORY).newDocument();
+            doc.appendChild(DatafieldFactory.createDatafield(doc, specifiedMaterial, url, marcTag));
             return doc;
-
-        } catch (ParserConfigurationException | IOException | SAXException e) {
+        } catch (ParserConfigurationException e) {
             throw new ParsingException(UPDATE_NODE_ERROR_MESSAGE, e);
         }
     }
@@ -107,8 +101,31 @@ public class DocumentXmlParser {
      * @throws ParsingException when something goes wrong.
      */
     public Document insertUpdatedIntoRecord(String xml, Document update, int marcTag) throws ParsingException {
-        Document doc = asDocument(xml);
-        Node updateNode = doc.importNode(update.getFirstChild(), true);
+        return insertUpdatedIntoRecord(asDocument(xml), update, marcTag);
+    }
+
+    /**
+     * Inserts the 'update-node' into an already parsed document.
+     * @param doc The document that we want to insert the extra info into.
+     * @param update The update document that we want to insert into the document.
+     * @param marcTag A int determining where in the record the node is inserted.
+     * @return Document. The same document with the added info.
+     */
+    public Document insertUpdatedIntoRecord(Document doc, Document update, int marcTag) {
+        insertNode(doc, update.getFirstChild(), marcTag);
+        return doc;
+    }
+
+    /**
+     * Inserts the node before the first datafield with the same or a higher tag.
+     * A node from another document is imported first.
+     * @param doc The document that we want to insert the node into.
+     * @param update The datafield node, owned by any document.
+     * @param marcTag A int determining where in the record the node is inserted.
+     * @return The inserted node, now part of the document.
+     */
+    public Node insertNode(Document doc, Node update, int marcTag) {
+        Node updateNode = update.getOwnerDocument() == doc ? update : doc.importNode(update, true);
         NodeList datafields = doc.getElementsByTagName(DATAFIELD);
         int i;
         for (i = 0; i < datafields.getLength(); i++) {
@@ -116,7 +133,7 @@ public class DocumentXmlParser {
             if (getTagNumber(datafield) >= marcTag) {
                 try {
                     doc.getFirstChild().getLastChild().insertBefore(updateNode, datafield);
-                    return doc;
+                    return updateNode;
                 } catch (Exception e) {
                     /* We dont want to handle this exception
                      * its just a failsafe in case of an out-of-place datafield-tag
@@ -128,7 +145,7 @@ public class DocumentXmlParser {
         }
 
         doc.getFirstChild().getLastChild().appendChild(updateNode);
-        return doc;
+        return updateNode;
     }
 
     /**
@@ -162,7 +179,15 @@ public class DocumentXmlParser {
      * @throws ParsingException When something goes wrong.
      */
     public int determineElectronicOrPrint(String xml) throws ParsingException {
-        Document doc = asDocument(xml);
+        return determineElectronicOrPrint(asDocument(xml));
+    }
+
+    /**
+     * Returns either 956 or 856 based on the values in the marc-tag 035 of an already parsed document.
+     * @param doc The document in question.
+     * @return An int containing either 956 or 856.
+     */
+    public int determineElectronicOrPrint(Document doc) {
         NodeList datafields = doc.getElementsByTagName(DATAFIELD);
         for (int i = 0; i < datafields.getLength(); i++) {
             Node datafield = datafields.item(i);
@@ -189,35 +214,44 @@ public class DocumentXmlParser {
     public boolean alreadyExists(String specifiedMaterial, String url, String xml, int marcTag)
             throws ParsingException {
         try {
-            boolean specifiedMaterialMatches = false;
-            boolean urlMatches = false;
-            Document doc = asDocument(xml);
-            NodeList nodeList = doc.getElementsByTagName(DATAFIELD);
-            for (int i = 0; i < nodeList.getLength(); i++) {
-                if (getTagNumber(nodeList.item(i)) == marcTag) {
-                    NodeList children = nodeList.item(i).getChildNodes();
-                    for (int j = 0; j < children.getLength(); j++) {
-                        if (getSubfieldCode(children.item(j)) == MARC_CODE_3
-                                && children.item(j).getTextContent().trim().equals(specifiedMaterial.trim())) {
-                            specifiedMaterialMatches = true;
-                        }
-                        if (getSubfieldCode(children.item(j)) == MARC_CODE_U
-                                && children.item(j).getTextContent().trim().equals(url.trim())) {
-                            urlMatches = true;
-                        }
+            return alreadyExists(specifiedMaterial, url, asDocument(xml), marcTag);
+        } catch (ParsingException e) {
+            throw new ParsingException(ALREADY_EXISTS_ERROR_MESSAGE, e);
+        }
+    }
+
+    /**
+     * Checks whether or not an already parsed document contains the update.
+     * @param specifiedMaterial The specifiedMaterial we want to check if exists.
+     * @param url The url we want to check if exists.
+     * @param doc The document we want to check if url and specifiedMaterial already exists inn.
+     * @return True if both specifiedMaterial and url exists on the same 856 node, false if not.
+     */
+    public boolean alreadyExists(String specifiedMaterial, String url, Document doc, int marcTag) {
+        boolean specifiedMaterialMatches = false;
+        boolean urlMatches = false;
+        NodeList nodeList = doc.getElementsByTagName(DATAFIELD);
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            if (getTagNumber(nodeList.item(i)) == marcTag) {
+                NodeList children = nodeList.item(i).getChildNodes();
+                for (int j = 0; j < children.getLength(); j++) {
+                    if (getSubfieldCode(children.item(j)) == MARC_CODE_3
+                            && children.item(j).getTextContent().trim().equals(specifiedMaterial.trim())) {
+                        specifiedMaterialMatches = true;
                     }
-                    if (specifiedMaterialMatches && urlMatches) {
-                        return true;
+                    if (getSubfieldCode(children.item(j)) == MARC_CODE_U
+                            && children.item(j).getTextContent().trim().equals(url.trim())) {
+                        urlMatches = true;
                     }
                 }
-                specifiedMaterialMatches = false;
-                urlMatches = false;
+                if (specifiedMaterialMatches && urlMatches) {
+                    return true;
+                }
             }
-            return false;
-
-        } catch (ParsingException e) {
-            throw new ParsingException(ALREADY_EXISTS_ERROR_MESSAGE, e);
+            specifiedMaterialMatches = false;
+            urlMatches = false;
         }
+        return false;
     }
 
     /**
@@ -227,10 +261,9 @@ public class DocumentXmlParser {
      * @throws ParsingException when something goes wrong.
      */
     public String convertDocToString(Document doc) throws ParsingException {
+        serializeCount.incrementAndGet();
         try {
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer transformer = tf.newTransformer();
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            Transformer transformer = transformer();
             StringWriter writer = new StringWriter();
             transformer.transform(new DOMSource(doc), new StreamResult(writer));
             String output = writer.getBuffer().toString().replaceAll("\n|\r", "");
@@ -248,9 +281,9 @@ public class DocumentXmlParser {
      * @throws ParsingException when something goes wrong.
      */
     public Document asDocument(String sruxml) throws ParsingException {
+        parseCount.incrementAndGet();
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
+            DocumentBuilder builder = documentBuilder(DOCUMENT_BUILDER, DOCUMENT_BUILDER_FACTORY);
             String removedMarcInSruXml = sruxml.replace(MARC_PREFIX, EMPTY_STRING);
 
             InputSource is = new InputSource(new StringReader(removedMarcInSruXml));
@@ -260,4 +293,96 @@ public class DocumentXmlParser {
         }
     }
 
+    /**
+     * Splits a bibs collection from the Alma bibs api into one bib document per record.
+     * @param bibsXml The bibs collection, as returned for a list of mms_id's.
+     * @return The bib of every record in the collection, keyed by its mms_id.
+     * @throws ParsingException when the collection can't be parsed or a bib can't be serialized.
+     */
+    public Map<String, String> splitBibs(String bibsXml) throws ParsingException {
+        Document bibs = asDocument(bibsXml);
+        Map<String, String> records = new ConcurrentHashMap<>();
+        for (Node bib = bibs.getDocumentElement().getFirstChild(); bib != null; bib = bib.getNextSibling()) {
+            if (bib.getNodeType() != Node.ELEMENT_NODE || !BIB.equals(bib.getNodeName())) {
+                continue;
+            }
+            NodeList mmsIds = ((Element) bib).getElementsByTagName(MMS_ID);
+            if (mmsIds.getLength() > 0) {
+                records.put(mmsIds.item(0).getTextContent().trim(), serialize(bib));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Serializes a node on its own, keeping the line breaks in the text.
+     */
+    private String serialize(Node node) throws ParsingException {
+        serializeCount.incrementAndGet();
+        try {
+            StringWriter writer = new StringWriter();
+            transformer().transform(new DOMSource(node), new StreamResult(writer));
+            return writer.toString();
+        } catch (TransformerException e) {
+            throw new ParsingException(CONVERTING_TO_STRING_ERROR_MESSAGE, e);
+        }
+    }
+
+    /**
+     * Returns this thread's builder from the given factory, reset to the factory configuration.
+     * @param builders The builders per thread.
+     * @param factory The factory to create the builder with.
+     * @return A DocumentBuilder that only this thread uses.
+     * @throws ParserConfigurationException when the builder can't be created.
+     */
+    private static DocumentBuilder documentBuilder(ThreadLocal<DocumentBuilder> builders,
+                                                   DocumentBuilderFactory factory)
+            throws ParserConfigurationException {
+        DocumentBuilder builder = builders.get();
+        if (builder == null) {
+            synchronized (factory) {
+                builder = factory.newDocumentBuilder();
+            }
+            builders.set(builder);
+        } else {
+            builder.reset();
+        }
+        return builder;
+    }
+
+    /**
+     * Returns this thread's transformer, reset and set to leave out the xml declaration.
+     * @return A Transformer that only this thread uses.
+     * @throws TransformerException when the transformer can't be created.
+     */
+    private static Transformer transformer() throws TransformerException {
+        Transformer transformer = TRANSFORMER.get();
+        if (transformer == null) {
+            synchronized (TRANSFORMER_FACTORY) {
+                transformer = TRANSFORMER_FACTORY.newTransformer();
+            }
+            TRANSFORMER.set(transformer);
+        } else {
+            transformer.reset();
+        }
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        return transformer;
+    }
+
+    /**
+     * The number of xml strings parsed into documents by this parser.
+     * @return the parse count.
+     */
+    public int getParseCount() {
+        return parseCount.get();
+    }
+
+    /**
+     * The number of documents serialized into strings by this parser.
+     * @return the serialize count.
+     */
+    public int getSerializeCount() {
+        return serializeCount.get();
+    }
+
 }
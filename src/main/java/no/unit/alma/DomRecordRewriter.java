@@ -0,0 +1,54 @@
+package no.unit.alma;
+
+import no.unit.exceptions.ParsingException;
+import no.unit.profiling.PipelineEvents;
+import no.unit.scheduler.UpdateItem;
+
+import java.util.List;
+
+/**
+ * Rewrites the bib record on a W3C DOM, parsing and serializing the record once.
+ */
+public class DomRecordRewriter implements BibRecordRewriter {
+
+    public static final String NAME = "DOM";
+
+    private final transient DocumentXmlParser xmlParser;
+
+    public DomRecordRewriter() {
+        this.xmlParser = new DocumentXmlParser();
+    }
+
+    public DomRecordRewriter(DocumentXmlParser xmlParser) {
+        this.xmlParser = xmlParser;
+    }
+
+    @Override
+    public RewriteResult rewriteRecord(List<UpdateItem> updateItems, String xmlFromAlma) throws ParsingException {
+        RecordSession record = xmlParser.openSession(xmlFromAlma);
+        /* 3.3.1 Loop through every UpdateItem in the UpdateItem LIST. */
+        for (UpdateItem item : updateItems) {
+            /* 3.3.2 Determine whether the post is electronic or print (looked up once per record). */
+            /* 3.3.3 Check if the update already exists. */
+            if (record.alreadyExists(item.getSpecifiedMaterial(), item.getLink())) {
+                continue;
+            }
+
+            /* 3.3.4 Create a node from the UpdateItem. */
+            /* 3.3.5 Insert update node into the record retrieved from ALMA. */
+            record.insert(item.getSpecifiedMaterial(), item.getLink());
+        }
+        if (!record.isModified()) {
+            return RewriteResult.unchanged(xmlFromAlma);
+        }
+        PipelineEvents.SerializeEvent event = new PipelineEvents.SerializeEvent();
+        event.begin();
+        String xml = record.asString();
+        event.end();
+        if (event.shouldCommit()) {
+            event.outputLength = xml.length();
+            event.commit();
+        }
+        return RewriteResult.changed(xml);
+    }
+}
@@ -0,0 +1,107 @@
+package no.unit.alma;
+
+import no.unit.exceptions.ParsingException;
+import no.unit.scheduler.SchedulerHelper;
+import no.unit.scheduler.UpdateItem;
+import org.crac.Context;
+import org.crac.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Warms up the code the first event would otherwise pay for, before the snapshot of the container is taken
+ * (Lambda SnapStart / CRaC). A bundled stream event, alma-sru answer and bibs collection are run through the
+ * same steps as a real message: the event is split into UpdateItems, the references are read, the bibs are
+ * split and the record is rewritten. That loads and JIT-compiles the DOM/XSLT stack and Gson, and the shared
+ * clients are made on the way. Nothing is sent, so no connection ends up in the snapshot.
+ * After a restore the Alma api key is fetched again, since the one in the snapshot may be old.
+ */
+public class Priming implements Resource {
+
+    public static final String SAMPLE_EVENT = "/priming/sample_event.json";
+    public static final String SAMPLE_REFERENCES = "/priming/sample_references.json";
+    public static final String SAMPLE_BIBS = "/priming/sample_bibs.xml";
+    public static final int DEFAULT_ROUNDS = 50;
+
+    private final transient Config config;
+    private final transient SchedulerHelper schedulerHelper;
+    private final transient BibRecordRewriter recordRewriter;
+    private final transient DocumentXmlParser xmlParser = new DocumentXmlParser();
+    private final transient int rounds;
+
+    /**
+     * Creates the priming for a handler.
+     * @param config The config with the Alma api key.
+     * @param schedulerHelper Splits the sample event into UpdateItems.
+     * @param recordRewriter The engine the handler rewrites the records with.
+     * @param rounds How many times the samples are run through, enough for the JIT to compile the hot paths.
+     */
+    public Priming(Config config, SchedulerHelper schedulerHelper, BibRecordRewriter recordRewriter, int rounds) {
+        this.config = config;
+        this.schedulerHelper = schedulerHelper;
+        this.recordRewriter = recordRewriter;
+        this.rounds = rounds;
+    }
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) throws Exception {
+        long start = System.nanoTime();
+        preloadClients();
+        int updateItems = prime();
+        System.out.println("Primed " + rounds + " rounds of " + updateItems + " UpdateItems in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context) {
+        try {
+            config.reloadSecretKey();
+        } catch (IllegalStateException e) {
+            System.out.println("Could not fetch the Alma api key after the restore, trying again on the first call. "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the samples through the steps of a message, without sending anything.
+     * @return The number of UpdateItems in the sample event.
+     * @throws IOException when a sample can't be read.
+     * @throws ParsingException when a sample can't be parsed.
+     */
+    public int prime() throws IOException, ParsingException {
+        String event = readSample(SAMPLE_EVENT);
+        String references = readSample(SAMPLE_REFERENCES);
+        String bibs = readSample(SAMPLE_BIBS);
+        List<UpdateItem> updateItems = List.of();
+        for (int i = 0; i < rounds; i++) {
+            updateItems = schedulerHelper.splitEventIntoUpdateItems(event);
+            SruClient.readReferences(new StringReader(references));
+            for (String bib : xmlParser.splitBibs(bibs).values()) {
+                recordRewriter.rewriteRecord(updateItems, bib);
+            }
+        }
+        return updateItems.size();
+    }
+
+    /**
+     * Makes the clients the handler shares between invocations, without connecting.
+     */
+    private static void preloadClients() {
+        SharedHttpClient.get();
+        SchedulerHelper.getSqsClient();
+        AlmaConnection.getInstance();
+    }
+
+    private static String readSample(String name) throws IOException {
+        try (InputStream stream = Priming.class.getResourceAsStream(name)) {
+            if (stream == null) {
+                throw new IOException("Missing priming sample " + name);
+            }
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package no.unit.alma;
+
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the calls to Alma with a token bucket, so a burst of updates does not run into the api limits of the
+ * institution. The bucket fills with permitsPerSecond tokens every second, up to one second worth of tokens,
+ * and every call takes one. When the bucket is empty the call waits for its token.
+ * Alma tells how many calls are left for the day in every response, and when that runs low the rate is lowered
+ * in proportion, so the last part of the daily quota is spread out instead of used up at once.
+ */
+public class RateLimiter {
+
+    public static final String REMAINING_QUOTA_HEADER = "X-Exl-Api-Remaining";
+    public static final long LOW_QUOTA = 10_000;
+    public static final double MIN_RATE_FRACTION = 0.1;
+
+    private static final double MILLIS_PER_SECOND = 1000.0;
+
+    private final transient double permitsPerSecond;
+    private final transient double capacity;
+    private final transient Clock clock;
+    private final transient Object lock = new Object();
+    private transient double tokens;
+    private transient long refilledAt;
+    private transient double rateFraction = 1.0;
+
+    /**
+     * Creates a full bucket.
+     * @param permitsPerSecond The number of calls per second, 0 or less to not limit the calls.
+     * @param clock The clock to fill the bucket by.
+     */
+    public RateLimiter(double permitsPerSecond, Clock clock) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.capacity = Math.max(1, permitsPerSecond);
+        this.clock = clock;
+        this.tokens = capacity;
+        this.refilledAt = clock.millis();
+    }
+
+    /**
+     * Takes a token, also when the bucket is empty, and tells how long to wait before it may be used.
+     * Calls that take a token from an empty bucket queue up behind each other.
+     * @return The wait in milliseconds, 0 if the call can be sent right away.
+     */
+    public long reserve() {
+        if (permitsPerSecond <= 0) {
+            return 0;
+        }
+        synchronized (lock) {
+            refill();
+            tokens--;
+            if (tokens >= 0) {
+                return 0;
+            }
+            return (long) Math.ceil(-tokens / (permitsPerSecond * rateFraction) * MILLIS_PER_SECOND);
+        }
+    }
+
+    /**
+     * Waits for a token without holding a thread.
+     * @return A future that completes when the call may be sent.
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        long wait = reserve();
+        if (wait == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Reads the remaining daily quota from a response from Alma, and lowers the rate if it runs low.
+     * @param response The response, may be null.
+     * @param <T> The type of the response.
+     * @return The same response.
+     */
+    public <T extends HttpResponse<?>> T observe(T response) {
+        if (response != null) {
+            remainingQuota(response).ifPresent(this::setRemainingQuota);
+        }
+        return response;
+    }
+
+    /**
+     * Sets the rate from the number of calls left for the day.
+     * @param remaining The number of calls left.
+     */
+    public void setRemainingQuota(long remaining) {
+        double fraction = remaining >= LOW_QUOTA
+                ? 1.0
+                : Math.max(MIN_RATE_FRACTION, (double) remaining / LOW_QUOTA);
+        synchronized (lock) {
+            refill();
+            rateFraction = fraction;
+        }
+    }
+
+    /**
+     * The rate the calls are paced at now.
+     * @return The number of calls per second, 0 or less if the calls are not limited.
+     */
+    public double getPermitsPerSecond() {
+        synchronized (lock) {
+            return permitsPerSecond * rateFraction;
+        }
+    }
+
+    /**
+     * Adds the tokens for the time since the last refill, at the rate of that time. Called holding the lock.
+     */
+    private void refill() {
+        long now = clock.millis();
+        double rate = permitsPerSecond * rateFraction;
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * rate / MILLIS_PER_SECOND);
+        refilledAt = now;
+    }
+
+    private Optional<Long> remainingQuota(HttpResponse<?> response) {
+        try {
+            return response.headers().firstValue(REMAINING_QUOTA_HEADER).map(value -> Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+}
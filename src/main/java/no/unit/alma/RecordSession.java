@@ -0,0 +1,219 @@
+package no.unit.alma;
+
+import no.unit.exceptions.ParsingException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bib record parsed once, on which several updates can be checked and inserted
+ * before the record is serialized once.
+ * The session gives the same result as converting the record to a string and back
+ * between every update, which is what the per-update methods in DocumentXmlParser do.
+ * There the record is only converted to a string when an update is inserted, so the round trip made
+ * for the checks after the last insert is undone before the record is serialized.
+ */
+public final class RecordSession {
+
+    private static final String NEWLINE = "\n";
+    private static final String CARRIAGE_RETURN = "\r";
+    private static final String CDATA_START = "<![CDATA[";
+    private static final String CDATA_END = "]]>";
+
+    private final transient DocumentXmlParser parser;
+    private final transient String originalXml;
+    private final transient List<Node> pendingRoundTrip = new ArrayList<>();
+    private final transient List<Undo> undoRoundTrip = new ArrayList<>();
+    private transient Document document;
+    private transient int marcTag;
+    private transient boolean modified;
+    private transient boolean literalRoundTrip;
+
+    /**
+     * Puts back one change made by a round trip.
+     */
+    private interface Undo {
+        void undo();
+    }
+
+    /**
+     * Wraps a document parsed by the given parser. Use DocumentXmlParser.openSession to create one.
+     * @param parser The parser used for the checks and inserts.
+     * @param originalXml The xml the document was parsed from.
+     * @param document The parsed document.
+     */
+    public RecordSession(DocumentXmlParser parser, String originalXml, Document document) {
+        this.parser = parser;
+        this.originalXml = originalXml;
+        this.document = document;
+        // Empty CDATA sections are not serialized, so the text around them can join into a new prefix.
+        String withoutCdataMarkers = originalXml.replace(DocumentXmlParser.MARC_PREFIX, DocumentXmlParser.EMPTY_STRING)
+                .replace(CDATA_START, DocumentXmlParser.EMPTY_STRING)
+                .replace(CDATA_END, DocumentXmlParser.EMPTY_STRING);
+        this.literalRoundTrip = withoutCdataMarkers.contains(DocumentXmlParser.MARC_PREFIX)
+                || prefixRemainsAfterRoundTrip(withoutCdataMarkers);
+    }
+
+    /**
+     * Returns either 956 or 856 based on the values in the marc-tag 035.
+     * Inserting 856/956 nodes never changes the 035 fields, so this is only looked up again
+     * when the whole record has been round-tripped.
+     * @return An int containing either 956 or 856.
+     */
+    public int getMarcTag() {
+        if (marcTag == 0) {
+            marcTag = parser.determineElectronicOrPrint(document);
+        }
+        return marcTag;
+    }
+
+    /**
+     * Checks whether or not the record already contains the update.
+     * @param specifiedMaterial The specifiedMaterial we want to check if exists.
+     * @param url The url we want to check if exists.
+     * @return True if both specifiedMaterial and url exists on the same 856/956 node, false if not.
+     * @throws ParsingException when something goes wrong.
+     */
+    public boolean alreadyExists(String specifiedMaterial, String url) throws ParsingException {
+        applyPendingRoundTrip();
+        return parser.alreadyExists(specifiedMaterial, url, document, getMarcTag());
+    }
+
+    /**
+     * Creates an 856/956 node and inserts it into the record.
+     * @param specifiedMaterial The specifiedMaterial we want to popluate the node with.
+     * @param url The url we want to popluate the node with.
+     * @throws ParsingException when something goes wrong.
+     */
+    public void insert(String specifiedMaterial, String url) throws ParsingException {
+        applyPendingRoundTrip();
+        undoRoundTrip.clear();
+        literalRoundTrip = literalRoundTrip || prefixRemainsAfterRoundTrip(specifiedMaterial)
+                || prefixRemainsAfterRoundTrip(url);
+        Node datafield = DatafieldFactory.createDatafield(document, specifiedMaterial, url, getMarcTag());
+        Node inserted = parser.insertNode(document, datafield, getMarcTag());
+        if (modified) {
+            pendingRoundTrip.add(inserted);
+        } else {
+            pendingRoundTrip.add(document);
+            modified = true;
+        }
+    }
+
+    /**
+     * Whether any update has been inserted into the record.
+     * @return true if the record has been changed.
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Serializes the record. If nothing was inserted the xml is returned exactly as it was received.
+     * The session should not be used for more updates afterwards.
+     * @return The record as a one-line string.
+     * @throws ParsingException when something goes wrong.
+     */
+    public String asString() throws ParsingException {
+        if (!modified) {
+            return originalXml;
+        }
+        for (int i = undoRoundTrip.size() - 1; i >= 0; i--) {
+            undoRoundTrip.get(i).undo();
+        }
+        undoRoundTrip.clear();
+        return parser.convertDocToString(document);
+    }
+
+    /**
+     * Applies to the changed parts of the document what converting it to a one-line string
+     * and parsing it again would have done: line breaks are dropped from text and the
+     * marc-prefix is stripped.
+     * Stripping the prefix can make a new prefix appear (e.g. "mamarc:rc:"). For such records every part
+     * of the document can change on every round trip, so the document is converted to a string and back.
+     */
+    private void applyPendingRoundTrip() throws ParsingException {
+        if (pendingRoundTrip.isEmpty()) {
+            return;
+        }
+        if (literalRoundTrip) {
+            Document beforeRoundTrip = document;
+            undoRoundTrip.add(() -> document = beforeRoundTrip);
+            document = parser.asDocument(parser.convertDocToString(document));
+            pendingRoundTrip.clear();
+            marcTag = 0;
+            return;
+        }
+        if (pendingRoundTrip.contains(document)) {
+            marcTag = 0;
+        }
+        for (Node node : pendingRoundTrip) {
+            roundTrip(node);
+        }
+        pendingRoundTrip.clear();
+    }
+
+    private void roundTrip(Node node) {
+        NodeList children = node.getChildNodes();
+        for (int i = children.getLength() - 1; i >= 0; i--) {
+            Node child = children.item(i);
+            switch (child.getNodeType()) {
+                case Node.TEXT_NODE:
+                    String text = stripPrefix(child.getNodeValue().replace(NEWLINE, DocumentXmlParser.EMPTY_STRING));
+                    if (text.isEmpty()) {
+                        remove(node, child);
+                    } else {
+                        setValue(child, text);
+                    }
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                    // Empty CDATA sections are not serialized, so they are gone after a round trip.
+                    if (child.getNodeValue().isEmpty()) {
+                        remove(node, child);
+                    } else {
+                        setValue(child, stripPrefix(removeLineBreaks(child.getNodeValue())));
+                    }
+                    break;
+                case Node.COMMENT_NODE:
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    setValue(child, stripPrefix(removeLineBreaks(child.getNodeValue())));
+                    break;
+                case Node.ELEMENT_NODE:
+                    roundTrip(child);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void remove(Node parent, Node child) {
+        Node nextSibling = child.getNextSibling();
+        parent.removeChild(child);
+        undoRoundTrip.add(() -> parent.insertBefore(child, nextSibling));
+    }
+
+    private void setValue(Node node, String value) {
+        String oldValue = node.getNodeValue();
+        if (!oldValue.equals(value)) {
+            node.setNodeValue(value);
+            undoRoundTrip.add(() -> node.setNodeValue(oldValue));
+        }
+    }
+
+    private boolean prefixRemainsAfterRoundTrip(String value) {
+        return stripPrefix(removeLineBreaks(value)).contains(DocumentXmlParser.MARC_PREFIX);
+    }
+
+    private String removeLineBreaks(String value) {
+        return value.replace(NEWLINE, DocumentXmlParser.EMPTY_STRING)
+                .replace(CARRIAGE_RETURN, DocumentXmlParser.EMPTY_STRING);
+    }
+
+    private String stripPrefix(String value) {
+        return value.replace(DocumentXmlParser.MARC_PREFIX, DocumentXmlParser.EMPTY_STRING);
+    }
+}
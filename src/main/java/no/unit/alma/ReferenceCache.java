@@ -0,0 +1,147 @@
+package no.unit.alma;
+
+import no.unit.marc.Reference;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the references alma-sru gave for an isbn, so the same isbn does not have to be looked up again.
+ * Isbns without references are remembered for a shorter time, since the record may show up in Alma soon.
+ * When the cache is full the least recently used isbn is evicted.
+ */
+public class ReferenceCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+    public static final Duration DEFAULT_TTL = Duration.ofHours(1);
+    public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofMinutes(5);
+
+    private final transient int maxSize;
+    private final transient long ttlMillis;
+    private final transient long negativeTtlMillis;
+    private final transient Clock clock;
+    private final transient Map<String, Entry> entries;
+    private final transient AtomicLong hits = new AtomicLong();
+    private final transient AtomicLong misses = new AtomicLong();
+    private final transient AtomicLong evictions = new AtomicLong();
+
+    public ReferenceCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, Clock.systemUTC());
+    }
+
+    /**
+     * Creates a cache.
+     * @param maxSize The number of isbns to remember.
+     * @param ttl How long to remember the references of an isbn.
+     * @param negativeTtl How long to remember that an isbn has no references.
+     * @param clock The clock to expire the entries by.
+     */
+    @SuppressWarnings("PMD.UseConcurrentHashMap") // Access order is needed for the LRU, access is synchronized
+    public ReferenceCache(int maxSize, Duration ttl, Duration negativeTtl, Clock clock) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttl.toMillis();
+        this.negativeTtlMillis = negativeTtl.toMillis();
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * The cached answer for an isbn.
+     */
+    public static final class Entry {
+
+        private final transient List<Reference> references;
+        private final transient long expiresAt;
+
+        private Entry(List<Reference> references, long expiresAt) {
+            this.references = references;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * A copy of the references, so the caller can change the list.
+         * @return The references, null if alma-sru had none for the isbn.
+         */
+        public List<Reference> getReferences() {
+            return references == null ? null : new ArrayList<>(references);
+        }
+    }
+
+    /**
+     * Looks up an isbn.
+     * @param isbn The isbn.
+     * @return The cached answer, or null if the isbn is not cached or has expired.
+     */
+    public Entry get(String isbn) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(isbn);
+            if (entry != null && entry.expiresAt <= clock.millis()) {
+                entries.remove(isbn);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Remembers the answer from alma-sru for an isbn.
+     * @param isbn The isbn.
+     * @param references The references for the isbn, null or empty if it had none.
+     */
+    public void put(String isbn, List<Reference> references) {
+        long now = clock.millis();
+        Entry entry = references == null || references.isEmpty()
+                ? new Entry(null, now + negativeTtlMillis)
+                : new Entry(Collections.unmodifiableList(new ArrayList<>(references)), now + ttlMillis);
+        synchronized (entries) {
+            entries.put(isbn, entry);
+            if (entries.size() > maxSize) {
+                Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = entries.entrySet().iterator();
+                leastRecentlyUsed.next();
+                leastRecentlyUsed.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The number of isbns in the cache, including expired ones that have not been looked up since.
+     * @return The number of isbns.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", size=" + size();
+    }
+}
@@ -0,0 +1,152 @@
+package no.unit.alma;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import software.amazon.awssdk.http.HttpStatusCode;
+
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Decides whether and when a failed call to Alma is retried.
+ * The waits grow exponentially with full jitter: a random time between 0 and base * 2^attempt, at most maxDelay.
+ * Alma answers that will never succeed (4xx other than 408 and 429) are not retried. A Retry-After header is
+ * honoured, and no retry is started that would end after the deadline of the invocation.
+ * Every attempt gets a request timeout, at most DEFAULT_REQUEST_TIMEOUT and never past the deadline, so a hung
+ * call is given up on while there is still time to report it.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final Duration DEFAULT_BASE_DELAY = Duration.ofMillis(500);
+    public static final Duration DEFAULT_MAX_DELAY = Duration.ofSeconds(8);
+    public static final Duration SAFETY_MARGIN = Duration.ofSeconds(5);
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(20);
+    public static final Duration MIN_REQUEST_TIMEOUT = Duration.ofSeconds(1);
+    public static final String RETRY_AFTER = "Retry-After";
+    public static final long NO_RETRY = -1;
+
+    private static final int REQUEST_TIMEOUT = 408;
+    private static final int MAX_SHIFT = 30;
+
+    private final transient int maxAttempts;
+    private final transient long baseDelayMillis;
+    private final transient long maxDelayMillis;
+    private final transient Clock clock;
+    private final transient DoubleSupplier random;
+    private final transient long deadlineMillis;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, Clock.systemUTC(),
+            () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * Creates a policy without a deadline.
+     * @param maxAttempts The number of attempts, including the first one.
+     * @param baseDelay The longest wait before the first retry.
+     * @param maxDelay The longest wait before any retry, not counting Retry-After.
+     * @param clock The clock to check the deadline against.
+     * @param random Gives a number between 0 (inclusive) and 1 (exclusive) for the jitter.
+     */
+    public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, Clock clock, DoubleSupplier random) {
+        this(maxAttempts, baseDelay.toMillis(), maxDelay.toMillis(), clock, random, Long.MAX_VALUE);
+    }
+
+    private RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, Clock clock, DoubleSupplier random,
+            long deadlineMillis) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.clock = clock;
+        this.random = random;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * The same policy, but without retries that would end after the invocation is about to time out.
+     * @param context The context of the invocation.
+     * @return The policy for this invocation.
+     */
+    public RetryPolicy withTimeBudget(Context context) {
+        long deadline = clock.millis() + context.getRemainingTimeInMillis() - SAFETY_MARGIN.toMillis();
+        return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, clock, random, deadline);
+    }
+
+    /**
+     * How long the attempt that is sent now may take: what is left until the deadline, at most
+     * DEFAULT_REQUEST_TIMEOUT and at least MIN_REQUEST_TIMEOUT.
+     * @return The request timeout.
+     */
+    public Duration requestTimeout() {
+        long remaining = deadlineMillis - clock.millis();
+        return Duration.ofMillis(Math.max(MIN_REQUEST_TIMEOUT.toMillis(),
+                Math.min(DEFAULT_REQUEST_TIMEOUT.toMillis(), remaining)));
+    }
+
+    /**
+     * Whether the outcome of a call is worth trying again.
+     * @param response The response, null if the call failed without one.
+     * @param error The exception the call failed with, null if it gave a response.
+     * @return true for failures without a response, 408, 429 and 5xx.
+     */
+    public boolean isRetryable(HttpResponse<?> response, Throwable error) {
+        if (error != null || response == null) {
+            return true;
+        }
+        int status = response.statusCode();
+        return status == HttpStatusCode.THROTTLING || status == REQUEST_TIMEOUT
+                || status >= HttpStatusCode.INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * How long to wait before the next attempt.
+     * @param attempt The attempt that just failed, 0 for the first one.
+     * @param response The response, null if the call failed without one.
+     * @param error The exception the call failed with, null if it gave a response.
+     * @return The wait in milliseconds, or NO_RETRY if the call should not be tried again.
+     */
+    public long retryDelayMillis(int attempt, HttpResponse<?> response, Throwable error) {
+        if (attempt + 1 >= maxAttempts || !isRetryable(response, error)) {
+            return NO_RETRY;
+        }
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, MAX_SHIFT));
+        long delay = (long) (random.getAsDouble() * ceiling);
+        if (response != null) {
+            delay = Math.max(delay, retryAfterMillis(response).orElse(0L));
+        }
+        if (clock.millis() + delay > deadlineMillis) {
+            return NO_RETRY;
+        }
+        return delay;
+    }
+
+    /**
+     * Reads the Retry-After header, either a number of seconds or an http-date.
+     * @param response The response.
+     * @return The wait it asks for in milliseconds, empty if there is none or it cannot be read.
+     */
+    private Optional<Long> retryAfterMillis(HttpResponse<?> response) {
+        Optional<String> retryAfter = response.headers().firstValue(RETRY_AFTER);
+        if (retryAfter.isEmpty()) {
+            return Optional.empty();
+        }
+        String value = retryAfter.get().trim();
+        try {
+            return Optional.of(Math.max(0, Long.parseLong(value)) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                long at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Optional.of(Math.max(0, at - clock.millis()));
+            } catch (DateTimeParseException notADate) {
+                return Optional.empty();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package no.unit.alma;
+
+/**
+ * A bib record after the updates have been inserted, and whether any of them were.
+ */
+public final class RewriteResult {
+
+    private final transient String xml;
+    private final transient boolean changed;
+
+    private RewriteResult(String xml, boolean changed) {
+        this.xml = xml;
+        this.changed = changed;
+    }
+
+    /**
+     * The record got at least one new field.
+     * @param xml The rewritten record.
+     * @return The result.
+     */
+    public static RewriteResult changed(String xml) {
+        return new RewriteResult(xml, true);
+    }
+
+    /**
+     * Every update already existed on the record.
+     * @param xmlFromAlma The record exactly as it was received.
+     * @return The result.
+     */
+    public static RewriteResult unchanged(String xmlFromAlma) {
+        return new RewriteResult(xmlFromAlma, false);
+    }
+
+    public String getXml() {
+        return xml;
+    }
+
+    public boolean isChanged() {
+        return changed;
+    }
+}
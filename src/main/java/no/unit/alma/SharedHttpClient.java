@@ -0,0 +1,25 @@
+package no.unit.alma;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+/**
+ * The HTTP/2 client shared by the calls to Alma and alma-sru, so the connections are reused between them
+ * and between warm invocations.
+ */
+public final class SharedHttpClient {
+
+    public static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+
+    private SharedHttpClient() {
+    }
+
+    public static HttpClient get() {
+        return HTTP_CLIENT;
+    }
+}
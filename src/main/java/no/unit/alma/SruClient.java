@@ -0,0 +1,152 @@
+package no.unit.alma;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import no.unit.marc.Reference;
+import no.unit.metrics.Metrics;
+import no.unit.profiling.PipelineEvents;
+import software.amazon.awssdk.http.HttpStatusCode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Looks up the references (mms_id's) for isbns in alma-sru.
+ */
+public class SruClient {
+
+    public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final Gson GSON = new Gson();
+    private static final Type REFERENCE_LIST_TYPE = new TypeToken<List<Reference>>() {}.getType();
+    private static final ReferenceCache SHARED_CACHE = new ReferenceCache();
+
+    private final transient HttpClient httpClient;
+    private final transient String sruHost;
+    private final transient ReferenceCache cache;
+    private final transient Metrics metrics = Metrics.getInstance();
+
+    /**
+     * Creates a client for alma-sru that uses the cache shared by all clients, which lives as long as the lambda.
+     * @param httpClient The client to send the requests with.
+     * @param sruHost The url of alma-sru, the isbn is appended to it.
+     */
+    public SruClient(HttpClient httpClient, String sruHost) {
+        this(httpClient, sruHost, SHARED_CACHE);
+    }
+
+    /**
+     * Creates a client for alma-sru.
+     * @param httpClient The client to send the requests with.
+     * @param sruHost The url of alma-sru, the isbn is appended to it.
+     * @param cache The cache in front of alma-sru.
+     */
+    public SruClient(HttpClient httpClient, String sruHost, ReferenceCache cache) {
+        this.httpClient = httpClient;
+        this.sruHost = sruHost;
+        this.cache = cache;
+    }
+
+    public ReferenceCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Looks up all the isbns at the same time.
+     * @param isbns The isbns to look up.
+     * @return The references for every isbn, in the same order as the isbns.
+     *     A list is null if alma-sru answered with an empty body.
+     * @throws IOException When a lookup fails or times out.
+     * @throws InterruptedException When interrupted while waiting for the answers.
+     */
+    public List<List<Reference>> getReferenceListsByIsbn(String... isbns) throws IOException, InterruptedException {
+        List<CompletableFuture<List<Reference>>> lookups = new ArrayList<>();
+        for (String isbn : isbns) {
+            lookups.add(getReferenceListByIsbnAsync(isbn));
+        }
+        List<List<Reference>> referenceLists = new ArrayList<>();
+        try {
+            for (CompletableFuture<List<Reference>> lookup : lookups) {
+                referenceLists.add(lookup.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Lookup in alma-sru failed. " + e.getCause().getMessage(), e.getCause());
+        }
+        return referenceLists;
+    }
+
+    /**
+     * Looks up one isbn without blocking the calling thread. Cached isbns are answered without asking alma-sru.
+     * @param isbn The isbn to look up.
+     * @return A future with the references for the isbn, null if alma-sru answered with an empty body.
+     */
+    public CompletableFuture<List<Reference>> getReferenceListByIsbnAsync(String isbn) {
+        ReferenceCache.Entry cached = cache.get(isbn);
+        if (cached != null) {
+            metrics.count(Metrics.SRU_CACHE_HIT);
+            return CompletableFuture.completedFuture(cached.getReferences());
+        }
+        HttpRequest request = HttpRequest.newBuilder()
+                .GET()
+                .uri(URI.create(sruHost + isbn))
+                .timeout(REQUEST_TIMEOUT)
+                .build();
+        long start = System.nanoTime();
+        PipelineEvents.SruLookupEvent event = new PipelineEvents.SruLookupEvent();
+        event.begin();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                .whenComplete((response, error) -> metrics.recordCall(Metrics.SRU_LOOKUP, start, response, error))
+                .thenApply(response -> {
+                    List<Reference> references = parse(isbn, response);
+                    cache.put(isbn, references);
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.isbn = isbn;
+                        event.statusCode = response.statusCode();
+                        event.references = references == null ? 0 : references.size();
+                        event.commit();
+                    }
+                    return references;
+                });
+    }
+
+    private List<Reference> parse(String isbn, HttpResponse<InputStream> response) {
+        try (Reader reader = new InputStreamReader(response.body(), StandardCharsets.UTF_8)) {
+            if (response.statusCode() != HttpStatusCode.OK) {
+                throw new IOException("alma-sru answered " + response.statusCode() + " for isbn: " + isbn);
+            }
+            return readReferences(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the references from an answer of alma-sru.
+     * @param reader The body of the answer.
+     * @return The references, null if the body is empty.
+     */
+    static List<Reference> readReferences(Reader reader) {
+        return GSON.fromJson(reader, REFERENCE_LIST_TYPE);
+    }
+}
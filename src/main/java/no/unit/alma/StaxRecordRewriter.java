@@ -0,0 +1,698 @@
+package no.unit.alma;
+
+import no.unit.exceptions.ParsingException;
+import no.unit.scheduler.UpdateItem;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rewrites the bib record with StAX instead of building a DOM.
+ * This is a two-pass, buffered engine, not a single streaming pass: a read-only pass finds the 035 fields,
+ * the existing 856/956 fields and the insertion point, then a second pass copies the record to an in-memory
+ * output and writes the new fields on the way, dropping line breaks as they are written.
+ * The input and the output are both held as strings, so peak memory grows with the record, but no node tree
+ * is built; the scan only keeps the subfields of the existing 856/956 fields for the duplicate checks.
+ * The output is the same as from the DOM engine. Records this engine cannot write exactly the
+ * same way (numeric character references, characters outside the BMP, a DTD, markup the DOM engine
+ * fails on) are handed to the DOM engine.
+ */
+public class StaxRecordRewriter implements BibRecordRewriter {
+
+    public static final String NAME = "STAX";
+
+    private static final String CHARACTER_REFERENCE = "&#";
+    private static final String CDATA_START = "<![CDATA[";
+    private static final String CDATA_END = "]]>";
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+    private static final String NEWLINE = "\n";
+    private static final String XMLNS = "xmlns";
+    private static final String XML_PREFIX = "xml";
+    private static final int NOT_FOUND = -1;
+    private static final char DELETE = 0x7F;
+    private static final char LAST_C1_CONTROL = 0x9F;
+    private static final char LINE_SEPARATOR = 0x2028;
+
+    private static final XMLInputFactory SCAN_FACTORY = createInputFactory(true);
+    private static final XMLInputFactory COPY_FACTORY = createInputFactory(false);
+    private static final boolean REPORTS_CDATA = COPY_FACTORY.isPropertySupported(REPORT_CDATA);
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newFactory();
+
+    private final transient BibRecordRewriter fallback;
+
+    public StaxRecordRewriter() {
+        this.fallback = new DomRecordRewriter();
+    }
+
+    public StaxRecordRewriter(BibRecordRewriter fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public RewriteResult rewriteRecord(List<UpdateItem> updateItems, String xmlFromAlma) throws ParsingException {
+        if (updateItems.isEmpty()) {
+            return RewriteResult.unchanged(xmlFromAlma);
+        }
+        String xml = xmlFromAlma.replace(DocumentXmlParser.MARC_PREFIX, DocumentXmlParser.EMPTY_STRING);
+        if (!canStream(xml, updateItems)) {
+            return fallback.rewriteRecord(updateItems, xmlFromAlma);
+        }
+        try {
+            RecordScan scan = scan(xml);
+            if (!scan.streamable) {
+                return fallback.rewriteRecord(updateItems, xmlFromAlma);
+            }
+            InsertPlan plan = scan.plan(updateItems);
+            if (plan == null) {
+                return fallback.rewriteRecord(updateItems, xmlFromAlma);
+            }
+            if (plan.inserted.isEmpty()) {
+                return RewriteResult.unchanged(xmlFromAlma);
+            }
+            return RewriteResult.changed(copyWithInserts(xml, plan));
+        } catch (XMLStreamException e) {
+            throw new ParsingException(DocumentXmlParser.CONVERTING_TO_DOC_ERROR_MESSAGE, e);
+        }
+    }
+
+    /**
+     * The DOM engine converts the record to a string and back between updates, which can strip the
+     * marc-prefix more than once. Character references and surrogate pairs are serialized as references
+     * by the DOM engine, and so are carriage returns in the updates. CDATA sections can only be copied if the
+     * StAX implementation reports them. Such records are left to the DOM engine.
+     */
+    private boolean canStream(String xml, List<UpdateItem> updateItems) {
+        String joinedText = removeNewlines(xml).replace(CDATA_START, DocumentXmlParser.EMPTY_STRING)
+                .replace(CDATA_END, DocumentXmlParser.EMPTY_STRING);
+        if (xml.contains(CHARACTER_REFERENCE) || joinedText.contains(DocumentXmlParser.MARC_PREFIX)) {
+            return false;
+        }
+        if (hasCharactersWrittenAsReferences(xml) || !REPORTS_CDATA && xml.contains(CDATA_START)) {
+            return false;
+        }
+        for (UpdateItem item : updateItems) {
+            if (!canStreamValue(item.getSpecifiedMaterial()) || !canStreamValue(item.getLink())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean canStreamValue(String value) {
+        return !removeNewlines(value).contains(DocumentXmlParser.MARC_PREFIX)
+                && value.indexOf('\r') < 0
+                && !hasCharactersWrittenAsReferences(value);
+    }
+
+    private boolean hasCharactersWrittenAsReferences(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isSurrogate(c) || c < ' ' && c != '\t' && c != '\n' && c != '\r'
+                    || c >= DELETE && c <= LAST_C1_CONTROL || c == LINE_SEPARATOR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings({"PMD.CognitiveComplexity", "PMD.NPathComplexity"})
+    private RecordScan scan(String xml) throws XMLStreamException {
+        RecordScan scan = new RecordScan();
+        XMLStreamReader reader = SCAN_FACTORY.createXMLStreamReader(new StringReader(xml));
+        try {
+            int depth = 0;
+            int datafieldDepth = NOT_FOUND;
+            int datafieldTag = NOT_FOUND;
+            ScannedField field = null;
+            StringBuilder childText = null;
+            while (reader.hasNext() && scan.streamable) {
+                int event = reader.next();
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth == 2) {
+                            scan.startRootChild();
+                        }
+                        if (datafieldDepth != NOT_FOUND && DocumentXmlParser.DATAFIELD.equals(reader.getLocalName())) {
+                            // Datafields inside datafields are left to the DOM engine.
+                            scan.streamable = false;
+                        } else if (datafieldDepth != NOT_FOUND && depth == datafieldDepth + 1) {
+                            childText = new StringBuilder();
+                            if (field != null) {
+                                field.startSubfield(reader.getAttributeValue(null, DatafieldFactory.CODE));
+                                scan.streamable = field.streamable;
+                            }
+                        } else if (DocumentXmlParser.DATAFIELD.equals(reader.getLocalName())) {
+                            String tag = reader.getAttributeValue(null, DatafieldFactory.TAG);
+                            datafieldTag = scan.startDatafield(tag, depth);
+                            datafieldDepth = depth;
+                            field = datafieldTag == DocumentXmlParser.MARC_TAG_856
+                                    || datafieldTag == DocumentXmlParser.MARC_TAG_956
+                                    ? scan.addField(datafieldTag) : null;
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (datafieldDepth != NOT_FOUND && depth == datafieldDepth + 1) {
+                            scan.endDatafieldChild(datafieldTag, field, childText.toString());
+                            childText = null;
+                        } else if (depth == datafieldDepth) {
+                            datafieldDepth = NOT_FOUND;
+                            field = null;
+                        }
+                        depth--;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (depth == 1) {
+                            scan.lastRootChildIsElement = false;
+                        }
+                        if (datafieldDepth != NOT_FOUND && depth == datafieldDepth) {
+                            // A text child of a datafield: the DOM engine fails on it in the duplicate check.
+                            scan.streamable = field == null;
+                            scan.endDatafieldChild(datafieldTag, null, reader.getText());
+                        } else if (childText != null) {
+                            childText.append(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        scan.streamable = depth > 0 && (datafieldDepth == NOT_FOUND || depth > datafieldDepth);
+                        if (depth == 1) {
+                            scan.lastRootChildIsElement = false;
+                        }
+                        break;
+                    case XMLStreamConstants.DTD:
+                    case XMLStreamConstants.ENTITY_REFERENCE:
+                        scan.streamable = false;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return scan;
+    }
+
+    @SuppressWarnings({"PMD.CognitiveComplexity", "PMD.NPathComplexity"})
+    private String copyWithInserts(String xml, InsertPlan plan) throws XMLStreamException {
+        StringWriter output = new StringWriter();
+        XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(new LineBreakDroppingWriter(output));
+        XMLStreamReader reader = COPY_FACTORY.createXMLStreamReader(new StringReader(xml));
+        try {
+            PendingElement pending = null;
+            NamespaceScopes namespaces = new NamespaceScopes();
+            int depth = 0;
+            int datafieldOrdinal = NOT_FOUND;
+            int rootChildOrdinal = NOT_FOUND;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        writeStart(writer, pending);
+                        depth++;
+                        if (depth == 2) {
+                            rootChildOrdinal++;
+                        }
+                        if (DocumentXmlParser.DATAFIELD.equals(reader.getLocalName())) {
+                            datafieldOrdinal++;
+                            if (datafieldOrdinal == plan.insertBeforeDatafield) {
+                                writeInsertedFields(writer, plan);
+                            }
+                        }
+                        pending = new PendingElement(reader, namespaces);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        boolean appendHere = depth == 2 && rootChildOrdinal == plan.appendToRootChild;
+                        if (pending != null && !appendHere) {
+                            pending.writeEmpty(writer);
+                        } else {
+                            writeStart(writer, pending);
+                            if (appendHere) {
+                                writeInsertedFields(writer, plan);
+                            }
+                            writer.writeEndElement();
+                        }
+                        pending = null;
+                        namespaces.end();
+                        depth--;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        if (depth > 0 && !(plan.roundTripped && isOnlyNewlines(reader.getText()))) {
+                            writeStart(writer, pending);
+                            pending = null;
+                            writer.writeCharacters(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.CDATA:
+                        // Empty CDATA sections are not written by the DOM serializer.
+                        if (!reader.getText().isEmpty() && !(plan.roundTripped && isOnlyNewlines(reader.getText()))) {
+                            writeStart(writer, pending);
+                            pending = null;
+                            writer.writeCData(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        writeStart(writer, pending);
+                        pending = null;
+                        writer.writeComment(reader.getText());
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        writeStart(writer, pending);
+                        pending = null;
+                        writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            writer.writeEndDocument();
+            writer.flush();
+        } finally {
+            reader.close();
+            writer.close();
+        }
+        return output.toString();
+    }
+
+    private void writeStart(XMLStreamWriter writer, PendingElement pending) throws XMLStreamException {
+        if (pending != null) {
+            pending.writeStart(writer);
+        }
+    }
+
+    /**
+     * Every update is inserted before the previous one, so the fields are written in reverse order.
+     */
+    private void writeInsertedFields(XMLStreamWriter writer, InsertPlan plan) throws XMLStreamException {
+        for (int i = plan.inserted.size() - 1; i >= 0; i--) {
+            InsertedField field = plan.inserted.get(i);
+            writer.writeStartElement(DocumentXmlParser.DATAFIELD);
+            writer.writeAttribute(DatafieldFactory.IND1, DatafieldFactory.IND1_VALUE);
+            writer.writeAttribute(DatafieldFactory.IND2, DatafieldFactory.IND2_VALUE);
+            writer.writeAttribute(DatafieldFactory.TAG, String.valueOf(plan.marcTag));
+            for (DatafieldFactory.Subfield subfield : DatafieldFactory.subfields(
+                    field.item.getSpecifiedMaterial(), field.item.getLink(), plan.marcTag)) {
+                writeSubfield(writer, subfield.getCode(), subfield.getValue(), field.roundTripped);
+            }
+            writer.writeEndElement();
+        }
+    }
+
+    private void writeSubfield(XMLStreamWriter writer, String code, String value, boolean roundTripped)
+            throws XMLStreamException {
+        if (value.isEmpty() || roundTripped && isOnlyNewlines(value)) {
+            writer.writeEmptyElement(DatafieldFactory.SUBFIELD);
+            writer.writeAttribute(DatafieldFactory.CODE, code);
+        } else {
+            writer.writeStartElement(DatafieldFactory.SUBFIELD);
+            writer.writeAttribute(DatafieldFactory.CODE, code);
+            writer.writeCharacters(value);
+            writer.writeEndElement();
+        }
+    }
+
+    private static boolean isOnlyNewlines(String text) {
+        return text.replace(NEWLINE, DocumentXmlParser.EMPTY_STRING).isEmpty();
+    }
+
+    private static String removeNewlines(String text) {
+        return text.replace(NEWLINE, DocumentXmlParser.EMPTY_STRING);
+    }
+
+    private static XMLInputFactory createInputFactory(boolean coalescing) {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        // The DOM engine parses without namespace awareness and keeps prefixed names as they are.
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, coalescing);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        if (!coalescing && factory.isPropertySupported(REPORT_CDATA)) {
+            // The DOM keeps CDATA sections, so they are copied as CDATA sections.
+            factory.setProperty(REPORT_CDATA, true);
+        }
+        return factory;
+    }
+
+    /**
+     * What the scan pass found out about the record.
+     */
+    private static final class RecordScan {
+
+        private transient boolean streamable = true;
+        private transient boolean electronic;
+        private transient boolean electronicWithoutNewlines;
+        private transient boolean lastRootChildIsElement;
+        private transient boolean hasRootChild;
+        private transient int datafieldCount;
+        private transient int rootChildCount;
+        private transient int firstAtLeast856 = NOT_FOUND;
+        private transient int firstAtLeast956 = NOT_FOUND;
+        private final transient List<ScannedField> fields856 = new ArrayList<>();
+        private final transient List<ScannedField> fields956 = new ArrayList<>();
+
+        private void startRootChild() {
+            hasRootChild = true;
+            lastRootChildIsElement = true;
+            rootChildCount++;
+            firstAtLeast856 = NOT_FOUND;
+            firstAtLeast956 = NOT_FOUND;
+        }
+
+        private int startDatafield(String tagValue, int depth) {
+            int ordinal = datafieldCount++;
+            if (tagValue == null) {
+                streamable = false;
+                return NOT_FOUND;
+            }
+            int tag;
+            try {
+                tag = Integer.parseInt(tagValue);
+            } catch (NumberFormatException e) {
+                streamable = false;
+                return NOT_FOUND;
+            }
+            // Inserting is only possible in the last child of the root element, i.e. the record.
+            if (depth == 3) {
+                if (firstAtLeast856 == NOT_FOUND && tag >= DocumentXmlParser.MARC_TAG_856) {
+                    firstAtLeast856 = ordinal;
+                }
+                if (firstAtLeast956 == NOT_FOUND && tag >= DocumentXmlParser.MARC_TAG_956) {
+                    firstAtLeast956 = ordinal;
+                }
+            }
+            return tag;
+        }
+
+        private ScannedField addField(int tag) {
+            ScannedField field = new ScannedField();
+            if (tag == DocumentXmlParser.MARC_TAG_856) {
+                fields856.add(field);
+            } else {
+                fields956.add(field);
+            }
+            return field;
+        }
+
+        private void endDatafieldChild(int tag, ScannedField field, String text) {
+            if (tag == DocumentXmlParser.MARC_TAG_035 && text.contains(DocumentXmlParser.ELECTRONIC_VALUE)) {
+                electronic = true;
+            }
+            if (tag == DocumentXmlParser.MARC_TAG_035
+                    && removeNewlines(text).contains(DocumentXmlParser.ELECTRONIC_VALUE)) {
+                electronicWithoutNewlines = true;
+            }
+            if (field != null) {
+                field.endSubfield(text);
+            }
+        }
+
+        /**
+         * Replays the duplicate checks of the DOM engine. Before every update after an insert the DOM
+         * engine has round-tripped the record through a one-line string, which removes line breaks from text.
+         * @return the plan, or null if the record has to be handled by the DOM engine.
+         */
+        private InsertPlan plan(List<UpdateItem> updateItems) {
+            if (electronic != electronicWithoutNewlines) {
+                return null;
+            }
+            InsertPlan plan = new InsertPlan();
+            plan.marcTag = electronic ? DocumentXmlParser.MARC_TAG_956 : DocumentXmlParser.MARC_TAG_856;
+            List<ScannedField> existing = electronic ? fields956 : fields856;
+            for (UpdateItem item : updateItems) {
+                boolean roundTripped = !plan.inserted.isEmpty();
+                if (exists(item, existing, roundTripped) || existsInInserted(item, plan.inserted)) {
+                    continue;
+                }
+                InsertedField inserted = new InsertedField();
+                inserted.item = item;
+                plan.inserted.add(inserted);
+            }
+            // The record is only converted to a string when an update is inserted.
+            for (int i = 0; i < plan.inserted.size() - 1; i++) {
+                plan.inserted.get(i).roundTripped = true;
+            }
+            plan.roundTripped = plan.inserted.size() > 1;
+            if (plan.inserted.isEmpty()) {
+                return plan;
+            }
+            if (!hasRootChild || !lastRootChildIsElement) {
+                return null;
+            }
+            int insertBefore = electronic ? firstAtLeast956 : firstAtLeast856;
+            if (insertBefore == NOT_FOUND) {
+                plan.appendToRootChild = rootChildCount - 1;
+            } else {
+                plan.insertBeforeDatafield = insertBefore;
+            }
+            return plan;
+        }
+
+        private boolean exists(UpdateItem item, List<ScannedField> fields, boolean roundTripped) {
+            for (ScannedField field : fields) {
+                if (field.matches(item, roundTripped)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean existsInInserted(UpdateItem item, List<InsertedField> inserted) {
+            String material = item.getSpecifiedMaterial().trim();
+            String url = item.getLink().trim();
+            for (InsertedField field : inserted) {
+                if (removeNewlines(field.item.getSpecifiedMaterial()).trim().equals(material)
+                        && removeNewlines(field.item.getLink()).trim().equals(url)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The subfield codes and values of an existing 856/956 field.
+     */
+    private static final class ScannedField {
+
+        private final transient List<Character> codes = new ArrayList<>();
+        private final transient List<String> values = new ArrayList<>();
+        private transient boolean streamable = true;
+
+        private void startSubfield(String code) {
+            if (code == null) {
+                streamable = false;
+                return;
+            }
+            // Same as DocumentXmlParser.getSubfieldCode, which reads the last character of the code.
+            codes.add(code.isEmpty() ? null : code.charAt(code.length() - 1));
+        }
+
+        private void endSubfield(String value) {
+            values.add(value);
+        }
+
+        private boolean matches(UpdateItem item, boolean roundTripped) {
+            boolean specifiedMaterialMatches = false;
+            boolean urlMatches = false;
+            for (int i = 0; i < codes.size(); i++) {
+                String value = roundTripped ? removeNewlines(values.get(i)).trim() : values.get(i).trim();
+                Character code = codes.get(i);
+                if (code != null && code == DocumentXmlParser.MARC_CODE_3
+                        && value.equals(item.getSpecifiedMaterial().trim())) {
+                    specifiedMaterialMatches = true;
+                }
+                if (code != null && code == DocumentXmlParser.MARC_CODE_U && value.equals(item.getLink().trim())) {
+                    urlMatches = true;
+                }
+            }
+            return specifiedMaterialMatches && urlMatches;
+        }
+    }
+
+    /**
+     * Where and what to insert.
+     */
+    private static final class InsertPlan {
+
+        private final transient List<InsertedField> inserted = new ArrayList<>();
+        private transient int marcTag;
+        private transient boolean roundTripped;
+        private transient int insertBeforeDatafield = NOT_FOUND;
+        private transient int appendToRootChild = NOT_FOUND;
+    }
+
+    /**
+     * An UpdateItem to insert, and whether the DOM engine round-trips the record after inserting it,
+     * which it does when another update is inserted after it.
+     */
+    private static final class InsertedField {
+
+        private transient UpdateItem item;
+        private transient boolean roundTripped;
+    }
+
+    /**
+     * A start tag that is held back until it is known whether the element is empty.
+     * Attributes are written the way the DOM serializer writes them: namespace declarations first,
+     * then the other attributes, both sorted by name. Declarations already in scope are left out.
+     */
+    @SuppressWarnings("PMD.UseConcurrentHashMap") // Only used by one thread, and the order is needed
+    private static final class PendingElement {
+
+        private final transient String name;
+        private final transient Map<String, String> declarations = new TreeMap<>();
+        private final transient Map<String, String> attributes = new TreeMap<>();
+
+        private PendingElement(XMLStreamReader reader, NamespaceScopes namespaces) {
+            name = reader.getLocalName();
+            namespaces.start();
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                String prefix = reader.getAttributePrefix(i);
+                String localName = reader.getAttributeLocalName(i);
+                String value = reader.getAttributeValue(i);
+                if (XMLNS.equals(prefix)) {
+                    addDeclaration(prefix + ':' + localName, localName, value, namespaces);
+                } else if ((prefix == null || prefix.isEmpty()) && XMLNS.equals(localName)) {
+                    addDeclaration(localName, DocumentXmlParser.EMPTY_STRING, value, namespaces);
+                } else {
+                    attributes.put(prefix == null || prefix.isEmpty() ? localName : prefix + ':' + localName, value);
+                }
+            }
+        }
+
+        private void addDeclaration(String attributeName, String prefix, String uri, NamespaceScopes namespaces) {
+            if (namespaces.declare(prefix, uri)) {
+                declarations.put(attributeName, uri);
+            }
+        }
+
+        private void writeStart(XMLStreamWriter writer) throws XMLStreamException {
+            writer.writeStartElement(name);
+            writeAttributes(writer);
+        }
+
+        private void writeEmpty(XMLStreamWriter writer) throws XMLStreamException {
+            writer.writeEmptyElement(name);
+            writeAttributes(writer);
+        }
+
+        private void writeAttributes(XMLStreamWriter writer) throws XMLStreamException {
+            for (Map.Entry<String, String> declaration : declarations.entrySet()) {
+                writer.writeAttribute(declaration.getKey(), declaration.getValue());
+            }
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                writer.writeAttribute(attribute.getKey(), attribute.getValue());
+            }
+        }
+    }
+
+    /**
+     * The namespace declarations in scope, one map from prefix to uri per open element.
+     */
+    @SuppressWarnings("PMD.UseConcurrentHashMap") // Only used by one thread
+    private static final class NamespaceScopes {
+
+        private final transient Deque<Map<String, String>> scopes = new ArrayDeque<>();
+
+        private NamespaceScopes() {
+            Map<String, String> predeclared = new HashMap<>();
+            predeclared.put(DocumentXmlParser.EMPTY_STRING, DocumentXmlParser.EMPTY_STRING);
+            predeclared.put(XML_PREFIX, XMLConstants.XML_NS_URI);
+            scopes.push(predeclared);
+        }
+
+        private void start() {
+            scopes.push(new HashMap<>());
+        }
+
+        private void end() {
+            scopes.pop();
+        }
+
+        /**
+         * Declares the prefix in the current scope.
+         * @return false if the prefix is already bound to the same uri, which makes the declaration redundant.
+         */
+        private boolean declare(String prefix, String uri) {
+            for (Map<String, String> scope : scopes) {
+                if (scope.containsKey(prefix)) {
+                    if (scope.get(prefix).equals(uri)) {
+                        return false;
+                    }
+                    break;
+                }
+            }
+            scopes.peek().put(prefix, uri);
+            return true;
+        }
+    }
+
+    /**
+     * Drops the line breaks from what is written, like the DOM engine does to its serialized record,
+     * so the output does not have to be copied again to remove them.
+     */
+    private static final class LineBreakDroppingWriter extends FilterWriter {
+
+        private LineBreakDroppingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (c != '\n' && c != '\r') {
+                out.write(c);
+            }
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            int start = offset;
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                if (buffer[i] == '\n' || buffer[i] == '\r') {
+                    out.write(buffer, start, i - start);
+                    start = i + 1;
+                }
+            }
+            out.write(buffer, start, end - start);
+        }
+
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            int start = offset;
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                if (text.charAt(i) == '\n' || text.charAt(i) == '\r') {
+                    out.write(text, start, i - start);
+                    start = i + 1;
+                }
+            }
+            out.write(text, start, end - start);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return NAME;
+    }
+}
@@ -2,49 +2,166 @@ package no.unit.alma;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.lang.reflect.Type;
-import java.net.URL;
-import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import no.unit.exceptions.ParsingException;
-import no.unit.exceptions.SchedulerException;
 import no.unit.marc.Reference;
+import no.unit.metrics.Metrics;
+import no.unit.profiling.FlightRecording;
+import no.unit.scheduler.DlqWriter;
 import no.unit.scheduler.SchedulerHelper;
 import no.unit.scheduler.UpdateItem;
+import no.unit.scheduler.UpdateItemCoalescer;
+import no.unit.scheduler.UpdateItemCoalescer.CoalescedUpdate;
 import no.unit.utils.DebugUtils;
-import org.w3c.dom.Document;
-import software.amazon.awssdk.http.HttpStatusCode;
+import org.crac.Core;
 
 
-public class UpdateAlmaDescriptionHandler implements RequestHandler<SQSEvent, Void> {
+public class UpdateAlmaDescriptionHandler implements RequestHandler<SQSEvent, SQSBatchResponse> {
+
+    public static final String FUNCTION_NAME_DIMENSION = "FunctionName";
+    /* Set by the almaErrorHandler on the messages it sends back from the DLQ. */
+    public static final String REDRIVEN_ATTRIBUTE = "Redriven";
+    private static final String RECEIVE_COUNT_ATTRIBUTE = "ApproximateReceiveCount";
+    private static final Path RECORDING_DIRECTORY = Path.of("/tmp");
 
     private final transient Config config;
-    private final transient AlmaHelper almaHelper = new AlmaHelper();
-    private final transient SchedulerHelper schedulerHelper = new SchedulerHelper();
-    private final transient DocumentXmlParser xmlParser = new DocumentXmlParser();
+    private final transient AlmaHelper almaHelper;
+    private final transient SchedulerHelper schedulerHelper;
+    private final transient BibRecordRewriter recordRewriter;
+    private final transient BibRecordUpdater bibRecordUpdater;
+    private final transient SruClient sruClient;
+    private final transient RetryPolicy retryPolicy = new RetryPolicy();
+    private final transient Priming priming;
+    private final transient Metrics metrics = Metrics.getInstance();
+    private final transient FlightRecording flightRecording;
 
     public UpdateAlmaDescriptionHandler(Config config) {
+        this(config, new SchedulerHelper(), AlmaConnection::getInstance);
+    }
+
+    /**
+     * Creates a handler that talks to the Alma and alma-sru of the config, like a fake one in a load test.
+     * @param config The config with the hosts and concurrencies.
+     * @param schedulerHelper Splits the events and makes the writer for the DLQ.
+     * @param almaConnection The connection the calls to Alma are sent with.
+     */
+    public UpdateAlmaDescriptionHandler(Config config, SchedulerHelper schedulerHelper,
+            AlmaConnection almaConnection) {
+        this(config, schedulerHelper, () -> almaConnection);
+    }
+
+    private UpdateAlmaDescriptionHandler(Config config, SchedulerHelper schedulerHelper,
+            Supplier<AlmaConnection> almaConnection) {
         this.config = config;
+        this.schedulerHelper = schedulerHelper;
+        this.almaHelper = createAlmaHelper(config, almaConnection);
+        this.recordRewriter = createRecordRewriter(config.recordRewriter);
+        this.bibRecordUpdater = new BibRecordUpdater(almaHelper, recordRewriter, config.almaConcurrency);
+        this.sruClient = new SruClient(SharedHttpClient.get(), config.almaSruHost);
+        this.priming = new Priming(config, schedulerHelper, recordRewriter, Priming.DEFAULT_ROUNDS);
+        this.flightRecording = new FlightRecording(config.profileThresholdMillis, RECORDING_DIRECTORY);
     }
 
     public UpdateAlmaDescriptionHandler() {
-        config = new Config();
+        this(Config.getInstance(), new SchedulerHelper(), AlmaConnection::getInstance);
+        /* The context only keeps a weak reference, the handler keeps the priming alive. */
+        Core.getGlobalContext().register(priming);
     }
 
     /**
      * Main lambda function to update the links in Alma records.
+     * The UpdateItems of the messages in the batch are coalesced by isbn, and every isbn is processed by
+     * processUpdateItems, up to BATCH_CONCURRENCY isbns at the same time.
+     * The messages that fail are returned as batchItemFailures, so only they go back to the queue.
+     * The metrics of the invocation are written as one EMF line at the end. With PROFILE_THRESHOLD_MS set, a
+     * flight recording runs in the container and is dumped to /tmp after an invocation slower than that.
+     * @param event payload with identifying parameters
+     * @return the messages that failed
+     */
+    @Override
+    @SuppressWarnings("PMD.DoNotUseThreads")
+    public SQSBatchResponse handleRequest(final SQSEvent event, Context context) {
+        long start = System.nanoTime();
+        flightRecording.start();
+        metrics.count(Metrics.MESSAGES, event.getRecords().size());
+        List<SQSBatchResponse.BatchItemFailure> batchItemFailures = new ArrayList<>();
+        int skippedPuts = 0;
+        UpdateItemCoalescer coalescer = new UpdateItemCoalescer();
+        for (SQSEvent.SQSMessage message : event.getRecords()) {
+            /* 1. Create an UpdateItem LIST from the input. */
+            try {
+                SchedulerHelper.SplitEvent splitEvent = schedulerHelper.splitEvent(message.getBody());
+                coalescer.add(message.getMessageId(), message.getBody(), splitEvent.getChangeTime(),
+                        isRedriven(message), splitEvent.getUpdateItems());
+            } catch (Exception e) {
+                System.out.println("Failed to process message " + message.getMessageId()
+                        + ": Error while processing input event. " + e.getMessage());
+                batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(message.getMessageId()));
+            }
+        }
+        List<CoalescedUpdate> updates = new ArrayList<>(coalescer.getCoalescedUpdates());
+        metrics.count(Metrics.DUPLICATE_UPDATE_ITEMS, coalescer.getDuplicates());
+        RetryPolicy invocationRetryPolicy = retryPolicy.withTimeBudget(context);
+        System.out.println("Coalesced " + event.getRecords().size() + " messages into updates for "
+                + updates.size() + " isbns");
+
+        DlqWriter dlqWriter = schedulerHelper.createDlqWriter();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(config.batchConcurrency, updates.size())));
+        try {
+            List<CompletableFuture<Integer>> processed = new ArrayList<>();
+            for (CoalescedUpdate update : updates) {
+                processed.add(CompletableFuture.supplyAsync(() -> processUpdateItems(update, invocationRetryPolicy,
+                        dlqWriter), executor));
+            }
+            for (int i = 0; i < updates.size(); i++) {
+                try {
+                    skippedPuts += processed.get(i).join();
+                } catch (CompletionException e) {
+                    for (String messageId : updates.get(i).getMessageIds()) {
+                        System.out.println("Failed to process message " + messageId + ": "
+                                + e.getCause().getMessage());
+                        batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(messageId));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        /* The messages still buffered for the DLQ are sent now, those that could not be sent are retried by SQS. */
+        for (String messageId : dlqWriter.flush()) {
+            batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(messageId));
+        }
+        System.out.println("Skipped PUTs of unchanged records: " + skippedPuts);
+        System.out.println("SRU cache: " + sruClient.getCache());
+        System.out.println("Alma circuit: " + almaHelper.getCircuitBreaker());
+        metrics.record(Metrics.ALMA_CONCURRENCY_LIMIT, almaHelper.getLimiter().getLimit(), Metrics.Unit.COUNT);
+        metrics.recordSince(Metrics.INVOCATION, start);
+        System.out.println(metrics.flush(Map.of(FUNCTION_NAME_DIMENSION, context.getFunctionName())));
+        flightRecording.dumpIfSlow(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                context.getAwsRequestId());
+        return new SQSBatchResponse(batchItemFailures);
+    }
+
+    /**
+     * Updates the links in Alma records for the UpdateItems of one isbn.
      * Program flow:
-     * 1. Create an UpdateItem LIST from the input.
      * 2. Get a REFERENCE LIST from alma-sru through a lambda.
-     * 3. Loop through the REFERENCE LIST (and do the following for every OBJECT).
+     * 3. Loop through the REFERENCE LIST (and do the following for every OBJECT,
+     *    with up to ALMA_CONCURRENCY objects at the same time).
      * 3.1 Get the MMS_ID from the REFERENCE OBJECT.
      * 3.2 Use the MMS_ID to get a BIB-RECORD from the alma-api.
      * 3.3 Create an XML(String) by updating the existing ALMA xml with all the UpdateItems.
@@ -54,102 +171,90 @@ public class UpdateAlmaDescriptionHandler implements RequestHandler<SQSEvent, Vo
      * 3.3.4 Create a node from the UpdateItem.
      * 3.3.5 Insert update node into the record retrieved from ALMA.
      * 4. Push the updated BIB-RECORD back to the alma through a put-request to the api.
-     * @param event payload with identifying parameters
-     * @return a GatewayResponse
+     * While the circuit to ALMA is open, the messages go straight to the DLQ instead.
+     * @param update The UpdateItems of one isbn, not empty, and the messages they came from. The messages are
+     *     written to the DLQ if the isbn is not found or the circuit to ALMA is open.
+     * @param retryPolicy Decides whether and when the calls to ALMA are retried.
+     * @param dlqWriter Sends the messages for the DLQ in batches.
+     * @return The number of mms_id's where the PUT was skipped because every update already existed.
+     * @throws RuntimeException When the updates could not be done, or any of the mms_id's failed.
      */
-    @Override
-    @SuppressWarnings({"unchecked", "PMD.NPathComplexity"})
-    public Void handleRequest(final SQSEvent event, Context context) {
-        /* 1. Create an UpdateItem LIST from the input. */
-        List<UpdateItem> updateItems;
+    @SuppressWarnings("PMD.NPathComplexity")
+    public int processUpdateItems(CoalescedUpdate update, RetryPolicy retryPolicy, DlqWriter dlqWriter) {
+        List<UpdateItem> updateItems = update.getUpdateItems();
         try {
-            updateItems = schedulerHelper.splitEventIntoUpdateItems(event.getRecords().get(0).getBody());
-        } catch (Exception e) {
-            throw new RuntimeException("Error while processing input event. " + e.getMessage());
-        }
-
-        if (updateItems.isEmpty()) {
-            //In case we recieve an update without any relevant information
-            // (at the time this include audiofiles) we just skip them.
-            return null;
-        }
-
-        try {
-            /* Step 2. Get a REFERENCE LIST from alma-sru through a lambda. */
-            List<Reference> referenceList = getReferenceListByIsbn(updateItems.get(0).getIsbn());
+            String isbn = updateItems.get(0).getIsbn();
+            if (almaHelper.getCircuitBreaker().isOpen()) {
+                System.out.println("The circuit to Alma is open. Writing to DLQ for isbn: " + isbn);
+                writeToDLQ(update, dlqWriter);
+                return 0;
+            }
+            /* Step 2. Get a REFERENCE LIST from alma-sru, for the isbn and the converted isbn at the same time. */
+            String convertedIsbn = almaHelper.convertIsbn(isbn);
+            List<List<Reference>> referenceLists = sruClient.getReferenceListsByIsbn(isbn, convertedIsbn);
+            List<Reference> referenceList = referenceLists.get(0);
+            List<Reference> convertedIsbnList = referenceLists.get(1);
             if (referenceList == null || referenceList.isEmpty()) {
-                System.out.println("No answer from SRU for isbn: " + updateItems.get(0).getIsbn());
-                referenceList = getReferenceListByIsbn(almaHelper.convertIsbn(updateItems.get(0).getIsbn()));
+                System.out.println("No answer from SRU for isbn: " + isbn);
+                referenceList = convertedIsbnList;
                 if (referenceList == null || referenceList.isEmpty()) {
-                    System.out.println("No answer from SRU for isbn: "
-                            + almaHelper.convertIsbn(updateItems.get(0).getIsbn()) + ". Writing to DLQ");
-                    schedulerHelper.writeToDLQ(event.getRecords().get(0).getBody());
-                    return null;
+                    System.out.println("No answer from SRU for isbn: " + convertedIsbn + ". Writing to DLQ");
+                    writeToDLQ(update, dlqWriter);
+                    return 0;
                 }
             } else {
-                List<Reference> convertedIsbnList = getReferenceListByIsbn(almaHelper.convertIsbn(updateItems.get(0)
-                        .getIsbn()));
                 if (convertedIsbnList == null || convertedIsbnList.isEmpty()) {
-                    System.out.println("No answer from SRU for isbn: "
-                            + almaHelper.convertIsbn(updateItems.get(0).getIsbn()));
+                    System.out.println("No answer from SRU for isbn: " + convertedIsbn);
                 } else {
                     referenceList.addAll(convertedIsbnList);
                 }
             }
 
-            HttpResponse<String> almaResponse = null;
-            HttpResponse<String> response = null;
-            int sucessCounter = 0;
             /* 3. Loop through the LIST. */
             System.out.println("Found " + referenceList.size() + " different posts for the isbn: "
                     + updateItems.get(0).getIsbn());
-            for (Reference reference : referenceList) {
-                /* 3.1 Get the MMS_ID from the REFERENCE OBJECT. */
-                String mmsId = reference.getId();
-
-                /* 3.2 Use the MMS_ID to get a BIB-RECORD from the alma-api. */
-                almaResponse = almaHelper.getBibRecordFromAlmaWithRetries(mmsId);
-
-                if (almaResponse == null || almaResponse.statusCode() != HttpStatusCode.OK) {
-                    continue;
-                }
-
-                String xmlFromAlma = almaResponse.body();
-
-                /* 3.3 Create an XML(String) by updating the existing ALMA xml with all the updateItems. */
-                String updatedRecord = updateBibRecord(updateItems, xmlFromAlma);
-
-                /* 4. Push the updated BIB-RECORD back to the alma through a put-request to the api. */
-                response = almaHelper.putBibRecordInAlmaWithRetries(mmsId, updatedRecord);
-
-                if (response == null || response.statusCode() != HttpStatusCode.OK) {
-                    continue;
+            /* 3.1 - 4. are done by the BibRecordUpdater, for several MMS_IDs at a time. */
+            List<BibRecordUpdater.Result> results = bibRecordUpdater.updateAll(referenceList, updateItems, retryPolicy);
+            int skippedPuts = 0;
+            for (BibRecordUpdater.Result result : results) {
+                if (!result.isSuccess()) {
+                    if (almaHelper.getCircuitBreaker().isOpen()) {
+                        System.out.println(failureMessage(isbn, result) + ". The circuit to Alma is open. "
+                                + "Writing to DLQ");
+                        writeToDLQ(update, dlqWriter);
+                        return skippedPuts;
+                    }
+                    throw new RuntimeException(failureMessage(updateItems.get(0).getIsbn(), result));
                 }
-                System.out.println("Completed the update in Alma for post with mms_id: " + mmsId);
-                sucessCounter++;
-            }
-            if (sucessCounter < referenceList.size()) {
-                if (almaResponse == null) {
-                    throw new RuntimeException("1 or more mms_id's did not go through with mms_id: "
-                            + updateItems.get(0).getIsbn()
-                            + System.lineSeparator() + "Get failed");
+                if (result.isPutSkipped()) {
+                    skippedPuts++;
                 }
-                if (response == null) {
-                    throw new RuntimeException("1 or more mms_id's did not go through with mms_id: "
-                            + updateItems.get(0).getIsbn()
-                            + System.lineSeparator() + "Get response " + almaResponse.body());
-                }
-                throw new RuntimeException("1 or more mms_id's did not go through with mms_id: "
-                        + updateItems.get(0).getIsbn()
-                        + System.lineSeparator() + "Get response " + almaResponse.body()
-                        + "Put response: " + response.body());
             }
+            recordLag(update, results);
+            return skippedPuts;
         } catch (ParsingException | IOException | IllegalArgumentException
-                | InterruptedException | SecurityException | SchedulerException e) {
+                | InterruptedException | SecurityException e) {
             DebugUtils.dumpException(e);
             throw new RuntimeException("General error: " + e.getMessage());
         }
-        return null;
+    }
+
+    /**
+     * The message for an isbn where one of the mms_id's did not go through.
+     * @param isbn The isbn that was updated.
+     * @param failed The result of the mms_id that failed.
+     * @return The message, with the Alma responses we got.
+     */
+    private String failureMessage(String isbn, BibRecordUpdater.Result failed) {
+        String message = "1 or more mms_id's did not go through with mms_id: " + isbn + System.lineSeparator();
+        if (failed.getGetResponse() == null) {
+            return message + "Get failed";
+        }
+        if (failed.getPutResponse() == null) {
+            return message + "Get response " + failed.getGetResponse().body();
+        }
+        return message + "Get response " + failed.getGetResponse().body()
+                + "Put response: " + failed.getPutResponse().body();
     }
 
     /**
@@ -160,58 +265,77 @@ public class UpdateAlmaDescriptionHandler implements RequestHandler<SQSEvent, Vo
      * @throws ParsingException When something goes wrong.
      */
     public String updateBibRecord(List<UpdateItem> updateItems, String xmlFromAlma) throws ParsingException {
-        String xmlBuilderString = xmlFromAlma;
-        /* 3.3.1 Loop through every UpdateItem in the UpdateItem LIST. */
-        for (UpdateItem item : updateItems) {
-            /* 3.3.2 Determine whether the post is electronic or print. */
-            int marcTag = xmlParser.determineElectronicOrPrint(xmlBuilderString);
-
-            /* 3.3.3 Check if the update already exists. */
-            Boolean alreadyExists = xmlParser.alreadyExists(item.getSpecifiedMaterial(),
-                    item.getLink(), xmlBuilderString, marcTag);
-            if (alreadyExists) {
+        /* 3.3.1 - 3.3.5 are done by the configured rewrite engine (RECORD_REWRITER, DOM or STAX). */
+        return recordRewriter.rewrite(updateItems, xmlFromAlma);
+    }
+
+    /**
+     * Records how far Alma was behind the changes of the messages, once for every mms_id that was written.
+     * Only called once every mms_id of the isbn went through: a failed isbn is delivered again, and the writes
+     * that went through the first time would be counted again under Redriven.
+     * @param update The messages with their change times.
+     * @param results The results of the mms_id's of the isbn.
+     */
+    private void recordLag(CoalescedUpdate update, List<BibRecordUpdater.Result> results) {
+        for (BibRecordUpdater.Result result : results) {
+            if (!result.isSuccess() || result.isPutSkipped()) {
                 continue;
             }
-
-            /* 3.3.4 Create a node from the UpdateItem. */
-            Document updateNode = xmlParser.createNode(item.getSpecifiedMaterial(),
-                    item.getLink(), marcTag);
-
-            /* 3.3.5 Insert update node into the record retrieved from ALMA. */
-            Document updatedDocument = xmlParser.insertUpdatedIntoRecord(xmlBuilderString,
-                    updateNode, marcTag);
-            xmlBuilderString = xmlParser.convertDocToString(updatedDocument);
-
+            for (int i = 0; i < update.getChangeTimes().size(); i++) {
+                if (update.getChangeTimes().get(i) != null) {
+                    metrics.recordLag(update.getChangeTimes().get(i), update.getRedriven().get(i));
+                }
+            }
         }
-        return xmlBuilderString;
     }
 
     /**
-     * Retrieve a list of referenceobjects based on the isbn you enter.
-     * @param isbn The isbn you wish to retrieve refrenceobjects based on.
-     * @return A list of reference objects matching the isbn, this list will usually contain only one reference object.
-     * @throws IOException when something goes wrong
+     * Whether a message has been tried before: received more than once from the queue, or sent back from the DLQ.
+     * @param message The message.
+     * @return true if the message is re-driven.
      */
-    private List<Reference> getReferenceListByIsbn(String isbn) throws IOException {
-        URL theURL = new URL(config.almaSruHost + isbn);
-        InputStreamReader streamReader = new InputStreamReader(theURL.openStream());
+    static boolean isRedriven(SQSEvent.SQSMessage message) {
+        Map<String, String> attributes = message.getAttributes();
         try {
-            String referenceString = new BufferedReader(streamReader)
-                    .lines()
-                    .collect(Collectors.joining(System.lineSeparator()));
-            streamReader.close();
-            if (referenceString.isEmpty()) {
-                return null;
+            if (attributes != null && attributes.get(RECEIVE_COUNT_ATTRIBUTE) != null
+                    && Integer.parseInt(attributes.get(RECEIVE_COUNT_ATTRIBUTE)) > 1) {
+                return true;
             }
-            List<Reference> referenceList;
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            Gson gson = gsonBuilder.create();
-            Type listOfMyClassObject = new TypeToken<List<Reference>>() {}.getType();
-            referenceList = gson.fromJson(referenceString, listOfMyClassObject);
-            return referenceList;
-        } finally {
-            streamReader.close();
+        } catch (NumberFormatException e) {
+            System.out.println("Could not read " + RECEIVE_COUNT_ATTRIBUTE + " of message " + message.getMessageId());
+        }
+        return message.getMessageAttributes() != null && message.getMessageAttributes().containsKey(REDRIVEN_ATTRIBUTE);
+    }
+
+    private static void writeToDLQ(CoalescedUpdate update, DlqWriter dlqWriter) {
+        for (int i = 0; i < update.getMessageIds().size(); i++) {
+            dlqWriter.add(update.getMessageIds().get(i), update.getMessageBodies().get(i));
+        }
+    }
+
+    /**
+     * Creates the AlmaHelper with a limiter that starts at ALMA_CONCURRENCY calls in flight, and can grow to
+     * as many as all the isbns of the batch can have in flight, and a circuit breaker.
+     * @param config The config with the concurrencies.
+     * @param almaConnection Gives the connection the calls to Alma are sent with.
+     * @return The AlmaHelper.
+     */
+    private static AlmaHelper createAlmaHelper(Config config, Supplier<AlmaConnection> almaConnection) {
+        return new AlmaHelper(new AdaptiveConcurrencyLimiter(config.almaConcurrency,
+                config.almaConcurrency * config.batchConcurrency, Clock.systemUTC()), new CircuitBreaker(),
+                almaConnection);
+    }
+
+    /**
+     * Picks the engine that inserts the updates into the bib records.
+     * @param name The name of the engine, DOM if not set.
+     * @return The StAX engine if the name is STAX, the DOM engine if not.
+     */
+    private static BibRecordRewriter createRecordRewriter(String name) {
+        if (StaxRecordRewriter.NAME.equalsIgnoreCase(name)) {
+            return new StaxRecordRewriter();
         }
+        return new DomRecordRewriter();
     }
 
 }
@@ -0,0 +1,10 @@
+package no.unit.exceptions;
+
+import nva.commons.core.JacocoGenerated;
+
+public class CircuitOpenException extends Exception {
+    @JacocoGenerated
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+}
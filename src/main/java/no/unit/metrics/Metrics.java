@@ -0,0 +1,264 @@
+package no.unit.metrics;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the counters and timings of an invocation in memory, and writes them as one CloudWatch Embedded Metric
+ * Format (EMF) line when the invocation ends. Recording is a map lookup and an add, so it can be done for every
+ * call to Alma and alma-sru.
+ * A counter is written as its total. A distribution, like the latency of a stage, is written as a list of values
+ * CloudWatch computes the statistics and percentiles from. At most MAX_VALUES values are kept per distribution,
+ * picked at random when there are more, so the SampleCount of a distribution is capped; the counters have the
+ * exact numbers.
+ */
+public class Metrics {
+
+    public static final String NAMESPACE = "AlmaDescriptionUpdater";
+    public static final int MAX_VALUES = 100;
+    /* A directive can hold at most 100 metrics. */
+    public static final int MAX_METRICS_PER_DIRECTIVE = 100;
+
+    public static final String INVOCATION = "Invocation";
+    public static final String MESSAGES = "Messages";
+    public static final String DUPLICATE_UPDATE_ITEMS = "DuplicateUpdateItems";
+    public static final String SRU_LOOKUP = "SruLookup";
+    public static final String SRU_CACHE_HIT = "SruCacheHit";
+    public static final String ALMA_GET = "AlmaGet";
+    public static final String ALMA_GET_BATCH = "AlmaGetBatch";
+    public static final String ALMA_PUT = "AlmaPut";
+    public static final String ALMA_RETRIES = "AlmaRetries";
+    public static final String ALMA_CONCURRENCY_LIMIT = "AlmaConcurrencyLimit";
+    public static final String ALMA_QUEUEING_DELAY = "AlmaQueueingDelay";
+    public static final String ALMA_LIMIT_DROPS = "AlmaLimitDrops";
+    public static final String SPLIT_BIBS = "SplitBibs";
+    public static final String REWRITE = "Rewrite";
+    public static final String SKIPPED_PUTS = "SkippedPuts";
+    public static final String MMS_IDS_PER_ISBN = "MmsIdsPerIsbn";
+    public static final String CHANGE_TO_ALMA_LAG = "ChangeToAlmaLag";
+    public static final String FIRST_ATTEMPT = "FirstAttempt";
+    public static final String REDRIVEN = "Redriven";
+
+    private static final String ERROR = "Error";
+    private static final String STATUS_CLASS = "xx";
+    private static final int STATUS_CLASS_DIVISOR = 100;
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    /* The upper bounds of the lag buckets in seconds, the DLQ delays a message 15 minutes. */
+    private static final long[] LAG_BUCKETS = {60, 300, 900, 3600, 86_400};
+    private static final String[] LAG_BUCKET_NAMES = {"Under1m", "Under5m", "Under15m", "Under1h", "Under1d"};
+    private static final String LAG_OVERFLOW_NAME = "Over1d";
+    private static final double MILLIS_PER_SECOND = TimeUnit.SECONDS.toMillis(1);
+    private static final Metrics INSTANCE = new Metrics(Clock.systemUTC());
+
+    /**
+     * The units the metrics are written with.
+     */
+    public enum Unit {
+        MILLISECONDS("Milliseconds"), SECONDS("Seconds"), COUNT("Count");
+
+        private final transient String emfName;
+
+        Unit(String emfName) {
+            this.emfName = emfName;
+        }
+
+        @Override
+        public String toString() {
+            return emfName;
+        }
+    }
+
+    /**
+     * The values of one distribution, a random sample of them if there are more than MAX_VALUES.
+     */
+    private static final class Distribution {
+
+        private final transient Unit unit;
+        private final transient List<Double> values = new ArrayList<>();
+        private transient long count;
+
+        private Distribution(Unit unit) {
+            this.unit = unit;
+        }
+
+        private void add(double value) {
+            synchronized (values) {
+                count++;
+                if (values.size() < MAX_VALUES) {
+                    values.add(value);
+                } else {
+                    long index = ThreadLocalRandom.current().nextLong(count);
+                    if (index < MAX_VALUES) {
+                        values.set((int) index, value);
+                    }
+                }
+            }
+        }
+
+        private JsonArray toJson() {
+            JsonArray array = new JsonArray();
+            synchronized (values) {
+                values.forEach(array::add);
+            }
+            return array;
+        }
+    }
+
+    private final transient Clock clock;
+    private final transient Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final transient Map<String, Distribution> distributions = new ConcurrentHashMap<>();
+
+    public Metrics(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * The metrics shared by everything in the container, written and emptied at the end of every invocation.
+     * @return The shared metrics.
+     */
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    public void count(String name) {
+        count(name, 1);
+    }
+
+    /**
+     * Adds to a counter.
+     * @param name The name of the counter.
+     * @param amount The amount to add.
+     */
+    public void count(String name, long amount) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * Adds a value to a distribution.
+     * @param name The name of the distribution.
+     * @param value The value.
+     * @param unit The unit of the values, the one of the first value is kept.
+     */
+    public void record(String name, double value, Unit unit) {
+        distributions.computeIfAbsent(name, key -> new Distribution(unit)).add(value);
+    }
+
+    /**
+     * Adds the time since start to a distribution in milliseconds.
+     * @param name The name of the distribution.
+     * @param startNanos When the timed work started, from System.nanoTime().
+     */
+    public void recordSince(String name, long startNanos) {
+        record(name, (System.nanoTime() - startNanos) / NANOS_PER_MILLI, Unit.MILLISECONDS);
+    }
+
+    /**
+     * Records a call: its latency under name, and its outcome in a counter named after the status class,
+     * like AlmaGet2xx, AlmaGet5xx or AlmaGetError for a call without a response.
+     * @param name The name of the call.
+     * @param startNanos When the call was sent, from System.nanoTime().
+     * @param response The response, null if the call failed without one.
+     * @param error The exception the call failed with, null if it gave a response.
+     */
+    public void recordCall(String name, long startNanos, HttpResponse<?> response, Throwable error) {
+        recordSince(name, startNanos);
+        if (error != null || response == null) {
+            count(name + ERROR);
+        } else {
+            count(name + response.statusCode() / STATUS_CLASS_DIVISOR + STATUS_CLASS);
+        }
+    }
+
+    /**
+     * Records how far Alma was behind a change in DynamoDB when a record with it was written: the lag as a
+     * distribution, and a counter for the age bucket it falls in, like ChangeToAlmaLagFirstAttemptUnder5m.
+     * Messages coming back from the DLQ are kept apart from those on their first attempt, since they have been
+     * delayed on purpose.
+     * @param changeTime When the change was made, from ApproximateCreationDateTime of the stream record.
+     * @param redriven Whether the message has been retried or came back from the DLQ.
+     */
+    public void recordLag(Instant changeTime, boolean redriven) {
+        String name = CHANGE_TO_ALMA_LAG + (redriven ? REDRIVEN : FIRST_ATTEMPT);
+        long lagMillis = Math.max(0, clock.millis() - changeTime.toEpochMilli());
+        record(name, lagMillis / MILLIS_PER_SECOND, Unit.SECONDS);
+        count(name + lagBucket(TimeUnit.MILLISECONDS.toSeconds(lagMillis)));
+    }
+
+    private static String lagBucket(long lagSeconds) {
+        for (int i = 0; i < LAG_BUCKETS.length; i++) {
+            if (lagSeconds < LAG_BUCKETS[i]) {
+                return LAG_BUCKET_NAMES[i];
+            }
+        }
+        return LAG_OVERFLOW_NAME;
+    }
+
+    /**
+     * Writes the metrics collected since the last flush as one EMF document, and empties them.
+     * @param dimensions The dimensions to write the metrics under, like the function name.
+     * @return The EMF document, or null if nothing was recorded.
+     */
+    public String flush(Map<String, String> dimensions) {
+        JsonObject document = new JsonObject();
+        JsonArray definitions = new JsonArray();
+        for (String name : counters.keySet()) {
+            LongAdder counter = counters.remove(name);
+            if (counter != null) {
+                document.addProperty(name, counter.sum());
+                definitions.add(definition(name, Unit.COUNT));
+            }
+        }
+        for (String name : distributions.keySet()) {
+            Distribution distribution = distributions.remove(name);
+            if (distribution != null) {
+                document.add(name, distribution.toJson());
+                definitions.add(definition(name, distribution.unit));
+            }
+        }
+        if (definitions.size() == 0) {
+            return null;
+        }
+        JsonArray dimensionSet = new JsonArray();
+        dimensions.forEach((name, value) -> {
+            dimensionSet.add(name);
+            document.addProperty(name, value);
+        });
+        JsonArray directives = new JsonArray();
+        for (int from = 0; from < definitions.size(); from += MAX_METRICS_PER_DIRECTIVE) {
+            JsonArray metrics = new JsonArray();
+            for (int i = from; i < Math.min(definitions.size(), from + MAX_METRICS_PER_DIRECTIVE); i++) {
+                metrics.add(definitions.get(i));
+            }
+            JsonObject directive = new JsonObject();
+            directive.addProperty("Namespace", NAMESPACE);
+            JsonArray dimensionSets = new JsonArray();
+            dimensionSets.add(dimensionSet);
+            directive.add("Dimensions", dimensionSets);
+            directive.add("Metrics", metrics);
+            directives.add(directive);
+        }
+        JsonObject aws = new JsonObject();
+        aws.addProperty("Timestamp", clock.millis());
+        aws.add("CloudWatchMetrics", directives);
+        document.add("_aws", aws);
+        return document.toString();
+    }
+
+    private static JsonObject definition(String name, Unit unit) {
+        JsonObject definition = new JsonObject();
+        definition.addProperty("Name", name);
+        definition.addProperty("Unit", unit.toString());
+        return definition;
+    }
+}
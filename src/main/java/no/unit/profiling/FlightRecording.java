@@ -0,0 +1,112 @@
+package no.unit.profiling;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+/**
+ * An opt-in JDK Flight Recorder recording of the container, dumped to a file when an invocation is slower than a
+ * threshold. The recording uses the "profile" settings, with CPU, allocation and lock samples, and the
+ * PipelineEvents. It is kept in memory only, so it holds the last few seconds to minutes of the container,
+ * however long it runs. At most MAX_DUMPS files are written per container, so /tmp does not fill up.
+ * The recording is started on the first invocation, not before the snapshot of the container is taken.
+ */
+public class FlightRecording {
+
+    public static final String SETTINGS = "profile";
+    public static final int MAX_DUMPS = 5;
+    public static final String FILE_PREFIX = "slow-invocation-";
+    public static final String FILE_SUFFIX = ".jfr";
+
+    private final transient long thresholdMillis;
+    private final transient Path directory;
+    private final transient Object lock = new Object();
+    private transient Recording recording;
+    private transient boolean failed;
+    private transient int dumps;
+
+    /**
+     * Creates the recording, without starting it.
+     * @param thresholdMillis The duration of an invocation above which the recording is dumped, 0 or less to
+     *     never record.
+     * @param directory Where the recordings are dumped.
+     */
+    public FlightRecording(long thresholdMillis, Path directory) {
+        this.thresholdMillis = thresholdMillis;
+        this.directory = directory;
+    }
+
+    public boolean isEnabled() {
+        return thresholdMillis > 0;
+    }
+
+    /**
+     * Starts the recording if it is enabled and not started yet. A recording that fails to start is not tried
+     * again, and the invocations go on without it.
+     */
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (lock) {
+            if (recording != null || failed) {
+                return;
+            }
+            try {
+                Recording started = new Recording(Configuration.getConfiguration(SETTINGS));
+                started.setName("alma-description-updater");
+                started.setToDisk(false);
+                started.start();
+                recording = started;
+                System.out.println("Started the flight recording, dumped when an invocation takes more than "
+                        + thresholdMillis + " ms");
+            } catch (IOException | ParseException | IllegalStateException | SecurityException e) {
+                failed = true;
+                System.out.println("Could not start the flight recording. " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Dumps what the recording holds if the invocation took more than the threshold.
+     * @param elapsedMillis How long the invocation took.
+     * @param invocationId The request id of the invocation, part of the file name.
+     * @return The file the recording was dumped to, or null if it was not dumped.
+     */
+    public Path dumpIfSlow(long elapsedMillis, String invocationId) {
+        if (!isEnabled() || elapsedMillis <= thresholdMillis) {
+            return null;
+        }
+        synchronized (lock) {
+            if (recording == null || dumps >= MAX_DUMPS) {
+                return null;
+            }
+            Path file = directory.resolve(FILE_PREFIX + invocationId + FILE_SUFFIX);
+            try {
+                recording.dump(file);
+                dumps++;
+                System.out.println("The invocation took " + elapsedMillis + " ms, dumped the flight recording to "
+                        + file);
+                return file;
+            } catch (IOException e) {
+                System.out.println("Could not dump the flight recording to " + file + ". " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Stops the recording, and lets it be started again.
+     */
+    public void stop() {
+        synchronized (lock) {
+            if (recording != null) {
+                recording.close();
+                recording = null;
+            }
+        }
+    }
+}
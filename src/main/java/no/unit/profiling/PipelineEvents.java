@@ -0,0 +1,134 @@
+package no.unit.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The JDK Flight Recorder events of the steps an update goes through, so the CPU, allocation and lock samples
+ * of a recording can be tied to the step they happened in. An event costs next to nothing while no recording
+ * is running, the fields are only filled in when shouldCommit() says the event is recorded.
+ * The sizes are lengths of the strings, in characters.
+ */
+/* JFR leaves out transient fields, and takes the fields of an abstract event into the events extending it. */
+@SuppressWarnings({"PMD.BeanMembersShouldSerialize", "PMD.AbstractClassWithoutAbstractMethod"})
+public final class PipelineEvents {
+
+    public static final String CATEGORY = "Alma Description Updater";
+
+    private PipelineEvents() {
+    }
+
+    /**
+     * A lookup of an isbn in alma-sru, from the request until the references are read.
+     */
+    @Name("no.unit.SruLookup")
+    @Label("SRU Lookup")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class SruLookupEvent extends Event {
+        @Label("ISBN")
+        public String isbn;
+        @Label("Status Code")
+        public int statusCode;
+        @Label("References")
+        public int references;
+    }
+
+    /**
+     * One attempt of a call to the Alma bibs api, from the permit of the limiter until the response.
+     */
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public abstract static class AlmaCallEvent extends Event {
+        @Label("MMS Id")
+        @Description("The mms_id of the record, or the first one and the count for a batch")
+        public String mmsId;
+        @Label("Attempt")
+        public int attempt;
+        @Label("Status Code")
+        @Description("0 if the call failed without a response")
+        public int statusCode;
+        @Label("Request Length")
+        public int requestLength;
+        @Label("Response Length")
+        public int responseLength;
+    }
+
+    /**
+     * A GET of one or many records from Alma.
+     */
+    @Name("no.unit.AlmaGet")
+    @Label("Alma GET")
+    public static class AlmaGetEvent extends AlmaCallEvent {
+    }
+
+    /**
+     * A PUT of a rewritten record to Alma.
+     */
+    @Name("no.unit.AlmaPut")
+    @Label("Alma PUT")
+    public static class AlmaPutEvent extends AlmaCallEvent {
+    }
+
+    /**
+     * The rewrite of one record: parsing it, inserting the updates and serializing it.
+     */
+    @Name("no.unit.Rewrite")
+    @Label("Rewrite")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class RewriteEvent extends Event {
+        @Label("ISBN")
+        public String isbn;
+        @Label("MMS Id")
+        public String mmsId;
+        @Label("Engine")
+        public String engine;
+        @Label("Input Length")
+        public int inputLength;
+        @Label("Output Length")
+        public int outputLength;
+        @Label("Changed")
+        public boolean changed;
+    }
+
+    /**
+     * The serialization of a rewritten DOM record to a string, within the Rewrite event on the same thread.
+     */
+    @Name("no.unit.Serialize")
+    @Label("Serialize")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class SerializeEvent extends Event {
+        @Label("Output Length")
+        public int outputLength;
+    }
+
+    /**
+     * The wait before a call to Alma is sent again.
+     */
+    @Name("no.unit.RetrySleep")
+    @Label("Retry Sleep")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class RetrySleepEvent extends Event {
+        @Label("Call")
+        @Description("The metric name of the call, like AlmaGet or AlmaPut")
+        public String call;
+        @Label("MMS Id")
+        public String mmsId;
+        @Label("Attempt")
+        @Description("The attempt that is retried")
+        public int attempt;
+        @Label("Status Code")
+        public int statusCode;
+        @Label("Delay")
+        @Timespan(Timespan.MILLISECONDS)
+        public long delay;
+    }
+}
@@ -0,0 +1,143 @@
+package no.unit.scheduler;
+
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Collects the messages for the DLQ during an invocation, and sends them with SendMessageBatch, up to
+ * MAX_BATCH_SIZE messages per call. A full batch is sent right away, the rest when the invocation flushes.
+ * Entries SQS could not take for reasons on its own side are sent once more. Every message is added with the
+ * id of the message it came from, so the messages that still could not be sent can be reported as failed.
+ * Sending never throws, a batch that could not be sent at all is reported as failed too.
+ */
+public class DlqWriter {
+
+    public static final int MAX_BATCH_SIZE = 10;
+    public static final int DELAY_SECONDS = 5;
+
+    private final transient Supplier<SqsClient> sqsClient;
+    private final transient Supplier<String> queueUrl;
+    private final transient List<Entry> buffer = new ArrayList<>();
+    private final transient List<String> failedMessageIds = new ArrayList<>();
+
+    /**
+     * Creates a writer. The client and the url are first asked for when there is something to send, so an
+     * invocation without messages for the DLQ does not touch SQS.
+     * @param sqsClient Gives the client to send the messages with, shared and not closed by the writer.
+     * @param queueUrl Gives the url of the DLQ.
+     */
+    public DlqWriter(Supplier<SqsClient> sqsClient, Supplier<String> queueUrl) {
+        this.sqsClient = sqsClient;
+        this.queueUrl = queueUrl;
+    }
+
+    private static final class Entry {
+
+        private final transient String messageId;
+        private final transient String messageBody;
+
+        private Entry(String messageId, String messageBody) {
+            this.messageId = messageId;
+            this.messageBody = messageBody;
+        }
+    }
+
+    /**
+     * Adds a message for the DLQ, and sends the buffered messages if they fill a batch.
+     * @param messageId The id of the message the body came from.
+     * @param messageBody The body to write to the DLQ.
+     */
+    public void add(String messageId, String messageBody) {
+        List<Entry> batch = null;
+        synchronized (buffer) {
+            buffer.add(new Entry(messageId, messageBody));
+            if (buffer.size() >= MAX_BATCH_SIZE) {
+                batch = new ArrayList<>(buffer);
+                buffer.clear();
+            }
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends the buffered messages.
+     * @return The ids of the messages that could not be written to the DLQ since the last flush.
+     */
+    public List<String> flush() {
+        List<Entry> remaining;
+        synchronized (buffer) {
+            remaining = new ArrayList<>(buffer);
+            buffer.clear();
+        }
+        for (int from = 0; from < remaining.size(); from += MAX_BATCH_SIZE) {
+            send(remaining.subList(from, Math.min(remaining.size(), from + MAX_BATCH_SIZE)));
+        }
+        synchronized (failedMessageIds) {
+            List<String> failed = new ArrayList<>(failedMessageIds);
+            failedMessageIds.clear();
+            return failed;
+        }
+    }
+
+    private void send(List<Entry> batch) {
+        List<Entry> retry = sendBatch(batch, true);
+        if (!retry.isEmpty()) {
+            sendBatch(retry, false);
+        }
+    }
+
+    /**
+     * Sends one batch. Entries that failed on the side of SQS are returned to be sent again if retryable is set,
+     * every other failed entry is recorded as failed.
+     */
+    private List<Entry> sendBatch(List<Entry> batch, boolean retryable) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(SendMessageBatchRequestEntry.builder()
+                    .id(String.valueOf(i))
+                    .messageBody(batch.get(i).messageBody)
+                    .delaySeconds(DELAY_SECONDS)
+                    .build());
+        }
+        List<Entry> retry = new ArrayList<>();
+        try {
+            SendMessageBatchResponse response = sqsClient.get().sendMessageBatch(SendMessageBatchRequest.builder()
+                    .queueUrl(queueUrl.get())
+                    .entries(entries)
+                    .build());
+            for (BatchResultErrorEntry error : response.failed()) {
+                Entry entry = batch.get(Integer.parseInt(error.id()));
+                if (retryable && !Boolean.TRUE.equals(error.senderFault())) {
+                    retry.add(entry);
+                } else {
+                    System.out.println("Failed to write message " + entry.messageId + " to DLQ: "
+                            + error.code() + " " + error.message());
+                    fail(entry);
+                }
+            }
+        } catch (RuntimeException e) {
+            /* Not only SdkException: a missing queue url must not lose entries drained for other isbns either. */
+            System.out.println("Failed to write " + batch.size() + " messages to DLQ: " + e.getMessage());
+            if (retryable) {
+                return new ArrayList<>(batch);
+            }
+            batch.forEach(this::fail);
+        }
+        return retry;
+    }
+
+    private void fail(Entry entry) {
+        synchronized (failedMessageIds) {
+            failedMessageIds.add(entry.messageId);
+        }
+    }
+}
@@ -2,12 +2,12 @@ package no.unit.scheduler;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import no.unit.exceptions.SchedulerException;
 import nva.commons.core.Environment;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
 
+import java.time.DateTimeException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -34,6 +34,9 @@ public class SchedulerHelper {
     private static final String LONG_DESCRIPTION = "Forlagets beskrivelse (lang)";
     private static final String CONTENTS_DESCRIPTION = "Innholdsfortegnelse";
     private static final String DLQ_QUEUE_URL_KEY = "DLQ_QUEUE_URL";
+    private static final String AWS_REGION_KEY = "AWS_REGION";
+    private static final String CREATION_TIME_KEY = "ApproximateCreationDateTime";
+    private static final double MILLIS_PER_SECOND = 1000.0;
 
     private final transient Environment envHandler;
 
@@ -46,6 +49,41 @@ public class SchedulerHelper {
         this.envHandler = new Environment();
     }
 
+    /**
+     * Holds the SqsClient shared by every invocation in the container, made the first time it is used.
+     */
+    private static final class SqsHolder {
+        private static final SqsClient SQS = SqsClient.builder()
+                .region(new Environment().readEnvOpt(AWS_REGION_KEY).map(Region::of).orElse(Region.EU_WEST_1))
+                .build();
+    }
+
+
+    /**
+     * The UpdateItems of an event, and when its change was made.
+     */
+    public static final class SplitEvent {
+
+        private final transient List<UpdateItem> updateItems;
+        private final transient Instant changeTime;
+
+        private SplitEvent(List<UpdateItem> updateItems, Instant changeTime) {
+            this.updateItems = updateItems;
+            this.changeTime = changeTime;
+        }
+
+        public List<UpdateItem> getUpdateItems() {
+            return updateItems;
+        }
+
+        /**
+         * When the change in the event was made in DynamoDB.
+         * @return The ApproximateCreationDateTime of the stream record, null if it is missing or can't be read.
+         */
+        public Instant getChangeTime() {
+            return changeTime;
+        }
+    }
 
     /**
      * Creates a list of UpdateItem objects, if the event is "MODIFIED" this will be from the
@@ -55,6 +93,18 @@ public class SchedulerHelper {
      * @return A list of UpdateItem objects.
      */
     public List<UpdateItem> splitEventIntoUpdateItems(String eventBody) {
+        return splitEvent(eventBody).getUpdateItems();
+    }
+
+    /**
+     * Creates the UpdateItems like splitEventIntoUpdateItems, and reads when the change was made from the same
+     * parse of the body. The change time is only used for metrics, so an event without a readable one is still
+     * split.
+     *
+     * @param eventBody The body of the SQSEvent.
+     * @return The UpdateItems and the change time.
+     */
+    public SplitEvent splitEvent(String eventBody) {
         JsonObject eventBodyObject = JsonParser.parseString(eventBody).getAsJsonObject();
         String isbn = eventBodyObject.get("dynamodb").getAsJsonObject().get("Keys")
                 .getAsJsonObject().get("isbn").getAsJsonObject().get(S).getAsString();
@@ -62,6 +112,7 @@ public class SchedulerHelper {
         JsonObject newImage = eventBodyObject.get("dynamodb").getAsJsonObject().get("NewImage").getAsJsonObject();
         BibItem newBibItem = extractFromJsonObject(newImage);
         newBibItem.setIsbn(isbn);
+        Instant changeTime = extractChangeTime(eventBodyObject);
         if (MODIFY.equals(eventName)) {
             JsonObject oldImage = eventBodyObject.get("dynamodb").getAsJsonObject().get("OldImage").getAsJsonObject();
             BibItem oldBibItem = extractFromJsonObject(oldImage);
@@ -69,9 +120,31 @@ public class SchedulerHelper {
 
             BibItem diffBibItem = extractDiffs(newBibItem, oldBibItem);
 
-            return createLinks(diffBibItem);
+            return new SplitEvent(createLinks(diffBibItem), changeTime);
         } else {
-            return createLinks(newBibItem);
+            return new SplitEvent(createLinks(newBibItem), changeTime);
+        }
+    }
+
+    /**
+     * Finds when the change in the event was made in DynamoDB.
+     *
+     * @param eventBodyObject The parsed body of the SQSEvent.
+     * @return The ApproximateCreationDateTime of the stream record, null if it is missing or can't be read.
+     */
+    private static Instant extractChangeTime(JsonObject eventBodyObject) {
+        try {
+            JsonObject dynamodb = eventBodyObject.getAsJsonObject("dynamodb");
+            if (dynamodb == null || dynamodb.get(CREATION_TIME_KEY) == null) {
+                return null;
+            }
+            /* Seconds since the epoch, possibly with a fraction. */
+            double seconds = dynamodb.get(CREATION_TIME_KEY).getAsDouble();
+            return Instant.ofEpochMilli(Math.round(seconds * MILLIS_PER_SECOND));
+        } catch (ClassCastException | IllegalStateException | UnsupportedOperationException
+                | NumberFormatException | DateTimeException e) {
+            System.out.println("Could not read " + CREATION_TIME_KEY + ". " + e.getMessage());
+            return null;
         }
     }
 
@@ -265,21 +338,18 @@ public class SchedulerHelper {
     }
 
     /**
-     * Method that writes a message to an already specified queue.
-     *
-     * @param message The message thats to be sent to the queue.
-     * @throws SchedulerException when something goes wrong.
+     * The SqsClient shared by every invocation in the container.
+     * @return The client, made if this is the first time it is asked for.
      */
-    public void writeToDLQ(String message) throws SchedulerException {
-        try (SqsClient sqs = SqsClient.builder().region(Region.EU_WEST_1).build()) {
-            SendMessageRequest sendMsgRequest = SendMessageRequest.builder()
-                    .queueUrl(envHandler.readEnv(DLQ_QUEUE_URL_KEY))
-                    .messageBody(message)
-                    .delaySeconds(5)
-                    .build();
-            sqs.sendMessage(sendMsgRequest);
-        } catch (UnsupportedOperationException e) {
-            throw new SchedulerException("Failed to send message to DLQ. ", e);
-        }
+    public static SqsClient getSqsClient() {
+        return SqsHolder.SQS;
+    }
+
+    /**
+     * Creates a writer that sends the messages for the DLQ in batches, with the shared SqsClient.
+     * @return A writer for one invocation.
+     */
+    public DlqWriter createDlqWriter() {
+        return new DlqWriter(SchedulerHelper::getSqsClient, () -> envHandler.readEnv(DLQ_QUEUE_URL_KEY));
     }
 }
@@ -0,0 +1,136 @@
+package no.unit.scheduler;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups the UpdateItems of the messages in a batch by isbn, so every isbn is only looked up and
+ * updated in Alma once, with the UpdateItems of all its messages.
+ * An UpdateItem with the same specifiedMaterial and link as an earlier one for the isbn is dropped.
+ * Not thread safe, fill it from one thread before processing the updates.
+ */
+@SuppressWarnings("PMD.UseConcurrentHashMap") // Filled from one thread, and the order of the isbns is kept
+public class UpdateItemCoalescer {
+
+    private final transient Map<String, CoalescedUpdate> updatesByIsbn = new LinkedHashMap<>();
+    private transient int duplicates;
+
+    /**
+     * All the messages and UpdateItems for one isbn.
+     */
+    public static final class CoalescedUpdate {
+
+        private final transient String isbn;
+        private final transient List<String> messageIds = new ArrayList<>();
+        private final transient List<String> messageBodies = new ArrayList<>();
+        private final transient List<Instant> changeTimes = new ArrayList<>();
+        private final transient List<Boolean> redriven = new ArrayList<>();
+        private final transient List<UpdateItem> updateItems = new ArrayList<>();
+        private final transient Set<String> updateKeys = new HashSet<>();
+
+        CoalescedUpdate(String isbn) {
+            this.isbn = isbn;
+        }
+
+        public String getIsbn() {
+            return isbn;
+        }
+
+        public List<String> getMessageIds() {
+            return messageIds;
+        }
+
+        public List<String> getMessageBodies() {
+            return messageBodies;
+        }
+
+        public List<UpdateItem> getUpdateItems() {
+            return updateItems;
+        }
+
+        /**
+         * When the changes of the messages were made in DynamoDB, in the order of the messages.
+         * @return The change times, null for a message without one.
+         */
+        public List<Instant> getChangeTimes() {
+            return changeTimes;
+        }
+
+        /**
+         * Whether the messages have been retried or came back from the DLQ, in the order of the messages.
+         * @return One flag per message.
+         */
+        public List<Boolean> getRedriven() {
+            return redriven;
+        }
+
+        /**
+         * Adds the UpdateItems of a message, and tells how many of them were dropped as duplicates.
+         */
+        private int add(String messageId, String messageBody, Instant changeTime, boolean redrivenMessage,
+                        List<UpdateItem> items) {
+            messageIds.add(messageId);
+            messageBodies.add(messageBody);
+            changeTimes.add(changeTime);
+            redriven.add(redrivenMessage);
+            int dropped = 0;
+            for (UpdateItem item : items) {
+                if (updateKeys.add(item.getSpecifiedMaterial() + System.lineSeparator() + item.getLink())) {
+                    updateItems.add(item);
+                } else {
+                    dropped++;
+                }
+            }
+            return dropped;
+        }
+    }
+
+    /**
+     * Adds the UpdateItems from one message. Messages without UpdateItems have nothing to update and are left out.
+     * @param messageId The id of the message, to report it as failed if the update fails.
+     * @param messageBody The body of the message, to write it to the DLQ if the isbn is not found.
+     * @param updateItems The UpdateItems from the message, all with the same isbn.
+     */
+    public void add(String messageId, String messageBody, List<UpdateItem> updateItems) {
+        add(messageId, messageBody, null, false, updateItems);
+    }
+
+    /**
+     * Adds the UpdateItems from one message, with when its change was made and whether it is re-driven.
+     * @param messageId The id of the message, to report it as failed if the update fails.
+     * @param messageBody The body of the message, to write it to the DLQ if the isbn is not found.
+     * @param changeTime When the change was made in DynamoDB, null if not known.
+     * @param redriven Whether the message has been retried or came back from the DLQ.
+     * @param updateItems The UpdateItems from the message, all with the same isbn.
+     */
+    public void add(String messageId, String messageBody, Instant changeTime, boolean redriven,
+                    List<UpdateItem> updateItems) {
+        if (updateItems.isEmpty()) {
+            return;
+        }
+        duplicates += updatesByIsbn.computeIfAbsent(updateItems.get(0).getIsbn(), CoalescedUpdate::new)
+                .add(messageId, messageBody, changeTime, redriven, updateItems);
+    }
+
+    /**
+     * The number of UpdateItems dropped because an earlier message had the same update for the isbn.
+     * @return The number of duplicates.
+     */
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * The updates, one per isbn, in the order the isbns were first seen.
+     * @return The coalesced updates.
+     */
+    public Collection<CoalescedUpdate> getCoalescedUpdates() {
+        return updatesByIsbn.values();
+    }
+}
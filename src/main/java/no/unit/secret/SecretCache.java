@@ -0,0 +1,205 @@
+package no.unit.secret;
+
+import no.unit.exceptions.SecretRetrieverException;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Keeps a secret in memory, so Secrets Manager is only asked when the secret is missing or old.
+ * Once the secret is older than three quarters of the time to live it is fetched again in the background,
+ * while the old one is still handed out. Only a secret past its time to live is fetched while the caller waits.
+ * When the secret is rejected, refresh fetches it right away, at most once per MIN_REFRESH_INTERVAL.
+ * While Secrets Manager fails, the old secret is handed out and it is tried again at most once per
+ * MIN_REFRESH_INTERVAL, so an outage does not make every caller wait for another failing fetch.
+ * Secrets Manager is never called holding the lock: callers that need the secret at the same time wait for one
+ * shared fetch, and the others go on with the old secret.
+ */
+public class SecretCache {
+
+    public static final Duration DEFAULT_TTL = Duration.ofMinutes(15);
+    public static final Duration MIN_REFRESH_INTERVAL = Duration.ofSeconds(10);
+
+    private static final int REFRESH_AHEAD_NUMERATOR = 3;
+    private static final int REFRESH_AHEAD_DENOMINATOR = 4;
+
+    /**
+     * Where the secret comes from.
+     */
+    public interface SecretSource {
+        String fetch() throws SecretRetrieverException;
+    }
+
+    private final transient SecretSource source;
+    private final transient long ttlMillis;
+    private final transient long refreshAheadMillis;
+    private final transient Clock clock;
+    private final transient Object lock = new Object();
+    private transient String secret;
+    private transient long fetchedAt;
+    private transient long nextAttemptAt = Long.MIN_VALUE;
+    /* The fetch in progress, shared by every caller that needs it, null when none is. */
+    private transient CompletableFuture<String> pending;
+    private transient int fetches;
+
+    public SecretCache(SecretSource source) {
+        this(source, DEFAULT_TTL, Clock.systemUTC());
+    }
+
+    /**
+     * Creates an empty cache.
+     * @param source Where the secret comes from.
+     * @param ttl How long a secret is used before it has to be fetched again.
+     * @param clock The clock to age the secret by.
+     */
+    public SecretCache(SecretSource source, Duration ttl, Clock clock) {
+        this.source = source;
+        this.ttlMillis = ttl.toMillis();
+        this.refreshAheadMillis = ttlMillis * REFRESH_AHEAD_NUMERATOR / REFRESH_AHEAD_DENOMINATOR;
+        this.clock = clock;
+    }
+
+    /**
+     * The secret, fetched first if there is none or it is past its time to live.
+     * @return The secret.
+     * @throws SecretRetrieverException when there is no secret and it can't be fetched.
+     */
+    public String get() throws SecretRetrieverException {
+        String current = null;
+        CompletableFuture<String> fetch;
+        boolean owner;
+        synchronized (lock) {
+            long age = clock.millis() - fetchedAt;
+            boolean fresh = secret != null && age < ttlMillis;
+            if (fresh && (age < refreshAheadMillis || pending != null || !canAttempt())) {
+                return secret;
+            }
+            if (fresh) {
+                current = secret;
+            }
+            owner = pending == null;
+            fetch = owner ? startFetch() : pending;
+        }
+        if (current != null) {
+            /* Old but not expired: hand it out and fetch the next one in the background. */
+            CompletableFuture.runAsync(() -> fetch(fetch));
+            return current;
+        }
+        if (owner) {
+            fetch(fetch);
+        }
+        return await(fetch);
+    }
+
+    /**
+     * Fetches the secret again because it was rejected. A secret fetched less than MIN_REFRESH_INTERVAL ago is
+     * kept, so a burst of rejected calls only fetches it once.
+     * @return The secret.
+     * @throws SecretRetrieverException when there is no secret and it can't be fetched.
+     */
+    public String refresh() throws SecretRetrieverException {
+        CompletableFuture<String> fetch;
+        boolean owner;
+        synchronized (lock) {
+            if (secret != null && pending == null && !canAttempt()) {
+                return secret;
+            }
+            owner = pending == null;
+            fetch = owner ? startFetch() : pending;
+        }
+        if (owner) {
+            fetch(fetch);
+        }
+        return await(fetch);
+    }
+
+    /**
+     * Makes the next get fetch the secret while the caller waits, like a secret past its time to live.
+     * The old secret is still handed out if that fetch fails.
+     */
+    public void invalidate() {
+        synchronized (lock) {
+            fetchedAt = clock.millis() - ttlMillis;
+            nextAttemptAt = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * The number of times the secret was fetched from the source.
+     * @return The number of fetches.
+     */
+    public int getFetches() {
+        synchronized (lock) {
+            return fetches;
+        }
+    }
+
+    /**
+     * Whether the secret may be fetched now, not within MIN_REFRESH_INTERVAL of the last fetch or failed fetch.
+     * Called holding the lock.
+     */
+    private boolean canAttempt() {
+        return clock.millis() >= nextAttemptAt;
+    }
+
+    /**
+     * Marks a fetch as started, so other callers wait for it instead of starting their own. Called holding the lock.
+     */
+    private CompletableFuture<String> startFetch() {
+        pending = new CompletableFuture<>();
+        nextAttemptAt = clock.millis() + MIN_REFRESH_INTERVAL.toMillis();
+        return pending;
+    }
+
+    /**
+     * Fetches the secret without holding the lock, so the old secret can be handed out in the meantime, and
+     * completes the shared fetch with it. If that fails the old secret is kept, if there is one, and handed out
+     * without fetching for MIN_REFRESH_INTERVAL.
+     */
+    private void fetch(CompletableFuture<String> fetch) {
+        long now = clock.millis();
+        String fresh;
+        try {
+            fresh = source.fetch();
+        } catch (SecretRetrieverException | RuntimeException e) {
+            /* Any failure has to complete the shared fetch, or the callers waiting for it would wait forever. */
+            String old;
+            synchronized (lock) {
+                fetches++;
+                pending = null;
+                old = secret;
+                if (old != null) {
+                    /* Back off: the old secret counts as fresh until MIN_REFRESH_INTERVAL from now. */
+                    fetchedAt = Math.max(fetchedAt, now - ttlMillis + MIN_REFRESH_INTERVAL.toMillis());
+                }
+            }
+            if (old == null) {
+                fetch.completeExceptionally(e);
+            } else {
+                System.out.println("Could not fetch the secret, keeping the old one. " + e.getMessage());
+                fetch.complete(old);
+            }
+            return;
+        }
+        synchronized (lock) {
+            fetches++;
+            pending = null;
+            secret = fresh;
+            fetchedAt = clock.millis();
+        }
+        fetch.complete(fresh);
+    }
+
+    private static String await(CompletableFuture<String> fetch) throws SecretRetrieverException {
+        try {
+            return fetch.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SecretRetrieverException) {
+                throw (SecretRetrieverException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
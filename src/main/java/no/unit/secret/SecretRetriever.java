@@ -20,6 +20,16 @@ public class SecretRetriever {
 
     private static final String SECRET_ERROR_MESSAGE =
             "Error while retrieving secret from AWS.";
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Holds the SecretsManagerClient shared by every fetch in the container, made the first time it is used.
+     */
+    private static final class ClientHolder {
+        private static final SecretsManagerClient CLIENT = SecretsManagerClient.builder()
+                .region(Region.EU_WEST_1)
+                .build();
+    }
 
     /**
      * This method gives you access to the alma api key,
@@ -29,12 +39,7 @@ public class SecretRetriever {
      */
     public static String getAlmaApiKeySecret() throws SecretRetrieverException {
         final String secretName = "ALMA_APIKEY";
-        Region region = Region.EU_WEST_1;
-
-        // Create a Secrets Manager client
-        SecretsManagerClient client = SecretsManagerClient.builder()
-                .region(region)
-                .build();
+        SecretsManagerClient client = ClientHolder.CLIENT;
 
         // In this sample we only handle the specific exceptions for the 'GetSecretValue' API.
         // See https://docs.aws.amazon.com/secretsmanager/latest/apireference/API_GetSecretValue.html
@@ -52,23 +57,20 @@ public class SecretRetriever {
             // Secrets Manager can't decrypt the protected secret text using the provided KMS key.
             // Deal with the exception here, and/or rethrow at your discretion.
             throw new SecretRetrieverException(SECRET_ERROR_MESSAGE, e);
-        } finally {
-            client.close();
         }
 
-        Gson g = new Gson();
         String secret;
         String decodedBinarySecret;
         // Decrypts secret using the associated KMS CMK.
         // Depending on whether the secret is a string or binary, one of these fields will be populated.
         if (getSecretValueResponse.secretString() != null) {
             secret = getSecretValueResponse.secretString();
-            SecretFormat secretJson = g.fromJson(secret,SecretFormat.class);
+            SecretFormat secretJson = GSON.fromJson(secret,SecretFormat.class);
             return secretJson.ALMA_APIKEY;
         } else {
             decodedBinarySecret = new String(Base64.getDecoder()
                     .decode(getSecretValueResponse.secretBinary().asByteBuffer()).array());
-            SecretFormat secretJson = g.fromJson(decodedBinarySecret, SecretFormat.class);
+            SecretFormat secretJson = GSON.fromJson(decodedBinarySecret, SecretFormat.class);
             return secretJson.ALMA_APIKEY;
         }
     }
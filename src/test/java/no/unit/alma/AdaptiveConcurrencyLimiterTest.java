@@ -0,0 +1,110 @@
+package no.unit.alma;
+
+import no.unit.metrics.Metrics;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    final FakeClock clock = new FakeClock();
+    final StubHttpResponse ok = new StubHttpResponse(200, "");
+
+    /**
+     * Sends as many calls as the limit allows, that all take the given time and end with the given response.
+     */
+    private void round(AdaptiveConcurrencyLimiter limiter, long latencyMillis, StubHttpResponse response) {
+        List<AdaptiveConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        for (int i = limiter.getLimit(); i > 0; i--) {
+            permits.add(limiter.acquireAsync().join());
+        }
+        clock.advance(Duration.ofMillis(latencyMillis));
+        permits.forEach(permit -> permit.release(response, null));
+    }
+
+    @Test
+    public void testLimitGrowsWhileTheLatencyStaysNearTheBaseline() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 5, clock);
+        for (int i = 0; i < 20; i++) {
+            round(limiter, 100, ok);
+        }
+        assertEquals(5, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testLimitStaysWhenTheLatencyIsFarAboveTheBaseline() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 5, clock);
+        round(limiter, 100, ok);
+        int limit = limiter.getLimit();
+        round(limiter, 1000, ok);
+        round(limiter, 1000, ok);
+        assertEquals(limit, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitIsHalvedOnThrottlingServerErrorsAndFailures() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(16, 16, clock);
+        limiter.acquireAsync().join().release(new StubHttpResponse(429, ""), null);
+        assertEquals(8, limiter.getLimit());
+        limiter.acquireAsync().join().release(new StubHttpResponse(503, ""), null);
+        assertEquals(4, limiter.getLimit());
+        limiter.acquireAsync().join().release(null,
+                new CompletionException(new HttpTimeoutException("request timed out")));
+        assertEquals(2, limiter.getLimit());
+        limiter.acquireAsync().join().release(new StubHttpResponse(400, ""), null);
+        assertEquals(2, limiter.getLimit());
+        for (int i = 0; i < 5; i++) {
+            limiter.acquireAsync().join().release(null, new IOException("connection reset"));
+        }
+        assertEquals(1, limiter.getLimit());
+        assertEquals(8, limiter.getDrops());
+    }
+
+    @Test
+    public void testFailuresBeforeReachingAlmaDoNotCutTheLimit() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 4, clock);
+        limiter.acquireAsync().join().release(null, new CompletionException(new IllegalStateException("No key")));
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getDrops());
+    }
+
+    @Test
+    public void testDropsAndQueueingDelaysAreRecordedAsMetrics() {
+        Metrics.getInstance().flush(Map.of());
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, clock);
+        AdaptiveConcurrencyLimiter.Permit first = limiter.acquireAsync().join();
+        CompletableFuture<AdaptiveConcurrencyLimiter.Permit> second = limiter.acquireAsync();
+        clock.advance(Duration.ofMillis(250));
+        first.release(null, new HttpTimeoutException("request timed out"));
+        second.join().release(ok, null);
+        String document = Metrics.getInstance().flush(Map.of());
+        assertTrue(document.contains("\"" + Metrics.ALMA_LIMIT_DROPS + "\":1"), document);
+        assertTrue(document.contains("\"" + Metrics.ALMA_QUEUEING_DELAY + "\":[0.0,250.0]"), document);
+    }
+
+    @Test
+    public void testCallsOverTheLimitWaitForARelease() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, clock);
+        AdaptiveConcurrencyLimiter.Permit first = limiter.acquireAsync().join();
+        CompletableFuture<AdaptiveConcurrencyLimiter.Permit> second = limiter.acquireAsync();
+        assertFalse(second.isDone());
+        clock.advance(Duration.ofMillis(50));
+        first.release(ok, null);
+        first.release(ok, null);
+        assertTrue(second.isDone());
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(50, limiter.getAverageQueueingDelayMillis());
+    }
+}
@@ -0,0 +1,59 @@
+package no.unit.alma;
+
+import com.sun.net.httpserver.HttpServer;
+import no.unit.secret.SecretCache;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AlmaConnectionTest {
+
+    @Test
+    public void testRejectedKeyIsFetchedAgainOffTheHttpClientThreads() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/bibs", exchange -> {
+            requests.incrementAndGet();
+            boolean authorized = "apikey new-key".equals(exchange.getRequestHeaders().getFirst("Authorization"));
+            byte[] bytes = (authorized ? "<bib/>" : "<error/>").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(authorized ? 200 : 401, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+        FakeClock clock = new FakeClock();
+        AtomicInteger fetches = new AtomicInteger();
+        List<String> fetchingThreads = new CopyOnWriteArrayList<>();
+        SecretCache secretCache = new SecretCache(() -> {
+            fetchingThreads.add(Thread.currentThread().getName());
+            return fetches.incrementAndGet() == 1 ? "old-key" : "new-key";
+        }, SecretCache.DEFAULT_TTL, clock);
+        Config config = new Config(new FakeEnvironment(Map.of(
+                Config.ALMA_API_HOST_KEY, "http://localhost:" + server.getAddress().getPort() + "/bibs/",
+                Config.ALMA_SRU_HOST_KEY, "http://localhost/sru?isbn=")), secretCache);
+        clock.advance(SecretCache.MIN_REFRESH_INTERVAL);
+        AtomicInteger sends = new AtomicInteger();
+        try {
+            HttpResponse<String> response = new AlmaConnection(config, SharedHttpClient.get())
+                    .sendGetAsync("991325803064702201", Duration.ofSeconds(5), sends::incrementAndGet).join();
+            assertEquals(200, response.statusCode());
+            assertEquals(2, requests.get());
+            assertEquals(2, sends.get());
+            assertEquals(2, fetches.get());
+            assertEquals("alma-key-refresh", fetchingThreads.get(1));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -1,13 +1,32 @@
 package no.unit.alma;
 
+import com.sun.net.httpserver.HttpServer;
+import no.unit.secret.SecretCache;
 import org.junit.jupiter.api.Test;
 
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class AlmaHelperTest {
 
     private static final String ISBN13 = "9780198242833";
     private static final String ISBN10 = "0198242832";
+    private static final String MISSING_MMS_ID = "99150";
 
     AlmaHelper almaHelper = new AlmaHelper();
 
@@ -19,4 +38,115 @@ class AlmaHelperTest {
         assertEquals("9780345391803", almaHelper.convert10To13("0345391802"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testBatchRetrievalSendsOneRequestPerHundredMmsIds() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AtomicInteger largestRequest = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/bibs", exchange -> {
+            requests.incrementAndGet();
+            String[] mmsIds = exchange.getRequestURI().getQuery().substring("mms_id=".length()).split(",");
+            largestRequest.accumulateAndGet(mmsIds.length, Math::max);
+            StringBuilder bibs = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                    + "<bibs total_record_count=\"" + mmsIds.length + "\">");
+            for (String mmsId : mmsIds) {
+                if (!MISSING_MMS_ID.equals(mmsId)) {
+                    bibs.append("<bib><mms_id>").append(mmsId).append("</mms_id><record>")
+                            .append("<datafield tag=\"245\"><subfield code=\"a\">Title\n")
+                            .append(mmsId).append("</subfield></datafield></record></bib>");
+                }
+            }
+            bibs.append("</bibs>");
+            int status = "apikey secret".equals(exchange.getRequestHeaders().getFirst("Authorization")) ? 200 : 401;
+            byte[] bytes = bibs.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+        Config config = new Config(new FakeEnvironment(Map.of(
+                Config.ALMA_API_HOST_KEY, "http://localhost:" + server.getAddress().getPort() + "/bibs/",
+                Config.ALMA_SRU_HOST_KEY, "http://localhost/sru?isbn=")), new SecretCache(() -> "secret"));
+        AlmaConnection connection = new AlmaConnection(config, SharedHttpClient.get());
+        AlmaHelper batchingAlmaHelper = new AlmaHelper(new AdaptiveConcurrencyLimiter(1, 1, Clock.systemUTC()),
+                new CircuitBreaker(), () -> connection);
+        List<String> mmsIds = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            mmsIds.add(String.valueOf(99_000 + i));
+        }
+        try {
+            Map<String, HttpResponse<String>> records =
+                    batchingAlmaHelper.getBibRecordsFromAlmaAsync(mmsIds, new RetryPolicy()).join();
+            assertEquals(3, requests.get());
+            assertEquals(AlmaBibsClient.MAX_MMS_IDS_PER_REQUEST, largestRequest.get());
+            assertEquals(249, records.size());
+            assertFalse(records.containsKey(MISSING_MMS_ID));
+            HttpResponse<String> record = records.get("99042");
+            assertEquals(200, record.statusCode());
+            assertEquals("<bib><mms_id>99042</mms_id><record><datafield tag=\"245\">"
+                    + "<subfield code=\"a\">Title\n99042</subfield></datafield></record></bib>", record.body());
+            assertTrue(new DocumentXmlParser().splitBibs("<bibs total_record_count=\"0\"/>").isEmpty());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testOpenCircuitFailsWithoutSendingAnything() {
+        AtomicInteger requests = new AtomicInteger();
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        AlmaHelper failingAlmaHelper = new AlmaHelper(new AdaptiveConcurrencyLimiter(1, 1, Clock.systemUTC()),
+                circuitBreaker) {
+            @Override
+            protected CompletableFuture<HttpResponse<String>> sendGetBatchAsync(List<String> mmsIds, Duration timeout,
+                    Runnable onSend) {
+                onSend.run();
+                requests.incrementAndGet();
+                return CompletableFuture.completedFuture(new StubHttpResponse(503, "down"));
+            }
+        };
+        RetryPolicy noWaits = new RetryPolicy(3, Duration.ZERO, Duration.ZERO, Clock.systemUTC(), () -> 0);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(failingAlmaHelper.getBibRecordsFromAlmaAsync(List.of("1"), noWaits).join().isEmpty());
+        }
+        assertEquals(CircuitBreaker.DEFAULT_CONSECUTIVE_FAILURES, requests.get());
+        assertTrue(circuitBreaker.isOpen());
+        assertTrue(failingAlmaHelper.getBibRecordsFromAlmaAsync(List.of("1"), noWaits).join().isEmpty());
+        assertEquals(CircuitBreaker.DEFAULT_CONSECUTIVE_FAILURES, requests.get());
+    }
+
+    @Test
+    public void testLimitGrowsWhileTheRateLimitHoldsBackFastCalls() {
+        FakeClock clock = new FakeClock();
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 10, clock);
+        Deque<Runnable> sent = new ArrayDeque<>();
+        AlmaHelper pacedAlmaHelper = new AlmaHelper(limiter, new CircuitBreaker()) {
+            @Override
+            protected CompletableFuture<HttpResponse<String>> sendGetBatchAsync(List<String> mmsIds, Duration timeout,
+                    Runnable onSend) {
+                CompletableFuture<HttpResponse<String>> response = new CompletableFuture<>();
+                sent.add(() -> {
+                    onSend.run();
+                    clock.advance(Duration.ofMillis(5));
+                    response.complete(new StubHttpResponse(200, "<bibs total_record_count=\"0\"/>"));
+                });
+                return response;
+            }
+        };
+        List<String> mmsIds = new ArrayList<>();
+        for (int i = 0; i < 20 * AlmaBibsClient.MAX_MMS_IDS_PER_REQUEST; i++) {
+            mmsIds.add(String.valueOf(99_000 + i));
+        }
+        CompletableFuture<Map<String, HttpResponse<String>>> records =
+                pacedAlmaHelper.getBibRecordsFromAlmaAsync(mmsIds, new RetryPolicy());
+        for (int calls = 0; !sent.isEmpty(); calls++) {
+            // Every call waits longer for the rate limit than the one before, then Alma answers in 5 ms.
+            clock.advance(Duration.ofSeconds(calls));
+            sent.poll().run();
+        }
+        assertTrue(records.join().isEmpty());
+        assertTrue(limiter.getLimit() >= 4);
+        assertEquals(0, limiter.getDrops());
+    }
+}
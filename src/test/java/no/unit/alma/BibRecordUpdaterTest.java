@@ -0,0 +1,168 @@
+package no.unit.alma;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import no.unit.exceptions.ParsingException;
+import no.unit.marc.Reference;
+import no.unit.scheduler.UpdateItem;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BibRecordUpdaterTest {
+
+    public static final String XML = "<bib><record></record></bib>";
+
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final AtomicInteger puts = new AtomicInteger();
+    final AtomicInteger gets = new AtomicInteger();
+    final Map<String, HttpResponse<String>> batchRecords = new ConcurrentHashMap<>();
+    final BibRecordRewriter rewriter = (updateItems, xmlFromAlma) -> RewriteResult.changed(XML);
+    FakeAlmaHelper almaHelper;
+    String failingGetMmsId;
+    String failingPutMmsId;
+
+    /**
+     * An AlmaHelper where every GET and PUT takes a little while, and succeeds unless told otherwise.
+     * The batch GET only returns the records put in batchRecords.
+     */
+    private class FakeAlmaHelper extends AlmaHelper {
+
+        @Override
+        public CompletableFuture<Map<String, HttpResponse<String>>> getBibRecordsFromAlmaAsync(List<String> mmsIds,
+                RetryPolicy retryPolicy) {
+            return CompletableFuture.completedFuture(new ConcurrentHashMap<>(batchRecords));
+        }
+
+        @Override
+        public CompletableFuture<HttpResponse<String>> getBibRecordFromAlmaWithRetriesAsync(String mmsId,
+                RetryPolicy retryPolicy) {
+            gets.incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            if (mmsId.equals(failingGetMmsId)) {
+                inFlight.decrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+            return delayed(new StubHttpResponse(200, XML));
+        }
+
+        @Override
+        public CompletableFuture<HttpResponse<String>> putBibRecordInAlmaWithRetriesAsync(String mmsId,
+                String updatedRecord, RetryPolicy retryPolicy) {
+            puts.incrementAndGet();
+            int statusCode = mmsId.equals(failingPutMmsId) ? 500 : 200;
+            return delayed(new StubHttpResponse(statusCode, "error"))
+                    .whenComplete((response, e) -> inFlight.decrementAndGet());
+        }
+    }
+
+    @BeforeEach
+    public void init() {
+        almaHelper = new FakeAlmaHelper();
+    }
+
+    private CompletableFuture<HttpResponse<String>> delayed(HttpResponse<String> response) {
+        return CompletableFuture.supplyAsync(() -> response,
+                CompletableFuture.delayedExecutor(20, TimeUnit.MILLISECONDS));
+    }
+
+    private List<Reference> references(int count) {
+        Gson gson = new Gson();
+        List<Reference> references = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            references.add(gson.fromJson("{id: " + i + "}", Reference.class));
+        }
+        return references;
+    }
+
+    private List<UpdateItem> updateItems() {
+        return new Gson().fromJson("[{isbn: 1234, link: 1234_small_1234.jpg, specifiedMaterial: Small_coverFoto}]",
+                new TypeToken<List<UpdateItem>>() {}.getType());
+    }
+
+    @Test
+    public void testNeverUpdatesMoreThanTheConcurrencyAtTheSameTime() throws Exception {
+        BibRecordUpdater updater = new BibRecordUpdater(almaHelper, rewriter, 2);
+        List<BibRecordUpdater.Result> results = updater.updateAll(references(7), updateItems(), new RetryPolicy());
+        assertEquals(7, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(String.valueOf(i + 1), results.get(i).getMmsId());
+            assertTrue(results.get(i).isSuccess());
+        }
+        assertEquals(2, maxInFlight.get());
+        assertEquals(0, inFlight.get());
+    }
+
+    @Test
+    public void testConcurrencyBelowOneUpdatesOneAtATime() throws Exception {
+        BibRecordUpdater updater = new BibRecordUpdater(almaHelper, rewriter, 0);
+        updater.updateAll(references(3), updateItems(), new RetryPolicy());
+        assertEquals(1, maxInFlight.get());
+    }
+
+    @Test
+    public void testFailedMmsIdsAreReportedWithoutStoppingTheOthers() throws Exception {
+        failingGetMmsId = "3";
+        failingPutMmsId = "4";
+        BibRecordUpdater updater = new BibRecordUpdater(almaHelper, rewriter, 3);
+        List<BibRecordUpdater.Result> results = updater.updateAll(references(5), updateItems(), new RetryPolicy());
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(results.get(1).isSuccess());
+        assertFalse(results.get(2).isSuccess());
+        assertNull(results.get(2).getGetResponse());
+        assertFalse(results.get(3).isSuccess());
+        assertEquals("error", results.get(3).getPutResponse().body());
+        assertTrue(results.get(4).isSuccess());
+    }
+
+    @Test
+    public void testPutIsSkippedWhenNothingChanged() throws Exception {
+        BibRecordRewriter unchanged = (updateItems, xmlFromAlma) -> RewriteResult.unchanged(xmlFromAlma);
+        BibRecordUpdater updater = new BibRecordUpdater(almaHelper, unchanged, 2);
+        List<BibRecordUpdater.Result> results = updater.updateAll(references(2), updateItems(), new RetryPolicy());
+        for (BibRecordUpdater.Result result : results) {
+            assertTrue(result.isPutSkipped());
+            assertTrue(result.isSuccess());
+            assertNull(result.getPutResponse());
+        }
+        assertEquals(0, puts.get());
+    }
+
+    @Test
+    public void testParsingExceptionIsThrownAfterAllUpdatesAreDone() throws Exception {
+        BibRecordRewriter failingRewriter = (updateItems, xmlFromAlma) -> {
+            throw new ParsingException("bad xml", null);
+        };
+        BibRecordUpdater updater = new BibRecordUpdater(almaHelper, failingRewriter, 2);
+        assertThrows(ParsingException.class, () -> updater.updateAll(references(3), updateItems(),
+                new RetryPolicy()));
+    }
+
+    @Test
+    public void testOnlyRecordsMissingFromTheBatchAreRetrievedOneByOne() throws Exception {
+        batchRecords.put("1", new StubHttpResponse(200, XML));
+        batchRecords.put("3", new StubHttpResponse(200, XML));
+        BibRecordUpdater updater = new BibRecordUpdater(almaHelper, rewriter, 2);
+        List<BibRecordUpdater.Result> results = updater.updateAll(references(4), updateItems(), new RetryPolicy());
+        for (BibRecordUpdater.Result result : results) {
+            assertTrue(result.isSuccess());
+        }
+        assertEquals(2, gets.get());
+        assertEquals(4, puts.get());
+    }
+}
@@ -0,0 +1,87 @@
+package no.unit.alma;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CircuitBreakerTest {
+
+    final FakeClock clock = new FakeClock();
+    final CircuitBreaker breaker = new CircuitBreaker(3, 10, 0.5, Duration.ofSeconds(30), clock);
+    final StubHttpResponse ok = new StubHttpResponse(200, "");
+    final StubHttpResponse serverError = new StubHttpResponse(503, "");
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        breaker.record(serverError, null);
+        breaker.record(null, new IOException("timed out"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.record(new StubHttpResponse(408, ""), null);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testOpensWhenTooManyOfTheLastCallsFailed() {
+        for (int i = 0; i < 5; i++) {
+            breaker.record(ok, null);
+            breaker.record(serverError, null);
+        }
+        assertTrue(breaker.isOpen());
+    }
+
+    @Test
+    public void testClientErrorsAndThrottlingDoNotOpen() {
+        for (int i = 0; i < 10; i++) {
+            breaker.record(new StubHttpResponse(429, ""), null);
+            breaker.record(new StubHttpResponse(404, ""), null);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testSuccessfulProbeClosesTheCircuit() {
+        for (int i = 0; i < 3; i++) {
+            breaker.record(serverError, null);
+        }
+        clock.advance(Duration.ofSeconds(29));
+        assertFalse(breaker.allowRequest());
+        clock.advance(Duration.ofSeconds(1));
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        breaker.record(ok, null);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testFailedProbeOpensTheCircuitAgain() {
+        for (int i = 0; i < 3; i++) {
+            breaker.record(serverError, null);
+        }
+        clock.advance(Duration.ofSeconds(30));
+        assertTrue(breaker.allowRequest());
+        breaker.record(serverError, null);
+        assertTrue(breaker.isOpen());
+        assertEquals("state=OPEN, opened=2", breaker.toString());
+    }
+
+    @Test
+    public void testLostProbeIsReplaced() {
+        for (int i = 0; i < 3; i++) {
+            breaker.record(serverError, null);
+        }
+        clock.advance(Duration.ofSeconds(30));
+        assertTrue(breaker.allowRequest());
+        clock.advance(Duration.ofSeconds(30));
+        assertTrue(breaker.allowRequest());
+    }
+}
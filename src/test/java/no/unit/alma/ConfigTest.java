@@ -0,0 +1,54 @@
+package no.unit.alma;
+
+import no.unit.secret.SecretCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ConfigTest {
+
+    private static final Map<String, String> VARIABLES = Map.of(
+            Config.ALMA_API_HOST_KEY, "https://alma-api/bibs/",
+            Config.ALMA_SRU_HOST_KEY, "https://alma-sru?isbn=",
+            Config.ALMA_CONCURRENCY_KEY, "4");
+
+    @AfterEach
+    public void forgetSharedInstances() {
+        AlmaConnection.resetInstance();
+        Config.resetInstance();
+    }
+
+    @Test
+    public void testSecretsManagerIsAskedOnceForTheLifetimeOfTheConfig() {
+        AtomicInteger fetches = new AtomicInteger();
+        SecretCache secretCache = new SecretCache(() -> "key" + fetches.incrementAndGet());
+        Config config = new Config(new FakeEnvironment(VARIABLES), secretCache);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("key1", config.getSecretKey());
+        }
+        assertEquals("key1", config.refreshSecretKey());
+        assertEquals(1, fetches.get());
+        assertEquals(4, config.almaConcurrency);
+        assertEquals(1, config.batchConcurrency);
+    }
+
+    @Test
+    public void testHandlerAndConnectionShareOneConfigAndOneFetch() {
+        forgetSharedInstances();
+        AtomicInteger fetches = new AtomicInteger();
+        Config shared = Config.initInstance(new FakeEnvironment(VARIABLES),
+                new SecretCache(() -> "key" + fetches.incrementAndGet()));
+        new UpdateAlmaDescriptionHandler();
+        new UpdateAlmaDescriptionHandler();
+        AlmaConnection connection = AlmaConnection.getInstance();
+        assertSame(shared, Config.getInstance());
+        assertSame(connection, AlmaConnection.getInstance());
+        assertEquals("key1", Config.getInstance().getSecretKey());
+        assertEquals(1, fetches.get());
+    }
+}
@@ -0,0 +1,51 @@
+package no.unit.alma;
+
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class DatafieldFactoryTest {
+
+    public static final String MATERIAL = "Omslagsbilde";
+
+    private String createAndSerialize(String url, int marcTag) throws Exception {
+        DocumentXmlParser parser = new DocumentXmlParser();
+        return parser.convertDocToString(parser.createNode(MATERIAL, url, marcTag));
+    }
+
+    @Test
+    public void testContentLinkHasNoTypeSubfield() throws Exception {
+        assertEquals("<datafield ind1=\"4\" ind2=\"2\" tag=\"856\">"
+                + "<subfield code=\"3\">Omslagsbilde</subfield>"
+                + "<subfield code=\"u\">content/?isbn=1</subfield>"
+                + "</datafield>", createAndSerialize("content/?isbn=1", DocumentXmlParser.MARC_TAG_856));
+    }
+
+    @Test
+    public void testImageAndAudioLinksGetTypeSubfields() throws Exception {
+        assertEquals("<datafield ind1=\"4\" ind2=\"2\" tag=\"856\">"
+                + "<subfield code=\"3\">Omslagsbilde</subfield>"
+                + "<subfield code=\"u\">large/1.jpg</subfield>"
+                + "<subfield code=\"q\">image/jpeg</subfield>"
+                + "</datafield>", createAndSerialize("large/1.jpg", DocumentXmlParser.MARC_TAG_856));
+        assertEquals("<datafield ind1=\"4\" ind2=\"2\" tag=\"956\">"
+                + "<subfield code=\"3\">Omslagsbilde</subfield>"
+                + "<subfield code=\"u\">mp3/1.mp3</subfield>"
+                + "<subfield code=\"q\">audio/mpeg</subfield>"
+                + "<subfield code=\"9\">LOCAL</subfield>"
+                + "</datafield>", createAndSerialize("mp3/1.mp3", DocumentXmlParser.MARC_TAG_956));
+    }
+
+    @Test
+    public void testDatafieldIsOwnedByTheTargetDocument() throws Exception {
+        DocumentXmlParser parser = new DocumentXmlParser();
+        Document record = parser.asDocument("<bib><record><datafield tag=\"900\"/></record></bib>");
+        Element datafield = DatafieldFactory.createDatafield(record, MATERIAL, "1.jpg", DocumentXmlParser.MARC_TAG_856);
+        assertSame(record, datafield.getOwnerDocument());
+        assertSame(datafield, parser.insertNode(record, datafield, DocumentXmlParser.MARC_TAG_856));
+        assertEquals(1, parser.getParseCount());
+    }
+}
@@ -0,0 +1,32 @@
+package no.unit.alma;
+
+import nva.commons.core.Environment;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * An environment with only the given variables.
+ */
+public class FakeEnvironment extends Environment {
+
+    private final transient Map<String, String> variables;
+
+    public FakeEnvironment(Map<String, String> variables) {
+        super();
+        this.variables = variables;
+    }
+
+    @Override
+    public String readEnv(String name) {
+        if (!variables.containsKey(name)) {
+            throw new IllegalStateException("Missing env variable " + name);
+        }
+        return variables.get(name);
+    }
+
+    @Override
+    public Optional<String> readEnvOpt(String name) {
+        return Optional.ofNullable(variables.get(name));
+    }
+}
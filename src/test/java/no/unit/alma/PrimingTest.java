@@ -0,0 +1,52 @@
+package no.unit.alma;
+
+import no.unit.exceptions.SecretRetrieverException;
+import no.unit.scheduler.SchedulerHelper;
+import no.unit.secret.SecretCache;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PrimingTest {
+
+    private static final FakeEnvironment ENVIRONMENT = new FakeEnvironment(Map.of(
+            Config.ALMA_API_HOST_KEY, "https://alma-api/bibs/",
+            Config.ALMA_SRU_HOST_KEY, "https://alma-sru?isbn=",
+            "STANDARD_CONTENT_URL", "content-url-com/"));
+
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    private Priming createPriming(SecretCache.SecretSource source, BibRecordRewriter recordRewriter) {
+        Config config = new Config(ENVIRONMENT, new SecretCache(source));
+        return new Priming(config, new SchedulerHelper(ENVIRONMENT), recordRewriter, 3);
+    }
+
+    @Test
+    public void testPrimeRunsTheSamplesThroughBothRewriters() throws Exception {
+        assertTrue(createPriming(() -> "key", new DomRecordRewriter()).prime() > 0);
+        assertTrue(createPriming(() -> "key", new StaxRecordRewriter()).prime() > 0);
+    }
+
+    @Test
+    public void testAfterRestoreFetchesTheApiKeyAgain() {
+        Priming priming = createPriming(() -> "key" + fetches.incrementAndGet(), new DomRecordRewriter());
+        priming.afterRestore(null);
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void testAfterRestoreKeepsTheOldApiKeyWhenItCantBeFetched() {
+        Priming priming = createPriming(() -> {
+            if (fetches.incrementAndGet() > 1) {
+                throw new SecretRetrieverException("Secrets Manager is down", new IllegalStateException());
+            }
+            return "key";
+        }, new DomRecordRewriter());
+        priming.afterRestore(null);
+        assertEquals(2, fetches.get());
+    }
+}
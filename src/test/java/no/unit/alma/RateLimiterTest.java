@@ -0,0 +1,72 @@
+package no.unit.alma;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RateLimiterTest {
+
+    final FakeClock clock = new FakeClock();
+
+    @Test
+    public void testFullBucketLetsOneSecondOfCallsThrough() {
+        RateLimiter limiter = new RateLimiter(5, clock);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+        assertEquals(200, limiter.reserve());
+        assertEquals(400, limiter.reserve());
+    }
+
+    @Test
+    public void testBucketRefillsWithTime() {
+        RateLimiter limiter = new RateLimiter(2, clock);
+        limiter.reserve();
+        limiter.reserve();
+        assertEquals(500, limiter.reserve());
+        clock.advance(Duration.ofMillis(500));
+        assertEquals(500, limiter.reserve());
+        clock.advance(Duration.ofSeconds(10));
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertEquals(500, limiter.reserve());
+    }
+
+    @Test
+    public void testZeroRateDoesNotLimit() {
+        RateLimiter limiter = new RateLimiter(0, clock);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+        assertTrue(limiter.acquireAsync().isDone());
+    }
+
+    @Test
+    public void testRateIsLoweredWhenTheDailyQuotaRunsLow() {
+        RateLimiter limiter = new RateLimiter(10, clock);
+        limiter.observe(new StubHttpResponse(200, "", Map.of(RateLimiter.REMAINING_QUOTA_HEADER, "500000")));
+        assertEquals(10, limiter.getPermitsPerSecond(), 0.0001);
+        limiter.observe(new StubHttpResponse(200, "", Map.of(RateLimiter.REMAINING_QUOTA_HEADER, "5000")));
+        assertEquals(5, limiter.getPermitsPerSecond(), 0.0001);
+        limiter.observe(new StubHttpResponse(200, "", Map.of(RateLimiter.REMAINING_QUOTA_HEADER, "12")));
+        assertEquals(1, limiter.getPermitsPerSecond(), 0.0001);
+        for (int i = 0; i < 10; i++) {
+            limiter.reserve();
+        }
+        assertEquals(1000, limiter.reserve());
+    }
+
+    @Test
+    public void testResponsesWithoutTheQuotaHeaderLeaveTheRate() {
+        RateLimiter limiter = new RateLimiter(10, clock);
+        limiter.observe(new StubHttpResponse(200, "", Map.of(RateLimiter.REMAINING_QUOTA_HEADER, "5000")));
+        limiter.observe(new StubHttpResponse(200, ""));
+        limiter.observe(new StubHttpResponse(200, "", Map.of(RateLimiter.REMAINING_QUOTA_HEADER, "unknown")));
+        limiter.observe(null);
+        assertEquals(5, limiter.getPermitsPerSecond(), 0.0001);
+    }
+}
@@ -0,0 +1,77 @@
+package no.unit.alma;
+
+import com.google.gson.Gson;
+import no.unit.marc.Reference;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ReferenceCacheTest {
+
+    private static final String ISBN = "9788210053412";
+    private static final String OTHER_ISBN = "9780198242833";
+    private static final String THIRD_ISBN = "9780201882957";
+
+    private final FakeClock clock = new FakeClock();
+    private final ReferenceCache cache = new ReferenceCache(2, Duration.ofMinutes(60), Duration.ofMinutes(5), clock);
+
+    private List<Reference> references(String... ids) {
+        List<Reference> references = new ArrayList<>();
+        for (String id : ids) {
+            references.add(new Gson().fromJson("{id: " + id + "}", Reference.class));
+        }
+        return references;
+    }
+
+    @Test
+    public void testHitsAndMissesAreCounted() {
+        assertNull(cache.get(ISBN));
+        cache.put(ISBN, references("1", "2"));
+        assertEquals("2", cache.get(ISBN).getReferences().get(1).getId());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testCachedListCanBeChangedByTheCaller() {
+        cache.put(ISBN, references("1"));
+        cache.get(ISBN).getReferences().addAll(references("2"));
+        assertEquals(1, cache.get(ISBN).getReferences().size());
+    }
+
+    @Test
+    public void testNegativeResultsExpireSooner() {
+        cache.put(ISBN, references("1"));
+        cache.put(OTHER_ISBN, null);
+        assertNotNull(cache.get(OTHER_ISBN));
+        assertNull(cache.get(OTHER_ISBN).getReferences());
+
+        clock.advance(Duration.ofMinutes(5));
+        assertNull(cache.get(OTHER_ISBN));
+        assertNotNull(cache.get(ISBN));
+
+        clock.advance(Duration.ofMinutes(55));
+        assertNull(cache.get(ISBN));
+        assertEquals(2, cache.getEvictions());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvictedWhenFull() {
+        cache.put(ISBN, references("1"));
+        cache.put(OTHER_ISBN, references("2"));
+        cache.get(ISBN);
+        cache.put(THIRD_ISBN, references("3"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        assertNull(cache.get(OTHER_ISBN));
+        assertNotNull(cache.get(ISBN));
+        assertNotNull(cache.get(THIRD_ISBN));
+    }
+}
@@ -0,0 +1,92 @@
+package no.unit.alma;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RetryPolicyTest {
+
+    private final FakeClock clock = new FakeClock();
+
+    private RetryPolicy policy(double random) {
+        return new RetryPolicy(4, Duration.ofMillis(1000), Duration.ofMillis(3000), clock, () -> random);
+    }
+
+    private Context contextWithRemainingTime(int millis) {
+        Context context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn(millis);
+        return context;
+    }
+
+    @Test
+    public void testOnlyFailuresThatMaySucceedAreRetried() {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.isRetryable(null, new IOException("connection reset")));
+        assertTrue(policy.isRetryable(new StubHttpResponse(429, ""), null));
+        assertTrue(policy.isRetryable(new StubHttpResponse(408, ""), null));
+        assertTrue(policy.isRetryable(new StubHttpResponse(503, ""), null));
+        assertFalse(policy.isRetryable(new StubHttpResponse(200, ""), null));
+        assertFalse(policy.isRetryable(new StubHttpResponse(400, ""), null));
+        assertFalse(policy.isRetryable(new StubHttpResponse(404, ""), null));
+        assertEquals(RetryPolicy.NO_RETRY, policy.retryDelayMillis(0, new StubHttpResponse(404, ""), null));
+    }
+
+    @Test
+    public void testDelayIsJitteredAndGrowsExponentiallyUpToTheMax() {
+        StubHttpResponse unavailable = new StubHttpResponse(503, "");
+        assertEquals(0, policy(0).retryDelayMillis(0, unavailable, null));
+        assertEquals(500, policy(0.5).retryDelayMillis(0, unavailable, null));
+        assertEquals(1000, policy(0.5).retryDelayMillis(1, unavailable, null));
+        assertEquals(1500, policy(0.5).retryDelayMillis(2, unavailable, null));
+        assertEquals(RetryPolicy.NO_RETRY, policy(0.5).retryDelayMillis(3, unavailable, null));
+    }
+
+    @Test
+    public void testRetryAfterIsHonoured() {
+        StubHttpResponse inSeconds = new StubHttpResponse(429, "", Map.of(RetryPolicy.RETRY_AFTER, "2"));
+        assertEquals(2000, policy(0.1).retryDelayMillis(0, inSeconds, null));
+
+        clock.advance(Duration.ofSeconds(100));
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(Instant.ofEpochSecond(103).atZone(ZoneOffset.UTC));
+        StubHttpResponse atDate = new StubHttpResponse(429, "", Map.of(RetryPolicy.RETRY_AFTER, date));
+        assertEquals(3000, policy(0.1).retryDelayMillis(0, atDate, null));
+
+        StubHttpResponse unreadable = new StubHttpResponse(429, "", Map.of(RetryPolicy.RETRY_AFTER, "soon"));
+        assertEquals(100, policy(0.1).retryDelayMillis(0, unreadable, null));
+    }
+
+    @Test
+    public void testNoRetryThatWouldPassTheTimeBudget() {
+        RetryPolicy policy = policy(0.5).withTimeBudget(contextWithRemainingTime(6000));
+        StubHttpResponse unavailable = new StubHttpResponse(503, "");
+        assertEquals(500, policy.retryDelayMillis(0, unavailable, null));
+        assertEquals(1000, policy.retryDelayMillis(1, unavailable, null));
+        clock.advance(Duration.ofMillis(600));
+        assertEquals(RetryPolicy.NO_RETRY, policy.retryDelayMillis(0, unavailable, null));
+        assertEquals(500, policy(0.5).retryDelayMillis(0, unavailable, null));
+    }
+
+    @Test
+    public void testRequestTimeoutEndsBeforeTheDeadline() {
+        assertEquals(RetryPolicy.DEFAULT_REQUEST_TIMEOUT, policy(0.5).requestTimeout());
+        assertEquals(RetryPolicy.DEFAULT_REQUEST_TIMEOUT,
+                policy(0.5).withTimeBudget(contextWithRemainingTime(60_000)).requestTimeout());
+        RetryPolicy policy = policy(0.5).withTimeBudget(contextWithRemainingTime(12_000));
+        assertEquals(Duration.ofSeconds(7), policy.requestTimeout());
+        clock.advance(Duration.ofSeconds(10));
+        assertEquals(RetryPolicy.MIN_REQUEST_TIMEOUT, policy.requestTimeout());
+    }
+}
@@ -0,0 +1,117 @@
+package no.unit.alma;
+
+import com.sun.net.httpserver.HttpServer;
+import no.unit.marc.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SruClientTest {
+
+    private static final String ISBN13 = "9788210053412";
+    private static final String ISBN10 = "8210053418";
+    private static final String EMPTY_ISBN = "9780198242833";
+    private static final String FAILING_ISBN = "0198242832";
+
+    HttpServer server;
+    ExecutorService serverExecutor;
+    SruClient sruClient;
+    final CountDownLatch bothRequestsArrived = new CountDownLatch(2);
+    final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Starts a fake alma-sru that only answers the isbn lookups when both of them have arrived.
+     */
+    @BeforeEach
+    public void init() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/alma", exchange -> {
+            requests.incrementAndGet();
+            String isbn = exchange.getRequestURI().getQuery().substring("isbn=".length());
+            String body = "";
+            int status = 200;
+            if (ISBN13.equals(isbn) || ISBN10.equals(isbn)) {
+                bothRequestsArrived.countDown();
+                try {
+                    bothRequestsArrived.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                body = "[{\"id\": \"99" + isbn + "\"}]";
+            } else if (FAILING_ISBN.equals(isbn)) {
+                status = 500;
+                body = "error";
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+        sruClient = new SruClient(SharedHttpClient.get(),
+                "http://localhost:" + server.getAddress().getPort() + "/alma?isbn=", new ReferenceCache());
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop(0);
+        serverExecutor.shutdown();
+    }
+
+    @Test
+    public void testIsbnsAreLookedUpAtTheSameTime() throws Exception {
+        List<List<Reference>> referenceLists = sruClient.getReferenceListsByIsbn(ISBN13, ISBN10);
+        assertEquals(0, bothRequestsArrived.getCount());
+        assertEquals("99" + ISBN13, referenceLists.get(0).get(0).getId());
+        assertEquals("99" + ISBN10, referenceLists.get(1).get(0).getId());
+    }
+
+    @Test
+    public void testEmptyAnswerGivesNull() throws Exception {
+        assertNull(sruClient.getReferenceListsByIsbn(EMPTY_ISBN).get(0));
+    }
+
+    @Test
+    public void testErrorStatusGivesIoException() {
+        IOException e = assertThrows(IOException.class, () -> sruClient.getReferenceListsByIsbn(FAILING_ISBN));
+        assertTrue(e.getMessage().contains("500"));
+    }
+
+    @Test
+    public void testRepeatedIsbnsAreAnsweredFromTheCache() throws Exception {
+        sruClient.getReferenceListsByIsbn(ISBN13, ISBN10);
+        List<List<Reference>> referenceLists = sruClient.getReferenceListsByIsbn(ISBN13, ISBN10);
+        assertNull(sruClient.getReferenceListsByIsbn(EMPTY_ISBN).get(0));
+        assertNull(sruClient.getReferenceListsByIsbn(EMPTY_ISBN).get(0));
+        assertEquals("99" + ISBN10, referenceLists.get(1).get(0).getId());
+        assertEquals(3, requests.get());
+        assertEquals(3, sruClient.getCache().getHits());
+        assertEquals(3, sruClient.getCache().getMisses());
+    }
+
+    @Test
+    public void testFailedLookupsAreNotCached() {
+        assertThrows(IOException.class, () -> sruClient.getReferenceListsByIsbn(FAILING_ISBN));
+        assertThrows(IOException.class, () -> sruClient.getReferenceListsByIsbn(FAILING_ISBN));
+        assertEquals(2, requests.get());
+    }
+}
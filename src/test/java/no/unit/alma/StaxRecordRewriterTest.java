@@ -0,0 +1,179 @@
+package no.unit.alma;
+
+import no.unit.exceptions.ParsingException;
+import no.unit.scheduler.UpdateItem;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StaxRecordRewriterTest {
+
+    public static final String CORRECT_XML_FILE = "/Mock_xml.xml";
+    public static final String FAULTY_XML_FILE = "/Faulty_xml.xml";
+    public static final String UPDATED_XML_FILE = "/Updated_xml.xml";
+    public static final String UPDATED_GROUP_XML_FILE = "/UpdatedGroupXml.xml";
+    public static final String MOCK_ELECTRONIC_XML_FILE = "/Mock_Electronic_xml.xml";
+    public static final String[] GOLDEN_FILES = {
+        CORRECT_XML_FILE, FAULTY_XML_FILE, UPDATED_XML_FILE, UPDATED_GROUP_XML_FILE, MOCK_ELECTRONIC_XML_FILE
+    };
+
+    public static final String[][] SMALL_AND_LARGE_COVER = {
+        {"Small_coverFoto", "1234_small_1234.jpg"},
+        {"Large_coverFoto", "1234_large_1234.jpg"}
+    };
+    public static final String[][] ONE_UPDATE = {
+        {"Lydfil", "content-url/files/audio/mp3/2/1/9788210053412.mp3"}
+    };
+    public static final String[][] EXISTING_UPDATE = {
+        {"Beskrivelse fra forlaget (kort)",
+            "http://content.bibsys.no/content/?type=descr_publ_brief&isbn=8210053418"}
+    };
+    public static final String[][] EXISTING_AND_NEW_UPDATES = {
+        {"Beskrivelse fra forlaget (kort)",
+            "http://content.bibsys.no/content/?type=descr_publ_brief&isbn=8210053418"},
+        {"Forlagets beskrivelse (kort)", "content-url/content/?isbn=9788210053412"},
+        {"Forlagets beskrivelse (kort)", "content-url/content/?isbn=9788210053412"},
+        {"Innholdsfortegnelse", "content-url/content/?isbn=9788210053412"},
+        {"Miniatyrbilde", "content-url/files/images/small/2/1/9788210053412.jpg"},
+        {"Omslagsbilde", "content-url/files/images/large/2/1/9788210053412.jpg"},
+        {"Lydfil", "content-url/files/audio/mp3/2/1/9788210053412.mp3"},
+        {"Small_coverFoto", "1234_small_1234.jpg"},
+        {" Miniatyrbilde ", " content-url/files/images/small/2/1/9788210053412.jpg"},
+        {"", ""},
+        {"Tegn som m\u00e5 escapes: <&> \"'", "content-url/content/?isbn=1&type=<b>"}
+    };
+    public static final String[][][] GOLDEN_UPDATES = {
+        SMALL_AND_LARGE_COVER, ONE_UPDATE, EXISTING_UPDATE, EXISTING_AND_NEW_UPDATES
+    };
+
+    private final transient BibRecordRewriter dom = new DomRecordRewriter();
+    private final transient BibRecordRewriter stax = new StaxRecordRewriter();
+
+    /**
+     * A helper method that returnes a string from a source.
+     * @param file The file/source you want to retrieve the string from.
+     * @return A string-value representing the content of the source.
+     * @throws Exception when something goes wrong.
+     */
+    public String setup(String file) throws Exception {
+        InputStream stream = StaxRecordRewriterTest.class.getResourceAsStream(file);
+        InputStreamReader reader = new InputStreamReader(stream);
+        BufferedReader br = new BufferedReader(reader);
+        String line;
+        StringBuilder sb = new StringBuilder();
+        while ((line = br.readLine()) != null) {
+            sb.append(line.trim());
+        }
+        return sb.toString();
+    }
+
+    private List<UpdateItem> toUpdateItems(String[][] updates) {
+        List<UpdateItem> updateItems = new ArrayList<>();
+        for (String[] update : updates) {
+            UpdateItem item = new UpdateItem();
+            item.setIsbn("9788210053412");
+            item.setSpecifiedMaterial(update[0]);
+            item.setLink(update[1]);
+            updateItems.add(item);
+        }
+        return updateItems;
+    }
+
+    /**
+     * Runs the rewriter and returns the result, or the type of the exception if the rewriter failed.
+     */
+    private String rewriteOrFailure(BibRecordRewriter rewriter, List<UpdateItem> updateItems, String xml) {
+        try {
+            return rewriter.rewrite(updateItems, xml);
+        } catch (ParsingException | RuntimeException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    private void assertSameAsDom(String xml, String[][] updates) {
+        List<UpdateItem> updateItems = toUpdateItems(updates);
+        assertEquals(rewriteOrFailure(dom, updateItems, xml), rewriteOrFailure(stax, updateItems, xml));
+    }
+
+    @Test
+    public void testStaxGivesSameResultAsDomOnGoldenRecords() throws Exception {
+        for (String file : GOLDEN_FILES) {
+            String xml = setup(file);
+            for (String[][] updates : GOLDEN_UPDATES) {
+                assertSameAsDom(xml, updates);
+            }
+        }
+    }
+
+    @Test
+    public void testStaxGivesTheExpectedGroupUpdate() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE);
+        String expected = setup(UPDATED_GROUP_XML_FILE);
+        assertEquals(expected, stax.rewrite(toUpdateItems(SMALL_AND_LARGE_COVER), mockXml));
+    }
+
+    @Test
+    public void testStaxKeepsLineBreaksPrefixesAndNamespacesLikeDom() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE);
+        String[] variants = {
+            mockXml.replace("<leader>", "<leader>\n"),
+            mockXml.replace("<title>", "<title>\n").replace("</title>", "\n\n</title>"),
+            mockXml.replace("<linked_record_id>", "<linked_record_id>\n"),
+            mockXml.replace("<bib>", "<marc:bib xmlns:marc=\"http://www.loc.gov/MARC21/slim\" a='1' b=\"x&amp;y\">")
+                .replace("</bib>", "</marc:bib>"),
+            mockXml.replace("<bib>", "<bib xmlns=\"http://www.loc.gov/MARC21/slim\" xmlns:a=\"u\">")
+                .replace("<record>", "<record xmlns=\"http://www.loc.gov/MARC21/slim\" xmlns:a=\"v\" a:b=\"c\">"),
+            mockXml.replace("<title>", "<title><!-- a comment --><![CDATA[<cdata>\n]]>"),
+            mockXml.substring(mockXml.indexOf("<bib>"))
+        };
+        for (String xml : variants) {
+            for (String[][] updates : GOLDEN_UPDATES) {
+                assertSameAsDom(xml, updates);
+            }
+        }
+    }
+
+    @Test
+    public void testStaxFallsBackToDomForRecordsItCannotStream() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE);
+        String[] variants = {
+            mockXml.replace("<title>", "<title>mamamarc:rc:rc:"),
+            mockXml.replace("<title>", "<title>&#13;&#128512;"),
+            mockXml.replace("<bib>", "<!-- before the record --><bib>")
+        };
+        for (String xml : variants) {
+            for (String[][] updates : GOLDEN_UPDATES) {
+                assertSameAsDom(xml, updates);
+            }
+        }
+        assertSameAsDom(mockXml, new String[][] {{"Lydfil\r", "mamarc:rc:lyd.mp3"}});
+    }
+
+    @Test
+    public void testStaxReturnsUnchangedXmlWhenEverythingExists() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE);
+        assertSame(mockXml, stax.rewrite(toUpdateItems(EXISTING_UPDATE), mockXml));
+    }
+
+    @Test
+    public void testBothEnginesReportWhetherTheRecordChanged() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE);
+        for (BibRecordRewriter rewriter : new BibRecordRewriter[] {dom, stax}) {
+            RewriteResult unchanged = rewriter.rewriteRecord(toUpdateItems(EXISTING_UPDATE), mockXml);
+            assertFalse(unchanged.isChanged());
+            assertSame(mockXml, unchanged.getXml());
+            RewriteResult changed = rewriter.rewriteRecord(toUpdateItems(EXISTING_AND_NEW_UPDATES), mockXml);
+            assertTrue(changed.isChanged());
+            assertEquals(rewriter.rewrite(toUpdateItems(EXISTING_AND_NEW_UPDATES), mockXml), changed.getXml());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package no.unit.alma;
+
+import javax.net.ssl.SSLSession;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * An HttpResponse with a given status, body and headers, for tests that do not go over the network.
+ */
+public class StubHttpResponse implements HttpResponse<String> {
+
+    private final transient int statusCode;
+    private final transient String body;
+    private final transient HttpHeaders headers;
+
+    public StubHttpResponse(int statusCode, String body) {
+        this(statusCode, body, Map.of());
+    }
+
+    /**
+     * Creates a response.
+     * @param statusCode The status code.
+     * @param body The body.
+     * @param headers The headers, one value each.
+     */
+    public StubHttpResponse(int statusCode, String body, Map<String, String> headers) {
+        this.statusCode = statusCode;
+        this.body = body;
+        Map<String, List<String>> headerLists = new HashMap<>();
+        headers.forEach((name, value) -> headerLists.put(name, List.of(value)));
+        this.headers = HttpHeaders.of(headerLists, (name, value) -> true);
+    }
+
+    @Override
+    public int statusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public String body() {
+        return body;
+    }
+
+    @Override
+    public HttpHeaders headers() {
+        return headers;
+    }
+
+    @Override
+    public HttpRequest request() {
+        return null;
+    }
+
+    @Override
+    public Optional<HttpResponse<String>> previousResponse() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<SSLSession> sslSession() {
+        return Optional.empty();
+    }
+
+    @Override
+    public URI uri() {
+        return null;
+    }
+
+    @Override
+    public HttpClient.Version version() {
+        return HttpClient.Version.HTTP_2;
+    }
+}
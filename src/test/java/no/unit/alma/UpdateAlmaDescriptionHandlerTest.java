@@ -1,7 +1,12 @@
 package no.unit.alma;
 
 
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import no.unit.scheduler.UpdateItem;
 import nva.commons.core.Environment;
 import org.junit.jupiter.api.BeforeEach;
@@ -13,8 +18,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -22,6 +30,7 @@ public class UpdateAlmaDescriptionHandlerTest {
 
     public static final String CORRECT_XML_FILE = "/Mock_xml.xml";
     public static final String UPDATED_XML_FILE = "/UpdatedGroupXml.xml";
+    public static final String MOCKEVENT_FILE = "/MockEvent.JSON";
 
     Config mockConfig;
     Environment mockEnv;
@@ -78,5 +87,51 @@ public class UpdateAlmaDescriptionHandlerTest {
         assertEquals(mockUpdatedXml, updatedXml);
     }
 
+    private Context context() {
+        Context context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn(60_000);
+        when(context.getAwsRequestId()).thenReturn("request-1");
+        when(context.getFunctionName()).thenReturn("AlmaUpdater");
+        return context;
+    }
+
+    private SQSEvent.SQSMessage message(String messageId, String body) {
+        SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+        message.setMessageId(messageId);
+        message.setBody(body);
+        return message;
+    }
+
+    @Test
+    public void handleRequestReportsOnlyTheFailedMessages() throws Exception {
+        JsonObject unchangedEvent = JsonParser.parseString(setup(MOCKEVENT_FILE)).getAsJsonObject();
+        JsonObject dynamodb = unchangedEvent.getAsJsonObject("dynamodb");
+        dynamodb.add("OldImage", dynamodb.get("NewImage").deepCopy());
+        List<SQSEvent.SQSMessage> messages = new ArrayList<>();
+        messages.add(message("1", unchangedEvent.toString()));
+        messages.add(message("2", "not a stream record"));
+        messages.add(message("3", unchangedEvent.toString()));
+        messages.add(message("4", "{}"));
+        SQSEvent event = new SQSEvent();
+        event.setRecords(messages);
 
-}
\ No newline at end of file
+        SQSBatchResponse response = mockedHandler.handleRequest(event, context());
+
+        assertEquals(2, response.getBatchItemFailures().size());
+        assertEquals("2", response.getBatchItemFailures().get(0).getItemIdentifier());
+        assertEquals("4", response.getBatchItemFailures().get(1).getItemIdentifier());
+    }
+
+    @Test
+    public void isRedrivenTest() {
+        SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+        message.setAttributes(Map.of("ApproximateReceiveCount", "1"));
+        assertFalse(UpdateAlmaDescriptionHandler.isRedriven(message));
+        message.setAttributes(Map.of("ApproximateReceiveCount", "2"));
+        assertTrue(UpdateAlmaDescriptionHandler.isRedriven(message));
+        message.setAttributes(Map.of("ApproximateReceiveCount", "1"));
+        message.setMessageAttributes(Map.of(UpdateAlmaDescriptionHandler.REDRIVEN_ATTRIBUTE,
+                new SQSEvent.MessageAttribute()));
+        assertTrue(UpdateAlmaDescriptionHandler.isRedriven(message));
+    }
+}
@@ -8,9 +8,16 @@ import org.w3c.dom.NodeList;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class XmlParserTest {
@@ -29,6 +36,18 @@ public class XmlParserTest {
 
     public static final String MOCK_DESCRIPTION = "This is the description";
     public static final String MOCK_URL = "This/is/the/url";
+    public static final String[][] MOCK_UPDATES = {
+        {"Forlagets beskrivelse (kort)", "content-url/content/?isbn=9788210053412"},
+        {"Forlagets beskrivelse (lang)", "content-url/content/?isbn=9788210053412"},
+        {"Innholdsfortegnelse", "content-url/content/?isbn=9788210053412"},
+        {"Miniatyrbilde", "content-url/files/images/small/2/1/9788210053412.jpg"},
+        {"Omslagsbilde", "content-url/files/images/large/2/1/9788210053412.jpg"},
+        {"Originalt bilde", "content-url/files/images/original/2/1/9788210053412.jpg"},
+        {"Lydfil", "content-url/files/audio/mp3/2/1/9788210053412.mp3"},
+        {"Miniatyrbilde", "content-url/files/images/small/2/1/9788210053412.jpg"},
+        {"Beskrivelse fra forlaget (kort)",
+            "http://content.bibsys.no/content/?type=descr_publ_brief&isbn=8210053418"}
+    };
 
 
     /**
@@ -49,6 +68,33 @@ public class XmlParserTest {
         return sb.toString();
     }
 
+    /**
+     * Applies the updates the way it was done before RecordSession, parsing and serializing for every update.
+     */
+    private String updateOneByOne(DocumentXmlParser parser, String xml, String[][] updates) throws Exception {
+        String xmlBuilderString = xml;
+        for (String[] update : updates) {
+            int marcTag = parser.determineElectronicOrPrint(xmlBuilderString);
+            if (parser.alreadyExists(update[0], update[1], xmlBuilderString, marcTag)) {
+                continue;
+            }
+            Document updateNode = parser.createNode(update[0], update[1], marcTag);
+            Document updatedDocument = parser.insertUpdatedIntoRecord(xmlBuilderString, updateNode, marcTag);
+            xmlBuilderString = parser.convertDocToString(updatedDocument);
+        }
+        return xmlBuilderString;
+    }
+
+    private String updateInSession(DocumentXmlParser parser, String xml, String[][] updates) throws Exception {
+        RecordSession record = parser.openSession(xml);
+        for (String[] update : updates) {
+            if (!record.alreadyExists(update[0], update[1])) {
+                record.insert(update[0], update[1]);
+            }
+        }
+        return record.asString();
+    }
+
     /**
      * Helper method that lets you print a Document.
      * @param doc The document you want to print.
@@ -171,4 +217,95 @@ public class XmlParserTest {
         assertEquals(MARC_TAG_956, xmlParser.determineElectronicOrPrint(mockElectronic));
     }
 
+    @Test
+    public void testSessionGivesSameResultAsUpdatingOneByOne() throws Exception {
+        for (String file : new String[]{CORRECT_XML_FILE, MOCK_ELECTRONIC_XML_FILE, FAULTY_XML_FILE}) {
+            String mockXml = setup(file);
+            DocumentXmlParser parser = new DocumentXmlParser();
+            assertEquals(updateOneByOne(parser, mockXml, MOCK_UPDATES),
+                    updateInSession(parser, mockXml, MOCK_UPDATES));
+        }
+    }
+
+    @Test
+    public void testSessionKeepsLineBreaksAndPrefixesLikeOneByOne() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE)
+                .replace("<leader>", "<leader>\n")
+                .replace("<title>", "<title>marc\n:")
+                .replace("<linked_record_id/>", "<linked_record_id>\n</linked_record_id>");
+        DocumentXmlParser parser = new DocumentXmlParser();
+        assertEquals(updateOneByOne(parser, mockXml, MOCK_UPDATES), updateInSession(parser, mockXml, MOCK_UPDATES));
+    }
+
+    @Test
+    public void testSessionOnlyRoundTripsWhenAnotherUpdateIsInserted() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE)
+                .replace("<linked_record_id/>", "<linked_record_id>\n</linked_record_id>")
+                .replace("<title>", "<title><![CDATA[\n]]>");
+        String[][] oneNewUpdate = {
+            {"Lydfil", "content-url/files/audio/mp3/2/1/9788210053412.mp3"},
+            {"Lydfil", "content-url/files/audio/mp3/2/1/9788210053412.mp3"},
+            {"Beskrivelse fra forlaget (kort)",
+                "http://content.bibsys.no/content/?type=descr_publ_brief&isbn=8210053418"}
+        };
+        DocumentXmlParser parser = new DocumentXmlParser();
+        String updated = updateInSession(parser, mockXml, oneNewUpdate);
+        assertEquals(updateOneByOne(parser, mockXml, oneNewUpdate), updated);
+        assertTrue(updated.contains("<linked_record_id></linked_record_id>"));
+        assertEquals(updateOneByOne(parser, mockXml, MOCK_UPDATES), updateInSession(parser, mockXml, MOCK_UPDATES));
+    }
+
+    @Test
+    public void testSessionHandlesPrefixesThatReappearAfterStripping() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE).replace("<title>", "<title>mamamarc:rc:rc:");
+        DocumentXmlParser parser = new DocumentXmlParser();
+        assertEquals(updateOneByOne(parser, mockXml, MOCK_UPDATES), updateInSession(parser, mockXml, MOCK_UPDATES));
+        String[][] prefixedUpdates = {
+            {"Lydfil", "mamarc:rc:lyd.mp3"}, {"Omslagsbilde", "bilde.jpg"}, {"Miniatyrbilde", "mini.jpg"}
+        };
+        String plainXml = setup(CORRECT_XML_FILE);
+        assertEquals(updateOneByOne(parser, plainXml, prefixedUpdates),
+                updateInSession(parser, plainXml, prefixedUpdates));
+    }
+
+    @Test
+    public void testSessionParsesAndSerializesOnce() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE);
+        DocumentXmlParser parser = new DocumentXmlParser();
+        updateInSession(parser, mockXml, MOCK_UPDATES);
+        assertEquals(1, parser.getParseCount());
+        assertEquals(1, parser.getSerializeCount());
+    }
+
+    @Test
+    public void testSessionReturnsUnchangedXmlWhenEverythingExists() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE);
+        DocumentXmlParser parser = new DocumentXmlParser();
+        RecordSession record = parser.openSession(mockXml);
+        assertTrue(record.alreadyExists("Beskrivelse fra forlaget (kort)",
+                "http://content.bibsys.no/content/?type=descr_publ_brief&isbn=8210053418"));
+        assertFalse(record.isModified());
+        assertSame(mockXml, record.asString());
+        assertEquals(0, parser.getSerializeCount());
+    }
+
+    @Test
+    public void testParserCanBeSharedBetweenThreads() throws Exception {
+        String mockXml = setup(CORRECT_XML_FILE);
+        DocumentXmlParser parser = new DocumentXmlParser();
+        String expected = updateInSession(parser, mockXml, MOCK_UPDATES);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                results.add(executor.submit(() -> updateInSession(parser, mockXml, MOCK_UPDATES)));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
 }
@@ -0,0 +1,202 @@
+package no.unit.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import no.unit.alma.RateLimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-process stand-in for the Alma bibs api and alma-sru, serving the records of a RecordStore.
+ * The bibs api answers GET /almaws/v1/bibs/{mms_id}, GET /almaws/v1/bibs?mms_id=a,b and PUT /almaws/v1/bibs/{mms_id},
+ * alma-sru answers GET /alma?isbn={isbn} with the mms_id's of the isbn. Every answer can be delayed, and the bibs
+ * api answers a share of the calls with 429 or 503, as set in the Faults.
+ */
+public class FakeAlmaServer implements AutoCloseable {
+
+    public static final String BIBS_PATH = "/almaws/v1/bibs";
+    public static final String SRU_PATH = "/alma";
+    private static final String ISBN_PARAMETER = "isbn=";
+    private static final String MMS_ID_PARAMETER = "mms_id=";
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVICE_UNAVAILABLE = 503;
+    private static final String REMAINING_QUOTA = "100000";
+    private static final String THROTTLED_BODY = "<web_service_result><errorsExist>true</errorsExist><errorList>"
+            + "<error><errorCode>PER_SECOND_THRESHOLD</errorCode></error></errorList></web_service_result>";
+
+    /**
+     * The delay and the failures the fake answers with.
+     */
+    public static final class Faults {
+
+        final long latencyMillis;
+        final long jitterMillis;
+        final double errorRate;
+        final double throttleRate;
+
+        /**
+         * Creates the faults.
+         * @param latencyMillis The least time an answer takes.
+         * @param jitterMillis The most time added at random to the latency.
+         * @param errorRate The share of the calls answered with 503, from 0 to 1.
+         * @param throttleRate The share of the calls answered with 429, from 0 to 1.
+         */
+        public Faults(long latencyMillis, long jitterMillis, double errorRate, double throttleRate) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.errorRate = errorRate;
+            this.throttleRate = throttleRate;
+        }
+    }
+
+    final LongAdder gets = new LongAdder();
+    final LongAdder batchGets = new LongAdder();
+    final LongAdder puts = new LongAdder();
+    final LongAdder sruLookups = new LongAdder();
+    final LongAdder throttled = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    private final RecordStore store;
+    private final Faults almaFaults;
+    private final Faults sruFaults;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Starts the fake on a free port.
+     * @param store The records to serve.
+     * @param almaFaults The faults of the bibs api.
+     * @param sruFaults The faults of alma-sru, whose error and throttle rates are not used.
+     * @param threads The number of calls that can be answered at the same time.
+     * @throws IOException when the server can't be started.
+     */
+    public FakeAlmaServer(RecordStore store, Faults almaFaults, Faults sruFaults, int threads) throws IOException {
+        this.store = store;
+        this.almaFaults = almaFaults;
+        this.sruFaults = sruFaults;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(BIBS_PATH, this::handleBibs);
+        server.createContext(SRU_PATH, this::handleSru);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getAlmaApiHost() {
+        return "http://localhost:" + server.getAddress().getPort() + BIBS_PATH + "/";
+    }
+
+    public String getSruHost() {
+        return "http://localhost:" + server.getAddress().getPort() + SRU_PATH + "?" + ISBN_PARAMETER;
+    }
+
+    private void handleBibs(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String mmsId = path.length() > BIBS_PATH.length() + 1 ? path.substring(BIBS_PATH.length() + 1) : "";
+            boolean put = "PUT".equals(exchange.getRequestMethod());
+            String body = put ? readBody(exchange) : null;
+            if (put) {
+                puts.increment();
+            } else if (mmsId.isEmpty()) {
+                batchGets.increment();
+            } else {
+                gets.increment();
+            }
+            delay(almaFaults);
+            double outcome = ThreadLocalRandom.current().nextDouble();
+            if (outcome < almaFaults.throttleRate) {
+                throttled.increment();
+                send(exchange, TOO_MANY_REQUESTS, THROTTLED_BODY);
+            } else if (outcome < almaFaults.throttleRate + almaFaults.errorRate) {
+                errors.increment();
+                send(exchange, SERVICE_UNAVAILABLE, "");
+            } else if (put) {
+                send(exchange, store.put(mmsId, body) ? 200 : 400, body);
+            } else if (mmsId.isEmpty()) {
+                send(exchange, 200, bibs(exchange.getRequestURI().getQuery()));
+            } else {
+                String record = store.get(mmsId);
+                send(exchange, record == null ? 400 : 200, record == null ? "" : record);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleSru(HttpExchange exchange) throws IOException {
+        try {
+            sruLookups.increment();
+            delay(sruFaults);
+            String query = exchange.getRequestURI().getQuery();
+            String isbn = query.substring(query.indexOf(ISBN_PARAMETER) + ISBN_PARAMETER.length());
+            StringBuilder references = new StringBuilder("[");
+            for (String mmsId : store.getMmsIds(isbn)) {
+                references.append(references.length() > 1 ? "," : "").append("{\"id\":\"").append(mmsId).append("\"}");
+            }
+            send(exchange, 200, references.append(']').toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String bibs(String query) {
+        List<String> mmsIds = List.of(query.substring(MMS_ID_PARAMETER.length()).split(","));
+        StringBuilder bibs = new StringBuilder();
+        int count = 0;
+        for (String mmsId : mmsIds) {
+            String record = store.get(mmsId);
+            if (record != null) {
+                bibs.append(record);
+                count++;
+            }
+        }
+        return "<bibs total_record_count=\"" + count + "\">" + bibs + "</bibs>";
+    }
+
+    private static void delay(Faults faults) {
+        long millis = faults.latencyMillis
+                + (faults.jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(faults.jitterMillis + 1) : 0);
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(RateLimiter.REMAINING_QUOTA_HEADER, REMAINING_QUOTA);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,444 @@
+package no.unit.loadtest;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import no.unit.alma.AlmaConnection;
+import no.unit.alma.Config;
+import no.unit.alma.FakeEnvironment;
+import no.unit.alma.SharedHttpClient;
+import no.unit.alma.UpdateAlmaDescriptionHandler;
+import no.unit.scheduler.DlqWriter;
+import no.unit.scheduler.SchedulerHelper;
+import no.unit.secret.SecretCache;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays DynamoDB stream events through UpdateAlmaDescriptionHandler against a FakeAlmaServer, at a target rate,
+ * and reports the throughput, the latency of the invocations and the calls to Alma.
+ * The events are made from a template, MockEvent.JSON if not given, with the isbn swapped for one of the store and
+ * a new short description, or replayed from a file of recorded stream records (a JSON array, or one per line).
+ * Every concurrent invocation has its own handler and connection to Alma, like a Lambda container. The alma-sru
+ * cache is shared by all of them, since it is static. The DLQ is a fake that only counts the messages.
+ * Run it with ./gradlew loadTest -PloadTestArgs="--messages=2000 --rate=200 --throttle-rate=0.02", the options are
+ * the fields of Options in kebab case.
+ */
+public final class LoadTestDriver {
+
+    private static final String API_KEY = "load-test-key";
+    private static final String DLQ_URL = "https://sqs.example/load-test-dlq";
+    private static final String FUNCTION_NAME = "alma-description-updater-load-test";
+    private static final String DEFAULT_TEMPLATE = "/MockEvent.JSON";
+    private static final String S = "S";
+
+    private LoadTestDriver() {
+    }
+
+    /**
+     * What the load test sends, and how the fakes answer.
+     */
+    public static final class Options {
+        int messages;
+        double rate;
+        int batchSize;
+        int concurrency;
+        int isbns;
+        int mmsIdsPerIsbn;
+        long latencyMs;
+        long jitterMs;
+        long sruLatencyMs;
+        double errorRate;
+        double throttleRate;
+        int almaConcurrency;
+        int batchConcurrency;
+        double almaGetRate;
+        double almaPutRate;
+        String recordRewriter;
+        long timeoutMs;
+        long profileThresholdMs;
+        String template;
+        String events;
+        boolean verbose;
+
+        /**
+         * Reads the options from arguments like --messages=500 or --throttle-rate=0.05.
+         * @param args The arguments.
+         * @return The options, the defaults for those not given.
+         */
+        public static Options parse(String... args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+                values.put(parts[0], parts.length > 1 ? parts[1] : "true");
+            }
+            Options options = new Options();
+            options.messages = Integer.parseInt(take(values, "messages", "1000"));
+            options.rate = Double.parseDouble(take(values, "rate", "100"));
+            options.batchSize = Integer.parseInt(take(values, "batch-size", "10"));
+            options.concurrency = Integer.parseInt(take(values, "concurrency", "4"));
+            options.isbns = Integer.parseInt(take(values, "isbns", "200"));
+            options.mmsIdsPerIsbn = Integer.parseInt(take(values, "mms-ids-per-isbn", "2"));
+            options.latencyMs = Long.parseLong(take(values, "latency-ms", "50"));
+            options.jitterMs = Long.parseLong(take(values, "jitter-ms", "50"));
+            options.sruLatencyMs = Long.parseLong(take(values, "sru-latency-ms", "20"));
+            options.errorRate = Double.parseDouble(take(values, "error-rate", "0"));
+            options.throttleRate = Double.parseDouble(take(values, "throttle-rate", "0"));
+            options.almaConcurrency = Integer.parseInt(take(values, "alma-concurrency", "4"));
+            options.batchConcurrency = Integer.parseInt(take(values, "batch-concurrency", "4"));
+            options.almaGetRate = Double.parseDouble(take(values, "alma-get-rate", "1000"));
+            options.almaPutRate = Double.parseDouble(take(values, "alma-put-rate", "1000"));
+            options.recordRewriter = take(values, "record-rewriter", "DOM");
+            options.timeoutMs = Long.parseLong(take(values, "timeout-ms", "20000"));
+            options.profileThresholdMs = Long.parseLong(take(values, "profile-threshold-ms", "0"));
+            options.template = take(values, "template", null);
+            options.events = take(values, "events", null);
+            options.verbose = Boolean.parseBoolean(take(values, "verbose", "false"));
+            if (!values.isEmpty()) {
+                throw new IllegalArgumentException("Unknown options " + values.keySet());
+            }
+            return options;
+        }
+
+        private static String take(Map<String, String> values, String name, String defaultValue) {
+            String value = values.remove(name);
+            return value == null ? defaultValue : value;
+        }
+    }
+
+    /**
+     * What came out of a load test.
+     */
+    public static final class Report {
+        long messages;
+        long failedMessages;
+        long dlqMessages;
+        long invocations;
+        long elapsedMillis;
+        long[] latencyMillis;
+        long[] serviceMillis;
+        long almaGets;
+        long almaBatchGets;
+        long almaPuts;
+        long almaThrottled;
+        long almaErrors;
+        long sruLookups;
+
+        public double getThroughput() {
+            return elapsedMillis == 0 ? 0 : messages * 1000.0 / elapsedMillis;
+        }
+
+        /**
+         * A percentile of the time from when an invocation should have started until it was done, so the time
+         * it waited for a free handler is counted too.
+         * @param percentile The percentile, from 0 to 100.
+         * @return The latency in milliseconds.
+         */
+        public long latencyPercentile(double percentile) {
+            return percentile(latencyMillis, percentile);
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Messages: %d in %d invocations, %d failed, %d to the DLQ%n"
+                            + "Elapsed: %d ms, throughput: %.1f messages/s%n"
+                            + "Invocation latency (ms): p50 %d, p90 %d, p99 %d, max %d%n"
+                            + "Invocation service time (ms): p50 %d, p90 %d, p99 %d, max %d%n"
+                            + "Alma calls: %d GET, %d batch GET, %d PUT, %d answered 429, %d answered 503%n"
+                            + "alma-sru lookups: %d",
+                    messages, invocations, failedMessages, dlqMessages,
+                    elapsedMillis, getThroughput(),
+                    latencyPercentile(50), latencyPercentile(90), latencyPercentile(99), latencyPercentile(100),
+                    percentile(serviceMillis, 50), percentile(serviceMillis, 90), percentile(serviceMillis, 99),
+                    percentile(serviceMillis, 100),
+                    almaGets, almaBatchGets, almaPuts, almaThrottled, almaErrors, sruLookups);
+        }
+    }
+
+    /**
+     * A DLQ that counts the messages sent to it.
+     */
+    private static final class CountingSqsClient implements SqsClient {
+
+        private final LongAdder messages = new LongAdder();
+
+        @Override
+        public SendMessageBatchResponse sendMessageBatch(SendMessageBatchRequest request) {
+            messages.add(request.entries().size());
+            return SendMessageBatchResponse.builder().failed(List.of()).build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "sqs";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(run(Options.parse(args)));
+    }
+
+    /**
+     * Runs a load test.
+     * @param options What to send, and how the fakes answer.
+     * @return The report.
+     * @throws IOException when the fakes can't be started or the events can't be read.
+     * @throws InterruptedException when interrupted while waiting for the invocations.
+     */
+    public static Report run(Options options) throws IOException, InterruptedException {
+        RecordStore store = new RecordStore(options.mmsIdsPerIsbn);
+        List<String> bodies = createBodies(options, store);
+        CountingSqsClient dlq = new CountingSqsClient();
+        PrintStream out = System.out;
+        Report report = new Report();
+        try (FakeAlmaServer server = new FakeAlmaServer(store,
+                new FakeAlmaServer.Faults(options.latencyMs, options.jitterMs, options.errorRate, options.throttleRate),
+                new FakeAlmaServer.Faults(options.sruLatencyMs, 0, 0, 0),
+                options.concurrency * options.almaConcurrency * options.batchConcurrency + options.concurrency)) {
+            BlockingQueue<UpdateAlmaDescriptionHandler> handlers = new ArrayBlockingQueue<>(options.concurrency);
+            for (int i = 0; i < options.concurrency; i++) {
+                handlers.add(createHandler(options, server, dlq));
+            }
+            if (!options.verbose) {
+                System.setOut(new PrintStream(OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8));
+            }
+            ExecutorService invocations = Executors.newFixedThreadPool(options.concurrency);
+            List<Future<long[]>> results = new ArrayList<>();
+            long periodNanos = (long) (options.batchSize * TimeUnit.SECONDS.toNanos(1) / options.rate);
+            long start = System.nanoTime();
+            try {
+                for (int from = 0; from < bodies.size(); from += options.batchSize) {
+                    long due = start + from / options.batchSize * periodNanos;
+                    LockSupport.parkNanos(due - System.nanoTime());
+                    int to = Math.min(bodies.size(), from + options.batchSize);
+                    SQSEvent event = createEvent(bodies.subList(from, to));
+                    results.add(invocations.submit(() -> invoke(handlers, event, due, options.timeoutMs)));
+                }
+                List<Long> latencies = new ArrayList<>();
+                List<Long> serviceTimes = new ArrayList<>();
+                for (Future<long[]> result : results) {
+                    long[] outcome = result.get();
+                    latencies.add(outcome[0]);
+                    serviceTimes.add(outcome[1]);
+                    report.failedMessages += outcome[2];
+                }
+                report.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                report.latencyMillis = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+                report.serviceMillis = serviceTimes.stream().mapToLong(Long::longValue).sorted().toArray();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("An invocation failed: " + e.getCause().getMessage(), e.getCause());
+            } finally {
+                invocations.shutdownNow();
+                System.setOut(out);
+            }
+            report.messages = bodies.size();
+            report.invocations = results.size();
+            report.dlqMessages = dlq.messages.sum();
+            report.almaGets = server.gets.sum();
+            report.almaBatchGets = server.batchGets.sum();
+            report.almaPuts = server.puts.sum();
+            report.almaThrottled = server.throttled.sum();
+            report.almaErrors = server.errors.sum();
+            report.sruLookups = server.sruLookups.sum();
+        }
+        return report;
+    }
+
+    /**
+     * Sends one batch to a free handler.
+     * @return The latency from when it was due, the service time, both in milliseconds, and the failed messages.
+     */
+    private static long[] invoke(BlockingQueue<UpdateAlmaDescriptionHandler> handlers, SQSEvent event, long due,
+            long timeoutMs) throws InterruptedException {
+        UpdateAlmaDescriptionHandler handler = handlers.take();
+        long start = System.nanoTime();
+        try {
+            SQSBatchResponse response = handler.handleRequest(event, createContext(timeoutMs));
+            long end = System.nanoTime();
+            return new long[] {TimeUnit.NANOSECONDS.toMillis(end - due), TimeUnit.NANOSECONDS.toMillis(end - start),
+                response.getBatchItemFailures().size()};
+        } finally {
+            handlers.add(handler);
+        }
+    }
+
+    private static UpdateAlmaDescriptionHandler createHandler(Options options, FakeAlmaServer server,
+            SqsClient dlq) {
+        Map<String, String> variables = new HashMap<>();
+        variables.put(Config.ALMA_API_HOST_KEY, server.getAlmaApiHost());
+        variables.put(Config.ALMA_SRU_HOST_KEY, server.getSruHost());
+        variables.put(Config.RECORD_REWRITER_KEY, options.recordRewriter);
+        variables.put(Config.ALMA_CONCURRENCY_KEY, String.valueOf(options.almaConcurrency));
+        variables.put(Config.BATCH_CONCURRENCY_KEY, String.valueOf(options.batchConcurrency));
+        variables.put(Config.ALMA_GET_RATE_KEY, String.valueOf(options.almaGetRate));
+        variables.put(Config.ALMA_PUT_RATE_KEY, String.valueOf(options.almaPutRate));
+        variables.put(Config.PROFILE_THRESHOLD_MS_KEY, String.valueOf(options.profileThresholdMs));
+        variables.put("STANDARD_CONTENT_URL", "https://contents.example/");
+        variables.put("DLQ_QUEUE_URL", DLQ_URL);
+        FakeEnvironment environment = new FakeEnvironment(variables);
+        Config config = new Config(environment, new SecretCache(() -> API_KEY));
+        SchedulerHelper schedulerHelper = new SchedulerHelper(environment) {
+            @Override
+            public DlqWriter createDlqWriter() {
+                return new DlqWriter(() -> dlq, () -> DLQ_URL);
+            }
+        };
+        return new UpdateAlmaDescriptionHandler(config, schedulerHelper,
+                new AlmaConnection(config, SharedHttpClient.get()));
+    }
+
+    /**
+     * The bodies of the messages: the recorded events in turn, or events made from the template for the isbns
+     * of the store in turn.
+     */
+    private static List<String> createBodies(Options options, RecordStore store) throws IOException {
+        List<String> bodies = new ArrayList<>();
+        if (options.events != null) {
+            List<JsonObject> recorded = readEvents(Path.of(options.events));
+            for (JsonObject event : recorded) {
+                store.add(event.getAsJsonObject("dynamodb").getAsJsonObject("Keys")
+                        .getAsJsonObject("isbn").get(S).getAsString());
+            }
+            for (int i = 0; i < options.messages; i++) {
+                bodies.add(recorded.get(i % recorded.size()).toString());
+            }
+            return bodies;
+        }
+        JsonObject template = JsonParser.parseString(readTemplate(options.template)).getAsJsonObject();
+        List<String> isbns = store.addIsbns(options.isbns);
+        for (int i = 0; i < options.messages; i++) {
+            bodies.add(createEvent(template, isbns.get(i % isbns.size()), i));
+        }
+        return bodies;
+    }
+
+    private static String createEvent(JsonObject template, String isbn, int sequence) {
+        JsonObject event = template.deepCopy();
+        event.addProperty("eventID", UUID.randomUUID().toString().replace("-", ""));
+        JsonObject dynamodb = event.getAsJsonObject("dynamodb");
+        dynamodb.addProperty("ApproximateCreationDateTime", System.currentTimeMillis() / 1000);
+        dynamodb.getAsJsonObject("Keys").getAsJsonObject("isbn").addProperty(S, isbn);
+        JsonObject newImage = dynamodb.getAsJsonObject("NewImage");
+        newImage.getAsJsonObject("isbn").addProperty(S, isbn);
+        JsonObject shortDescription = new JsonObject();
+        shortDescription.addProperty(S, "Short description " + sequence);
+        newImage.add("description_short", shortDescription);
+        return event.toString();
+    }
+
+    private static SQSEvent createEvent(List<String> bodies) {
+        List<SQSEvent.SQSMessage> messages = new ArrayList<>();
+        for (String body : bodies) {
+            SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+            message.setMessageId(UUID.randomUUID().toString());
+            message.setBody(body);
+            message.setAttributes(Map.of("ApproximateReceiveCount", "1"));
+            messages.add(message);
+        }
+        SQSEvent event = new SQSEvent();
+        event.setRecords(messages);
+        return event;
+    }
+
+    /**
+     * A context with the remaining time of an invocation that started now, and the request id and function name.
+     */
+    private static Context createContext(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        String requestId = UUID.randomUUID().toString();
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[] {Context.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getRemainingTimeInMillis":
+                        return (int) Math.max(0, deadline - System.currentTimeMillis());
+                    case "getAwsRequestId":
+                        return requestId;
+                    case "getFunctionName":
+                        return FUNCTION_NAME;
+                    default:
+                        return null;
+                }
+            });
+    }
+
+    private static String readTemplate(String file) throws IOException {
+        if (file != null) {
+            return Files.readString(Path.of(file));
+        }
+        try (InputStream stream = LoadTestDriver.class.getResourceAsStream(DEFAULT_TEMPLATE)) {
+            if (stream == null) {
+                throw new IOException("Missing event template " + DEFAULT_TEMPLATE);
+            }
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads recorded stream records: a JSON array of them, a DynamoDB event with them as Records, or one per line.
+     */
+    private static List<JsonObject> readEvents(Path file) throws IOException {
+        String content = Files.readString(file);
+        List<JsonObject> events = new ArrayList<>();
+        try {
+            JsonElement all = JsonParser.parseString(content);
+            JsonArray array = all.isJsonArray() ? all.getAsJsonArray() : null;
+            if (array == null && all.getAsJsonObject().has("Records")) {
+                array = all.getAsJsonObject().getAsJsonArray("Records");
+            }
+            if (array == null) {
+                events.add(all.getAsJsonObject());
+            } else {
+                array.forEach(element -> events.add(element.getAsJsonObject()));
+            }
+        } catch (JsonSyntaxException e) {
+            Arrays.stream(content.split("\\R")).filter(line -> !line.isBlank())
+                    .forEach(line -> events.add(JsonParser.parseString(line).getAsJsonObject()));
+        }
+        if (events.isEmpty()) {
+            throw new IOException("No events in " + file);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,53 @@
+package no.unit.loadtest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LoadTestDriverTest {
+
+    private static LoadTestDriver.Options smallLoad(String... faults) {
+        String[] args = new String[faults.length + 7];
+        args[0] = "--messages=40";
+        args[1] = "--rate=400";
+        args[2] = "--concurrency=1";
+        args[3] = "--isbns=8";
+        args[4] = "--latency-ms=1";
+        args[5] = "--jitter-ms=2";
+        args[6] = "--sru-latency-ms=0";
+        System.arraycopy(faults, 0, args, 7, faults.length);
+        return LoadTestDriver.Options.parse(args);
+    }
+
+    @Test
+    public void testEveryRecordIsUpdatedOnceWithoutFaults() throws IOException, InterruptedException {
+        LoadTestDriver.Report report = LoadTestDriver.run(smallLoad());
+        assertEquals(40, report.messages);
+        assertEquals(4, report.invocations);
+        assertEquals(0, report.failedMessages);
+        assertEquals(0, report.dlqMessages);
+        /* One invocation at a time, so the later messages of an isbn find their links and skip the PUT. */
+        assertEquals(16, report.almaPuts);
+        assertTrue(report.almaBatchGets > 0);
+        assertEquals(4, report.latencyMillis.length);
+        assertTrue(report.getThroughput() > 0);
+        assertTrue(report.toString().contains("16 PUT"));
+    }
+
+    @Test
+    public void testThrottledCallsAreRetried() throws IOException, InterruptedException {
+        LoadTestDriver.Report report = LoadTestDriver.run(smallLoad("--throttle-rate=0.2"));
+        assertTrue(report.almaThrottled > 0);
+        assertTrue(report.almaPuts + report.almaGets + report.almaBatchGets > report.almaThrottled);
+        assertEquals(40, report.messages);
+    }
+
+    @Test
+    public void testUnknownOptionsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> LoadTestDriver.Options.parse("--messagez=10"));
+    }
+}
@@ -0,0 +1,141 @@
+package no.unit.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The bib records the fake Alma serves, made from the MARCXML test resources with the mms_id and isbn swapped.
+ * Every isbn has the same number of records, print and electronic taking turns. A PUT replaces the record, so
+ * the next update of the isbn finds the links it already has, like in Alma.
+ */
+public class RecordStore {
+
+    public static final String PRINT_TEMPLATE = "/Mock_xml.xml";
+    public static final String ELECTRONIC_TEMPLATE = "/Mock_Electronic_xml.xml";
+    private static final String TEMPLATE_MMS_ID = "991325803064702201";
+    private static final String TEMPLATE_ISBN = "9788210053412";
+    private static final long FIRST_MMS_ID = 991_400_000_000_000_000L;
+    private static final long MMS_ID_STEP = 100;
+    private static final String XML_DECLARATION_END = "?>";
+
+    private final String printTemplate;
+    private final String electronicTemplate;
+    private final int mmsIdsPerIsbn;
+    private final Map<String, String> records = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> mmsIdsByIsbn = new ConcurrentHashMap<>();
+    private final List<String> isbns = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Creates an empty store.
+     * @param mmsIdsPerIsbn The number of records added for every isbn.
+     * @throws IOException when the templates can't be read.
+     */
+    public RecordStore(int mmsIdsPerIsbn) throws IOException {
+        this.printTemplate = readTemplate(PRINT_TEMPLATE);
+        this.electronicTemplate = readTemplate(ELECTRONIC_TEMPLATE);
+        this.mmsIdsPerIsbn = mmsIdsPerIsbn;
+    }
+
+    /**
+     * Adds generated isbns with their records.
+     * @param count The number of isbns to add.
+     * @return The isbns that were added.
+     */
+    public List<String> addIsbns(int count) {
+        List<String> added = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String isbn = isbn13(978_820_000_000L + isbns.size());
+            add(isbn);
+            added.add(isbn);
+        }
+        return added;
+    }
+
+    /**
+     * Adds the records of an isbn, unless it has them already.
+     * @param isbn The isbn.
+     */
+    public void add(String isbn) {
+        mmsIdsByIsbn.computeIfAbsent(isbn, key -> {
+            int index = isbns.size();
+            isbns.add(isbn);
+            List<String> mmsIds = new ArrayList<>();
+            for (int i = 0; i < mmsIdsPerIsbn; i++) {
+                String mmsId = String.valueOf(FIRST_MMS_ID + index * MMS_ID_STEP + i);
+                String template = (index + i) % 2 == 0 ? printTemplate : electronicTemplate;
+                records.put(mmsId, template.replace(TEMPLATE_MMS_ID, mmsId).replace(TEMPLATE_ISBN, isbn));
+                mmsIds.add(mmsId);
+            }
+            return mmsIds;
+        });
+    }
+
+    public List<String> getIsbns() {
+        return isbns;
+    }
+
+    /**
+     * The mms_id's of the records of an isbn, as alma-sru would find them.
+     * @param isbn The isbn.
+     * @return The mms_id's, empty if the isbn is not in the store.
+     */
+    public List<String> getMmsIds(String isbn) {
+        return mmsIdsByIsbn.getOrDefault(isbn, List.of());
+    }
+
+    public String get(String mmsId) {
+        return records.get(mmsId);
+    }
+
+    /**
+     * Replaces a record that exists.
+     * @param mmsId The mms_id of the record.
+     * @param record The new record.
+     * @return false if there is no record with the mms_id.
+     */
+    public boolean put(String mmsId, String record) {
+        return records.replace(mmsId, stripDeclaration(record)) != null;
+    }
+
+    /**
+     * Reads a template the way the tests read records, with the lines trimmed and joined, as Alma sends them.
+     */
+    private static String readTemplate(String name) throws IOException {
+        try (InputStream stream = RecordStore.class.getResourceAsStream(name)) {
+            if (stream == null) {
+                throw new IOException("Missing record template " + name);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+            StringBuilder xml = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                xml.append(line.trim());
+            }
+            return stripDeclaration(xml.toString());
+        }
+    }
+
+    private static String stripDeclaration(String xml) {
+        return xml.startsWith("<?xml") ? xml.substring(xml.indexOf(XML_DECLARATION_END) + 2) : xml;
+    }
+
+    /**
+     * Makes a valid ISBN-13 from its first twelve digits.
+     */
+    static String isbn13(long firstTwelveDigits) {
+        String digits = String.valueOf(firstTwelveDigits);
+        int sum = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            sum += (digits.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        return digits + (10 - sum % 10) % 10;
+    }
+}
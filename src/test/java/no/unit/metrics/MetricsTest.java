@@ -0,0 +1,96 @@
+package no.unit.metrics;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import no.unit.alma.FakeClock;
+import no.unit.alma.StubHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class MetricsTest {
+
+    private final FakeClock clock = new FakeClock();
+    private final Metrics metrics = new Metrics(clock);
+
+    private JsonObject flush() {
+        return JsonParser.parseString(metrics.flush(Map.of("FunctionName", "updater"))).getAsJsonObject();
+    }
+
+    @Test
+    public void testFlushWritesTheCountersAndDistributionsAsEmf() {
+        metrics.count(Metrics.SKIPPED_PUTS);
+        metrics.count(Metrics.SKIPPED_PUTS, 2);
+        metrics.record(Metrics.MMS_IDS_PER_ISBN, 3, Metrics.Unit.COUNT);
+        metrics.record(Metrics.MMS_IDS_PER_ISBN, 1, Metrics.Unit.COUNT);
+
+        JsonObject document = flush();
+        assertEquals(3, document.get(Metrics.SKIPPED_PUTS).getAsLong());
+        JsonArray values = document.getAsJsonArray(Metrics.MMS_IDS_PER_ISBN);
+        assertEquals(2, values.size());
+        assertEquals(3.0, values.get(0).getAsDouble(), 0.0001);
+        assertEquals("updater", document.get("FunctionName").getAsString());
+
+        JsonObject aws = document.getAsJsonObject("_aws");
+        assertEquals(clock.millis(), aws.get("Timestamp").getAsLong());
+        JsonObject directive = aws.getAsJsonArray("CloudWatchMetrics").get(0).getAsJsonObject();
+        assertEquals(Metrics.NAMESPACE, directive.get("Namespace").getAsString());
+        assertEquals("FunctionName", directive.getAsJsonArray("Dimensions").get(0).getAsJsonArray()
+                .get(0).getAsString());
+        assertEquals(2, directive.getAsJsonArray("Metrics").size());
+    }
+
+    @Test
+    public void testFlushEmptiesTheMetrics() {
+        metrics.count(Metrics.MESSAGES);
+        flush();
+        assertNull(metrics.flush(Map.of()));
+    }
+
+    @Test
+    public void testCallsAreCountedByStatusClass() {
+        long start = System.nanoTime();
+        metrics.recordCall(Metrics.ALMA_GET, start, new StubHttpResponse(200, ""), null);
+        metrics.recordCall(Metrics.ALMA_GET, start, new StubHttpResponse(503, ""), null);
+        metrics.recordCall(Metrics.ALMA_GET, start, null, new IOException("timed out"));
+
+        JsonObject document = flush();
+        assertEquals(1, document.get("AlmaGet2xx").getAsLong());
+        assertEquals(1, document.get("AlmaGet5xx").getAsLong());
+        assertEquals(1, document.get("AlmaGetError").getAsLong());
+        assertEquals(3, document.getAsJsonArray(Metrics.ALMA_GET).size());
+    }
+
+    @Test
+    public void testDistributionsKeepAtMostMaxValues() {
+        for (int i = 0; i < 1000; i++) {
+            metrics.recordSince(Metrics.REWRITE, System.nanoTime());
+        }
+        assertEquals(Metrics.MAX_VALUES, flush().getAsJsonArray(Metrics.REWRITE).size());
+    }
+
+    @Test
+    public void testLagIsCountedByAttemptAndAgeBucket() {
+        clock.advance(Duration.ofDays(2));
+        Instant now = clock.instant();
+        metrics.recordLag(now.minusSeconds(30), false);
+        metrics.recordLag(now.minusSeconds(1200), false);
+        metrics.recordLag(now.minus(Duration.ofDays(1)), true);
+
+        JsonObject document = flush();
+        assertEquals(1, document.get("ChangeToAlmaLagFirstAttemptUnder1m").getAsLong());
+        assertEquals(1, document.get("ChangeToAlmaLagFirstAttemptUnder1h").getAsLong());
+        assertEquals(1, document.get("ChangeToAlmaLagRedrivenOver1d").getAsLong());
+        JsonArray lags = document.getAsJsonArray("ChangeToAlmaLagFirstAttempt");
+        assertEquals(30.0, lags.get(0).getAsDouble(), 0.0001);
+        assertEquals(1200.0, lags.get(1).getAsDouble(), 0.0001);
+        assertEquals(86_400.0, document.getAsJsonArray("ChangeToAlmaLagRedriven").get(0).getAsDouble(), 0.0001);
+    }
+}
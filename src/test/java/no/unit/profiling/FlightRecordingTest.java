@@ -0,0 +1,72 @@
+package no.unit.profiling;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FlightRecordingTest {
+
+    private static final String MMS_ID = "991325803064702201";
+
+    private Path directory;
+    private FlightRecording recording;
+
+    @BeforeEach
+    public void init() throws IOException {
+        directory = Files.createTempDirectory("flight-recording");
+        recording = new FlightRecording(100, directory);
+    }
+
+    @AfterEach
+    public void stop() {
+        recording.stop();
+    }
+
+    @Test
+    public void testNothingIsRecordedWithoutThreshold() {
+        FlightRecording disabled = new FlightRecording(0, directory);
+        disabled.start();
+        assertFalse(disabled.isEnabled());
+        assertNull(disabled.dumpIfSlow(10_000, "slow"));
+    }
+
+    @Test
+    public void testRecordingIsOnlyDumpedForSlowInvocations() throws IOException {
+        recording.start();
+        PipelineEvents.RewriteEvent event = new PipelineEvents.RewriteEvent();
+        event.begin();
+        event.mmsId = MMS_ID;
+        event.changed = true;
+        event.commit();
+
+        assertNull(recording.dumpIfSlow(100, "fast"));
+        Path file = recording.dumpIfSlow(101, "slow");
+        assertNotNull(file);
+        assertEquals(directory.resolve(FlightRecording.FILE_PREFIX + "slow" + FlightRecording.FILE_SUFFIX), file);
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertTrue(events.stream().anyMatch(recorded -> "no.unit.Rewrite".equals(recorded.getEventType().getName())
+                && MMS_ID.equals(recorded.getString("mmsId"))));
+    }
+
+    @Test
+    public void testAtMostMaxDumpsAreWritten() {
+        recording.start();
+        for (int i = 0; i < FlightRecording.MAX_DUMPS; i++) {
+            assertNotNull(recording.dumpIfSlow(1000, "slow" + i));
+        }
+        assertNull(recording.dumpIfSlow(1000, "one-too-many"));
+    }
+}
@@ -0,0 +1,137 @@
+package no.unit.scheduler;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DlqWriterTest {
+
+    private static final String QUEUE_URL = "https://sqs.example/dlq";
+
+    /**
+     * Records the batches it is sent, and answers them with the given function.
+     */
+    private static class FakeSqsClient implements SqsClient {
+
+        final List<SendMessageBatchRequest> requests = new ArrayList<>();
+        final Function<SendMessageBatchRequest, SendMessageBatchResponse> answer;
+
+        FakeSqsClient(Function<SendMessageBatchRequest, SendMessageBatchResponse> answer) {
+            this.answer = answer;
+        }
+
+        @Override
+        public SendMessageBatchResponse sendMessageBatch(SendMessageBatchRequest request) {
+            requests.add(request);
+            return answer.apply(request);
+        }
+
+        @Override
+        public String serviceName() {
+            return "sqs";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static SendMessageBatchResponse failed(BatchResultErrorEntry... entries) {
+        List<BatchResultErrorEntry> failed = new ArrayList<>();
+        Collections.addAll(failed, entries);
+        return SendMessageBatchResponse.builder().failed(failed).build();
+    }
+
+    private static BatchResultErrorEntry error(String id, boolean senderFault) {
+        return BatchResultErrorEntry.builder().id(id).code("Error").message("failed").senderFault(senderFault).build();
+    }
+
+    @Test
+    public void testMessagesAreSentInBatchesOfTen() {
+        FakeSqsClient sqs = new FakeSqsClient(request -> failed());
+        DlqWriter writer = new DlqWriter(() -> sqs, () -> QUEUE_URL);
+        for (int i = 0; i < 25; i++) {
+            writer.add("id" + i, "body" + i);
+        }
+        assertEquals(2, sqs.requests.size());
+        assertTrue(writer.flush().isEmpty());
+        assertEquals(3, sqs.requests.size());
+        assertEquals(10, sqs.requests.get(0).entries().size());
+        assertEquals(10, sqs.requests.get(1).entries().size());
+        assertEquals(5, sqs.requests.get(2).entries().size());
+        assertEquals(QUEUE_URL, sqs.requests.get(2).queueUrl());
+        assertEquals("body24", sqs.requests.get(2).entries().get(4).messageBody());
+    }
+
+    @Test
+    public void testNothingIsSentWithoutMessages() {
+        FakeSqsClient sqs = new FakeSqsClient(request -> failed());
+        DlqWriter writer = new DlqWriter(() -> sqs, () -> {
+            throw new IllegalStateException("The queue url should not be needed");
+        });
+        assertTrue(writer.flush().isEmpty());
+        assertTrue(sqs.requests.isEmpty());
+    }
+
+    @Test
+    public void testEntriesFailingOnTheSideOfSqsAreSentAgain() {
+        FakeSqsClient sqs = new FakeSqsClient(request -> request.entries().size() == 3
+                ? failed(error("1", false)) : failed());
+        DlqWriter writer = new DlqWriter(() -> sqs, () -> QUEUE_URL);
+        writer.add("id0", "body0");
+        writer.add("id1", "body1");
+        writer.add("id2", "body2");
+        assertTrue(writer.flush().isEmpty());
+        assertEquals(2, sqs.requests.size());
+        assertEquals("body1", sqs.requests.get(1).entries().get(0).messageBody());
+    }
+
+    @Test
+    public void testEntriesFailingOnTheSenderSideAreReturnedFromFlush() {
+        FakeSqsClient sqs = new FakeSqsClient(request -> failed(error("0", true)));
+        DlqWriter writer = new DlqWriter(() -> sqs, () -> QUEUE_URL);
+        writer.add("id0", "body0");
+        writer.add("id1", "body1");
+        assertEquals(List.of("id0"), writer.flush());
+        assertEquals(1, sqs.requests.size());
+        assertTrue(writer.flush().isEmpty());
+    }
+
+    @Test
+    public void testBatchIsReturnedFromFlushWhenTheCallFailsTwice() {
+        FakeSqsClient sqs = new FakeSqsClient(request -> {
+            throw SdkException.builder().message("Unable to reach SQS").build();
+        });
+        DlqWriter writer = new DlqWriter(() -> sqs, () -> QUEUE_URL);
+        writer.add("id0", "body0");
+        writer.add("id1", "body1");
+        assertEquals(List.of("id0", "id1"), writer.flush());
+        assertEquals(2, sqs.requests.size());
+    }
+
+    @Test
+    public void testFullBatchIsReturnedFromFlushWhenTheQueueUrlIsMissing() {
+        FakeSqsClient sqs = new FakeSqsClient(request -> failed());
+        DlqWriter writer = new DlqWriter(() -> sqs, () -> {
+            throw new IllegalStateException("Missing env variable DLQ_QUEUE_URL");
+        });
+        List<String> messageIds = new ArrayList<>();
+        for (int i = 0; i < DlqWriter.MAX_BATCH_SIZE; i++) {
+            messageIds.add("id" + i);
+            writer.add("id" + i, "body" + i);
+        }
+        assertEquals(messageIds, writer.flush());
+        assertTrue(sqs.requests.isEmpty());
+    }
+}
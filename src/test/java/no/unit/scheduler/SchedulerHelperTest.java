@@ -2,6 +2,8 @@ package no.unit.scheduler;
 
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import no.unit.alma.XmlParserTest;
 import nva.commons.core.Environment;
 import org.junit.jupiter.api.BeforeEach;
@@ -10,10 +12,13 @@ import org.junit.jupiter.api.Test;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.time.Instant;
 import java.util.Iterator;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -111,4 +116,25 @@ class SchedulerHelperTest {
             System.out.println(payload.toString());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void splitEventReadsTheChangeTimeTest() throws Exception {
+        String mockEvent = setup(MOCKEVENT_FILE);
+        SchedulerHelper.SplitEvent splitEvent = mockSchedulerHelper.splitEvent(mockEvent);
+        assertEquals(Instant.ofEpochSecond(1_618_818_512L), splitEvent.getChangeTime());
+        assertEquals(mockSchedulerHelper.splitEventIntoUpdateItems(mockEvent).size(),
+                splitEvent.getUpdateItems().size());
+    }
+
+    @Test
+    public void splitEventWithoutAReadableChangeTimeTest() throws Exception {
+        JsonObject event = JsonParser.parseString(setup(MOCKEVENT_FILE)).getAsJsonObject();
+        JsonObject dynamodb = event.getAsJsonObject("dynamodb");
+        dynamodb.addProperty("ApproximateCreationDateTime", "yesterday");
+        SchedulerHelper.SplitEvent malformed = mockSchedulerHelper.splitEvent(event.toString());
+        assertNull(malformed.getChangeTime());
+        assertFalse(malformed.getUpdateItems().isEmpty());
+        dynamodb.remove("ApproximateCreationDateTime");
+        assertNull(mockSchedulerHelper.splitEvent(event.toString()).getChangeTime());
+    }
+}
@@ -0,0 +1,67 @@
+package no.unit.scheduler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpdateItemCoalescerTest {
+
+    private static final String ISBN = "9788210053412";
+    private static final String OTHER_ISBN = "9780198242833";
+    private static final String SMALL_IMAGE = "Miniatyrbilde";
+    private static final String LARGE_IMAGE = "Omslagsbilde";
+    private static final String LONG_DESCRIPTION = "Forlagets beskrivelse (lang)";
+
+    private UpdateItem item(String isbn, String specifiedMaterial) {
+        UpdateItem item = new UpdateItem();
+        item.setIsbn(isbn);
+        item.setSpecifiedMaterial(specifiedMaterial);
+        item.setLink("content-url/" + specifiedMaterial + "/" + isbn);
+        return item;
+    }
+
+    private List<UpdateItem> items(String isbn, String... specifiedMaterials) {
+        List<UpdateItem> items = new ArrayList<>();
+        for (String specifiedMaterial : specifiedMaterials) {
+            items.add(item(isbn, specifiedMaterial));
+        }
+        return items;
+    }
+
+    @Test
+    void testMessagesForTheSameIsbnAreMergedWithoutDuplicates() {
+        UpdateItemCoalescer coalescer = new UpdateItemCoalescer();
+        coalescer.add("1", "body1", items(ISBN, SMALL_IMAGE));
+        coalescer.add("2", "body2", items(OTHER_ISBN, SMALL_IMAGE));
+        coalescer.add("3", "body3", items(ISBN, LARGE_IMAGE, SMALL_IMAGE));
+        coalescer.add("4", "body4", items(ISBN, LONG_DESCRIPTION));
+
+        List<UpdateItemCoalescer.CoalescedUpdate> updates = new ArrayList<>(coalescer.getCoalescedUpdates());
+        assertEquals(2, updates.size());
+
+        UpdateItemCoalescer.CoalescedUpdate first = updates.get(0);
+        assertEquals(ISBN, first.getIsbn());
+        assertEquals(List.of("1", "3", "4"), first.getMessageIds());
+        assertEquals(List.of("body1", "body3", "body4"), first.getMessageBodies());
+        assertEquals(3, first.getUpdateItems().size());
+        assertEquals(SMALL_IMAGE, first.getUpdateItems().get(0).getSpecifiedMaterial());
+        assertEquals(LARGE_IMAGE, first.getUpdateItems().get(1).getSpecifiedMaterial());
+        assertEquals(LONG_DESCRIPTION, first.getUpdateItems().get(2).getSpecifiedMaterial());
+
+        assertEquals(OTHER_ISBN, updates.get(1).getIsbn());
+        assertEquals(List.of("2"), updates.get(1).getMessageIds());
+        assertEquals(1, coalescer.getDuplicates());
+    }
+
+    @Test
+    void testMessagesWithoutUpdateItemsAreLeftOut() {
+        UpdateItemCoalescer coalescer = new UpdateItemCoalescer();
+        coalescer.add("1", "body1", Collections.emptyList());
+        assertTrue(coalescer.getCoalescedUpdates().isEmpty());
+    }
+}
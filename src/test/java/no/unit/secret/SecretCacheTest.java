@@ -0,0 +1,147 @@
+package no.unit.secret;
+
+import no.unit.alma.FakeClock;
+import no.unit.exceptions.SecretRetrieverException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SecretCacheTest {
+
+    final FakeClock clock = new FakeClock();
+    final AtomicInteger version = new AtomicInteger();
+    boolean failing;
+
+    final SecretCache.SecretSource source = () -> {
+        if (failing) {
+            throw new SecretRetrieverException("Secrets Manager is down", null);
+        }
+        return "key" + version.incrementAndGet();
+    };
+    final SecretCache cache = new SecretCache(source, Duration.ofMinutes(20), clock);
+
+    private void awaitFetches(int fetches) throws InterruptedException {
+        for (int i = 0; i < 500 && cache.getFetches() < fetches; i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    @Test
+    public void testSecretIsFetchedOnceWhileItIsFresh() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            assertEquals("key1", cache.get());
+            clock.advance(Duration.ofSeconds(5));
+        }
+        assertEquals(1, cache.getFetches());
+    }
+
+    @Test
+    public void testOldSecretIsRefreshedInTheBackground() throws Exception {
+        cache.get();
+        clock.advance(Duration.ofMinutes(16));
+        assertEquals("key1", cache.get());
+        awaitFetches(2);
+        assertEquals("key2", cache.get());
+        assertEquals(2, cache.getFetches());
+    }
+
+    @Test
+    public void testExpiredSecretIsFetchedBeforeItIsReturned() throws Exception {
+        cache.get();
+        clock.advance(Duration.ofMinutes(20));
+        assertEquals("key2", cache.get());
+    }
+
+    @Test
+    public void testRefreshFetchesAtMostOncePerInterval() throws Exception {
+        cache.get();
+        clock.advance(Duration.ofSeconds(1));
+        assertEquals("key1", cache.refresh());
+        clock.advance(SecretCache.MIN_REFRESH_INTERVAL);
+        assertEquals("key2", cache.refresh());
+        assertEquals("key2", cache.refresh());
+        assertEquals(2, cache.getFetches());
+    }
+
+    @Test
+    public void testOldSecretIsKeptWhenFetchingFails() throws Exception {
+        cache.get();
+        failing = true;
+        clock.advance(Duration.ofMinutes(30));
+        assertEquals("key1", cache.get());
+        assertEquals("key1", cache.refresh());
+    }
+
+    @Test
+    public void testFailingFetchesAreRetriedAtMostOncePerInterval() throws Exception {
+        cache.get();
+        failing = true;
+        clock.advance(Duration.ofMinutes(30));
+        for (int i = 0; i < 100; i++) {
+            assertEquals("key1", cache.get());
+            assertEquals("key1", cache.refresh());
+        }
+        assertEquals(2, cache.getFetches());
+        clock.advance(SecretCache.MIN_REFRESH_INTERVAL);
+        assertEquals("key1", cache.get());
+        assertEquals(3, cache.getFetches());
+        failing = false;
+        clock.advance(SecretCache.MIN_REFRESH_INTERVAL);
+        assertEquals("key2", cache.get());
+        assertEquals("key2", cache.get());
+        assertEquals(4, cache.getFetches());
+    }
+
+    @Test
+    public void testCallersShareOneFetchThatDoesNotHoldTheLock() throws Exception {
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch answer = new CountDownLatch(1);
+        SecretCache slowCache = new SecretCache(() -> {
+            if (version.get() > 0) {
+                fetching.countDown();
+                try {
+                    answer.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new SecretRetrieverException("Interrupted", e);
+                }
+            }
+            return "key" + version.incrementAndGet();
+        }, Duration.ofMinutes(20), clock);
+        slowCache.get();
+        clock.advance(Duration.ofMinutes(20));
+        List<CompletableFuture<String>> callers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            callers.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return slowCache.get();
+                } catch (SecretRetrieverException e) {
+                    throw new CompletionException(e);
+                }
+            }));
+        }
+        assertTrue(fetching.await(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(1), CompletableFuture.supplyAsync(slowCache::getFetches).get(1, TimeUnit.SECONDS));
+        answer.countDown();
+        for (CompletableFuture<String> caller : callers) {
+            assertEquals("key2", caller.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(2, slowCache.getFetches());
+    }
+
+    @Test
+    public void testMissingSecretFails() {
+        failing = true;
+        assertThrows(SecretRetrieverException.class, cache::get);
+    }
+}